@@ -0,0 +1,136 @@
+package com.securechat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark de throughput i latència del MessageBuffer amb diferents
+ * proporcions de productors i consumidors (1:1, 4:1, 1:4, 4:4),
+ * capacitats, modes de cua i amb el log activat o desactivat
+ *
+ * Cada grup (p1c1, p4c1...) executa alhora els seus productors i consumidors
+ * sobre el mateix buffer. S'usen offer/poll amb timeout perquè cap fil quedi
+ * bloquejat per sempre quan JMH atura l'altra banda al final d'una iteració
+ *
+ * Amb el log actiu (DEPURACIO) el registre escriu a /dev/null: es mesura el
+ * cost de generar i formatar els logs, no el de la consola
+ *
+ * Executar:
+ *   mvn -Pjmh package
+ *   java -jar target/SecureChat-1.0-SNAPSHOT-jar-with-dependencies.jar MessageBufferBenchmark
+ *   java -jar target/SecureChat-1.0-SNAPSHOT-jar-with-dependencies.jar MessageBufferBenchmark -p mode=ANELL_LOCK_FREE -bm sample
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dsecurechat.log.fitxer=/dev/null")
+@State(Scope.Group)
+public class MessageBufferBenchmark {
+
+    private static final String MISSATGE = "Missatge de benchmark";
+    private static final long TIMEOUT_MS = 10;
+
+    @Param({"MONITOR", "ANELL_LOCK_FREE"})
+    public String mode;
+
+    @Param({"16", "1024"})
+    public int capacitat;
+
+    // DEPURACIO = log de cada operació activat, INFO = desactivat al camí calent
+    @Param({"INFO", "DEPURACIO"})
+    public String nivellLog;
+
+    private Multifil.MessageBuffer<String> buffer;
+
+    @Setup
+    public void preparar() {
+        Multifil.setNivellLog(Multifil.NivellLog.valueOf(nivellLog));
+        buffer = new Multifil.MessageBuffer<>(capacitat, Multifil.MessageBuffer.ModeCua.valueOf(mode));
+    }
+
+    private boolean afegir() {
+        return buffer.offer(MISSATGE, TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private String treure() {
+        return buffer.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // 1 productor : 1 consumidor
+
+    @Benchmark
+    @Group("p1c1")
+    @GroupThreads(1)
+    public boolean p1c1Afegir() {
+        return afegir();
+    }
+
+    @Benchmark
+    @Group("p1c1")
+    @GroupThreads(1)
+    public String p1c1Treure() {
+        return treure();
+    }
+
+    // 4 productors : 1 consumidor (el consumidor és el coll d'ampolla)
+
+    @Benchmark
+    @Group("p4c1")
+    @GroupThreads(4)
+    public boolean p4c1Afegir() {
+        return afegir();
+    }
+
+    @Benchmark
+    @Group("p4c1")
+    @GroupThreads(1)
+    public String p4c1Treure() {
+        return treure();
+    }
+
+    // 1 productor : 4 consumidors (els consumidors esperen a la cua buida)
+
+    @Benchmark
+    @Group("p1c4")
+    @GroupThreads(1)
+    public boolean p1c4Afegir() {
+        return afegir();
+    }
+
+    @Benchmark
+    @Group("p1c4")
+    @GroupThreads(4)
+    public String p1c4Treure() {
+        return treure();
+    }
+
+    // N productors : N consumidors
+
+    @Benchmark
+    @Group("pNcN")
+    @GroupThreads(4)
+    public boolean pNcNAfegir() {
+        return afegir();
+    }
+
+    @Benchmark
+    @Group("pNcN")
+    @GroupThreads(4)
+    public String pNcNTreure() {
+        return treure();
+    }
+}
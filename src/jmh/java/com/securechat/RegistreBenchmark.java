@@ -0,0 +1,89 @@
+package com.securechat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark del cost d'una crida de log des del fil que la fa
+ * Compara el Multifil.log original (síncron) amb el RegistreAsincron
+ *
+ * Executar amb el perfil jmh i el profiler de GC per veure l'assignació per crida
+ * (gc.alloc.rate.norm):
+ *   mvn -Pjmh package
+ *   java -jar target/SecureChat-1.0-SNAPSHOT-jar-with-dependencies.jar RegistreBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegistreBenchmark {
+
+    private static final String MISSATGE = "Missatge afegit a la cua";
+
+    private PrintStream sortidaBuida;
+    private Multifil.RegistreAsincron registre;
+
+    @Setup
+    public void preparar() {
+        sortidaBuida = new PrintStream(OutputStream.nullOutputStream());
+        registre = new Multifil.RegistreAsincron(sortidaBuida);
+    }
+
+    @TearDown
+    public void tancar() {
+        registre.tancar();
+    }
+
+    /**
+     * Còpia del Multifil.log original: formatter, array de colors i
+     * concatenacions nous a cada crida, i escriptura síncrona
+     */
+    @Benchmark
+    @Threads(4)
+    public void logSincronOriginal() {
+        LocalDateTime ara = LocalDateTime.now();
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+        String timestamp = ara.format(formatter);
+        String nomFil = Thread.currentThread().getName();
+
+        String[] colorsDisponibles = {
+                Multifil.Colors.AZUL_BRILLANTE,
+                Multifil.Colors.VERDE_BRILLANTE,
+                Multifil.Colors.AMARILLO_BRILLANTE,
+                Multifil.Colors.MAGENTA_BRILLANTE,
+                Multifil.Colors.CYAN_BRILLANTE,
+                Multifil.Colors.ROJO_BRILLANTE
+        };
+        String colorFil = colorsDisponibles[Math.abs(nomFil.hashCode()) % colorsDisponibles.length];
+
+        String missatgeColorat = Multifil.Colors.colorear(MISSATGE, colorFil);
+        sortidaBuida.println("[" + timestamp + "] [" + nomFil + "] " + missatgeColorat);
+    }
+
+    /**
+     * Crida actual: context del fil en cache i slot preassignat, sense format al fil que fa log
+     */
+    @Benchmark
+    @Threads(4)
+    public void logAsincron() {
+        registre.registrar(MISSATGE);
+    }
+}
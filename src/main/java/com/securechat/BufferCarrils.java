@@ -0,0 +1,547 @@
+package com.securechat;
+
+import static com.securechat.Multifil.log;
+
+import com.securechat.Multifil.CuaCircular;
+import com.securechat.Multifil.MessageBuffer.PoliticaDesbordament;
+import com.securechat.Multifil.NivellLog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import javax.management.ObjectName;
+
+/**
+ * Buffer amb diversos carrils de prioritat
+ *
+ * En un sol FIFO, un missatge de control (confirmacions, presència,
+ * intercanvi de claus) espera darrere de tots els missatges de xat que
+ * ja hi ha a la cua. Aquí cada missatge va al carril que li assigna el
+ * classificador (0 és el més prioritari) i cada carril té la seva pròpia
+ * capacitat: encara que el de dades sigui ple, el de control accepta
+ * missatges i els seus productors no esperen.
+ *
+ * Planificació entre carrils quan el consumidor treu:
+ * - ESTRICTA: sempre del carril més prioritari que tingui missatges.
+ *   El control només espera el missatge que s'està processant, però un
+ *   flux de control continu pot deixar les dades sense servei.
+ * - PONDERADA: torns segons els pesos (p. ex. {8, 1}: fins a 8 de control
+ *   per cada 1 de dades). Cap carril amb missatges es queda sense servei;
+ *   un carril buit cedeix el torn.
+ *
+ * treureLot() tria el carril per a cada missatge del lot, però un missatge
+ * de control que arriba mentre es processa un lot espera que s'acabi:
+ * per a latències baixes de control, lots petits.
+ *
+ * El lock, les esperes i la política de desbordament són els de
+ * MessageBuffer (ControlCua). Amb registrar() cada carril es publica per
+ * JMX i a les mètriques com un MessageBuffer més; la contenció del lock,
+ * els despertars espuris i les esperes del consumidor són del buffer sencer
+ * i surten iguals a tots els carrils.
+ * @param <T> Tipus dels missatges
+ */
+final class BufferCarrils<T> implements CuaMissatges<T> {
+
+    /**
+     * Com es reparteix el consumidor entre els carrils
+     */
+    enum Planificacio {
+        ESTRICTA,   // Sempre el carril més prioritari amb missatges
+        PONDERADA   // Torns proporcionals als pesos
+    }
+
+    // Valor de temps d'espera que vol dir "esperar indefinidament"
+    private static final long SENSE_LIMIT = ControlCua.SENSE_LIMIT;
+
+    private final CuaCircular<T>[] carrils;
+    private final int[] capacitats; // Es poden canviar per JMX; es llegeixen i s'escriuen amb el lock agafat
+    private final int[] pesos;
+    private final Planificacio planificacio;
+    private final PoliticaDesbordament politica;
+    private final ToIntFunction<? super T> classificador;
+
+    private final ControlCua control = new ControlCua(this::midaAproximada);
+    private final ReentrantLock lock = control.lock;
+    private final ControlCua.Espera noBuit = control.esperaBuit();
+    // Una condició per carril: treure de les dades no ha de despertar el control i a l'inrevés
+    private final ControlCua.Espera[] noPle;
+    private final ControlCua.Desbordaments[] desbordaments;
+    // Estat de cada carril per a ControlCua (s'avaluen amb el lock agafat)
+    private final BooleanSupplier hiHaMissatges = this::hiHaMissatges;
+    private final BooleanSupplier[] hiCap;
+    private final Supplier<?>[] treureAntic;
+    private final String[] descripcions; // "Carril i ple", per al log i les excepcions
+    private int total; // Missatges a tots els carrils
+    // PONDERADA: carril del torn actual i quants missatges en pot treure encara
+    private int carrilTorn;
+    private int creditTorn;
+
+    private final HistogramaLatencia[] residencies;
+    private final LongAdder[] acceptats;
+    private final LongAdder[] lliurats;
+
+    private final Carril[] vistes;
+    private ObjectName[] nomsJmx;
+
+    /**
+     * Buffer amb prioritat estricta
+     * @param capacitats Capacitat de cada carril, del més prioritari al menys
+     * @param politica Què fer quan el carril d'un missatge és ple (ABOCAR_A_DISC no hi és admesa)
+     * @param classificador Carril de cada missatge (0 .. capacitats.length - 1)
+     */
+    static <T> BufferCarrils<T> estricta(int[] capacitats, PoliticaDesbordament politica,
+            ToIntFunction<? super T> classificador) {
+        return new BufferCarrils<>(capacitats, null, Planificacio.ESTRICTA, politica, classificador);
+    }
+
+    /**
+     * Buffer amb torns ponderats entre carrils
+     * @param capacitats Capacitat de cada carril, del més prioritari al menys
+     * @param pesos Missatges seguits que es treuen de cada carril quan li toca
+     * @param politica Què fer quan el carril d'un missatge és ple (ABOCAR_A_DISC no hi és admesa)
+     * @param classificador Carril de cada missatge (0 .. capacitats.length - 1)
+     */
+    static <T> BufferCarrils<T> ponderada(int[] capacitats, int[] pesos, PoliticaDesbordament politica,
+            ToIntFunction<? super T> classificador) {
+        return new BufferCarrils<>(capacitats, pesos, Planificacio.PONDERADA, politica, classificador);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferCarrils(int[] capacitats, int[] pesos, Planificacio planificacio, PoliticaDesbordament politica,
+            ToIntFunction<? super T> classificador) {
+        if (capacitats.length == 0) {
+            throw new IllegalArgumentException("Cal almenys un carril");
+        }
+        if (pesos != null && pesos.length != capacitats.length) {
+            throw new IllegalArgumentException("Hi ha " + pesos.length + " pesos per a " + capacitats.length + " carrils");
+        }
+        if (politica == PoliticaDesbordament.ABOCAR_A_DISC) {
+            throw new IllegalArgumentException("ABOCAR_A_DISC no està disponible en un buffer amb carrils");
+        }
+        int nombre = capacitats.length;
+        this.carrils = new CuaCircular[nombre];
+        this.noPle = new ControlCua.Espera[nombre];
+        this.desbordaments = new ControlCua.Desbordaments[nombre];
+        this.hiCap = new BooleanSupplier[nombre];
+        this.treureAntic = new Supplier<?>[nombre];
+        this.descripcions = new String[nombre];
+        this.residencies = new HistogramaLatencia[nombre];
+        this.acceptats = new LongAdder[nombre];
+        this.lliurats = new LongAdder[nombre];
+        this.vistes = new BufferCarrils.Carril[nombre];
+        this.capacitats = capacitats.clone();
+        for (int i = 0; i < nombre; i++) {
+            if (capacitats[i] <= 0 || (pesos != null && pesos[i] <= 0)) {
+                throw new IllegalArgumentException("Capacitat i pes del carril " + i + " han de ser positius");
+            }
+            int carril = i;
+            carrils[i] = new CuaCircular<>(capacitats[i]);
+            noPle[i] = control.esperaPle();
+            desbordaments[i] = new ControlCua.Desbordaments();
+            hiCap[i] = () -> carrils[carril].size() < this.capacitats[carril];
+            treureAntic[i] = () -> treureAntic(carril);
+            descripcions[i] = "Carril " + i + " ple";
+            residencies[i] = new HistogramaLatencia();
+            acceptats[i] = new LongAdder();
+            lliurats[i] = new LongAdder();
+            vistes[i] = new Carril(i);
+        }
+        this.pesos = pesos != null ? pesos.clone() : null;
+        this.planificacio = planificacio;
+        this.politica = politica;
+        this.classificador = classificador;
+        this.creditTorn = pesos != null ? pesos[0] : 0;
+        log(NivellLog.INFO, () -> "BufferCarrils creat amb capacitats " + Arrays.toString(capacitats)
+                + " (" + planificacio + (pesos != null ? " " + Arrays.toString(pesos) : "") + ", " + politica + ")");
+    }
+
+    @Override
+    public boolean afegirMissatge(T missatge) {
+        return afegir(missatge, SENSE_LIMIT);
+    }
+
+    @Override
+    public boolean offer(T missatge, long temps, TimeUnit unitat) {
+        return afegir(missatge, Math.max(0, unitat.toNanos(temps)));
+    }
+
+    /**
+     * @throws IllegalArgumentException si el classificador retorna un carril que no existeix
+     */
+    private boolean afegir(T missatge, long nanos) {
+        int carril = classificador.applyAsInt(missatge);
+        if (carril < 0 || carril >= carrils.length) {
+            throw new IllegalArgumentException("Carril " + carril + " inexistent per a " + missatge);
+        }
+        EsdevenimentsJfr.Encuar esdeveniment = new EsdevenimentsJfr.Encuar();
+        esdeveniment.begin();
+        boolean afegit;
+        control.agafarLock();
+        try {
+            afegit = encuar(carril, missatge, nanos);
+        } finally {
+            lock.unlock();
+        }
+        control.gravar(esdeveniment, afegit ? 1 : 0);
+        return afegit;
+    }
+
+    /**
+     * Posa el missatge al seu carril aplicant la política si és ple. S'ha de cridar amb el lock agafat
+     */
+    private boolean encuar(int carril, T missatge, long nanos) {
+        CuaCircular<T> cua = carrils[carril];
+        if (cua.size() >= capacitats[carril] && !control.desbordar(politica, desbordaments[carril], descripcions[carril],
+                capacitats[carril], missatge, treureAntic[carril], noPle[carril], hiCap[carril], nanos)) {
+            return false;
+        }
+        cua.afegir(missatge, System.nanoTime());
+        total++;
+        acceptats[carril].increment();
+        ControlCua.senyalar(noBuit, 1);
+        return true;
+    }
+
+    /**
+     * Treu el missatge més antic d'un carril ple (DESCARTAR_ANTIC). S'ha de cridar amb el lock agafat
+     */
+    private T treureAntic(int carril) {
+        total--;
+        return carrils[carril].treure();
+    }
+
+    private boolean hiHaMissatges() {
+        return total > 0;
+    }
+
+    /**
+     * Treu el missatge següent segons la planificació; si no n'hi ha cap, espera
+     * @return El missatge, o null si el fil ha estat interromput
+     */
+    T treureMissatge() {
+        return treure(SENSE_LIMIT);
+    }
+
+    /**
+     * Treu el missatge següent esperant com a màxim el temps indicat
+     * @return El missatge, o null si s'ha esgotat el temps o el fil ha estat interromput
+     */
+    T poll(long temps, TimeUnit unitat) {
+        return treure(Math.max(0, unitat.toNanos(temps)));
+    }
+
+    private T treure(long nanos) {
+        EsdevenimentsJfr.Treure esdeveniment = new EsdevenimentsJfr.Treure();
+        esdeveniment.begin();
+        T missatge = null;
+        control.agafarLock();
+        try {
+            if (control.esperar(noBuit, hiHaMissatges, nanos)) {
+                missatge = treureSeguent();
+            }
+        } finally {
+            lock.unlock();
+        }
+        control.gravar(esdeveniment, missatge != null ? 1 : 0);
+        return missatge;
+    }
+
+    /**
+     * Treu fins a max missatges, triant el carril per a cadascun
+     * Si no n'hi ha cap, espera que n'arribi almenys un
+     * @return Llista amb els missatges trets, buida si el fil ha estat interromput
+     */
+    List<T> treureLot(int max) {
+        EsdevenimentsJfr.Treure esdeveniment = new EsdevenimentsJfr.Treure();
+        esdeveniment.begin();
+        List<T> lot;
+        control.agafarLock();
+        try {
+            if (control.esperar(noBuit, hiHaMissatges, SENSE_LIMIT)) {
+                lot = new ArrayList<>(Math.min(max, total));
+                while (lot.size() < max && total > 0) {
+                    lot.add(treureSeguent());
+                }
+            } else {
+                lot = new ArrayList<>(0);
+            }
+        } finally {
+            lock.unlock();
+        }
+        control.gravar(esdeveniment, lot.size());
+        return lot;
+    }
+
+    /**
+     * Treu un missatge del carril que toca. S'ha de cridar amb el lock agafat i total > 0
+     */
+    private T treureSeguent() {
+        int carril = seguentCarril();
+        CuaCircular<T> cua = carrils[carril];
+        T missatge = cua.treure();
+        total--;
+        lliurats[carril].increment();
+        residencies[carril].registrar(System.nanoTime() - cua.getTempsTret());
+        ControlCua.senyalar(noPle[carril], 1);
+        return missatge;
+    }
+
+    private int seguentCarril() {
+        if (planificacio == Planificacio.ESTRICTA) {
+            int carril = 0;
+            while (carrils[carril].isEmpty()) {
+                carril++;
+            }
+            return carril;
+        }
+        // Continuar el torn si queda crèdit i missatges; si no, passar al següent carril amb missatges
+        if (creditTorn == 0 || carrils[carrilTorn].isEmpty()) {
+            do {
+                carrilTorn = (carrilTorn + 1) % carrils.length;
+            } while (carrils[carrilTorn].isEmpty());
+            creditTorn = pesos[carrilTorn];
+        }
+        creditTorn--;
+        return carrilTorn;
+    }
+
+    /**
+     * Canvia la capacitat d'un carril en calent
+     * Si creix, desperta els productors que esperaven; si minva, els missatges
+     * que ja hi són es queden i els productors esperen fins que baixi de la nova capacitat
+     */
+    void redimensionar(int carril, int novaCapacitat) {
+        if (novaCapacitat <= 0) {
+            throw new IllegalArgumentException("La capacitat ha de ser positiva: " + novaCapacitat);
+        }
+        control.agafarLock();
+        try {
+            int anterior = capacitats[carril];
+            capacitats[carril] = novaCapacitat;
+            if (novaCapacitat > anterior) {
+                ControlCua.senyalarTots(noPle[carril]);
+            }
+            log(NivellLog.INFO, () -> "Carril " + carril + " redimensionat: " + anterior + " -> " + novaCapacitat);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publica cada carril per JMX (com.securechat:type=MessageBuffer) i a les
+     * mètriques com a nom-0, nom-1...; el nom també identifica el buffer als
+     * esdeveniments JFR
+     * @throws IllegalStateException si ja s'havia registrat
+     */
+    synchronized void registrar(String nom) {
+        if (nomsJmx != null) {
+            throw new IllegalStateException("El buffer amb carrils ja està registrat");
+        }
+        control.setNom(nom);
+        nomsJmx = new ObjectName[carrils.length];
+        for (int i = 0; i < carrils.length; i++) {
+            String nomCarril = nom + "-" + i;
+            nomsJmx[i] = GestioJmx.registrar(vistes[i], "MessageBuffer", nomCarril);
+            MetriquesHttp.publicar(nomCarril, vistes[i], residencies[i]);
+        }
+    }
+
+    /**
+     * Retira els carrils de JMX i de les mètriques, si s'hi havien publicat
+     */
+    synchronized void desregistrar() {
+        if (nomsJmx == null) {
+            return;
+        }
+        for (int i = 0; i < carrils.length; i++) {
+            GestioJmx.desregistrar(nomsJmx[i]);
+            MetriquesHttp.retirar(vistes[i]);
+        }
+        nomsJmx = null;
+    }
+
+    @Override
+    public PoliticaDesbordament getPolitica() {
+        return politica;
+    }
+
+    Planificacio getPlanificacio() {
+        return planificacio;
+    }
+
+    int getNombreCarrils() {
+        return carrils.length;
+    }
+
+    /**
+     * @return Missatges que esperen al carril
+     */
+    int getMida(int carril) {
+        control.agafarLock();
+        try {
+            return carrils[carril].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mida per als esdeveniments JFR: sense el lock és aproximada
+     */
+    private int midaAproximada() {
+        return total;
+    }
+
+    /**
+     * @return Histograma del temps que passen a la cua els missatges del carril
+     */
+    HistogramaLatencia getResidencia(int carril) {
+        return residencies[carril];
+    }
+
+    long getAcceptats(int carril) {
+        return acceptats[carril].sum();
+    }
+
+    /** @return Missatges del carril descartats o rebutjats per la política de desbordament */
+    long getDescartats(int carril) {
+        ControlCua.Desbordaments comptadors = desbordaments[carril];
+        return comptadors.getDescartatsNous() + comptadors.getDescartatsAntics() + comptadors.getRebutjats();
+    }
+
+    /**
+     * Escriu al log la residència, els descarts i la contenció de cada carril
+     */
+    void informar() {
+        for (int i = 0; i < carrils.length; i++) {
+            int carril = i;
+            log(NivellLog.INFO, () -> "Carril " + carril + ": " + getAcceptats(carril) + " acceptats, "
+                    + getDescartats(carril) + " descartats | Residència: " + residencies[carril].instantania()
+                    + " | Productors bloquejats: " + noPle[carril].getEsperes() + " cops ("
+                    + TimeUnit.NANOSECONDS.toMillis(noPle[carril].getTempsBloquejatNs()) + " ms)");
+        }
+        log(NivellLog.INFO, () -> "Consumidor: buit " + noBuit.getEsperes() + " cops ("
+                + TimeUnit.NANOSECONDS.toMillis(noBuit.getTempsBloquejatNs()) + " ms), lock ocupat "
+                + control.getContencionsLock() + " cops (" + TimeUnit.NANOSECONDS.toMicros(control.getTempsEsperaLockNs())
+                + " µs), despertars espuris " + control.getDespertarsEspuris());
+    }
+
+    /**
+     * Un carril vist com un MessageBuffer, per JMX i per a les mètriques
+     */
+    private final class Carril implements MessageBufferMXBean {
+        private final int index;
+
+        Carril(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int getMidaCua() {
+            return getMida(index);
+        }
+
+        @Override
+        public int getCapacitat() {
+            control.agafarLock();
+            try {
+                return capacitats[index];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void redimensionar(int novaCapacitat) {
+            BufferCarrils.this.redimensionar(index, novaCapacitat);
+        }
+
+        @Override
+        public long getMidaDisc() {
+            return 0;
+        }
+
+        @Override
+        public long getAbocatsADisc() {
+            return 0;
+        }
+
+        @Override
+        public long getAcceptats() {
+            return acceptats[index].sum();
+        }
+
+        @Override
+        public long getLliurats() {
+            return lliurats[index].sum();
+        }
+
+        @Override
+        public long getRebutjats() {
+            return desbordaments[index].getRebutjats();
+        }
+
+        @Override
+        public long getDescartatsNous() {
+            return desbordaments[index].getDescartatsNous();
+        }
+
+        @Override
+        public long getDescartatsAntics() {
+            return desbordaments[index].getDescartatsAntics();
+        }
+
+        @Override
+        public long getBloquejats() {
+            return noPle[index].getEsperes();
+        }
+
+        @Override
+        public long getTempsBloquejatPleNs() {
+            return noPle[index].getTempsBloquejatNs();
+        }
+
+        @Override
+        public int getEsperantsPle() {
+            return noPle[index].getEsperants();
+        }
+
+        // Del buffer sencer: el consumidor espera qualsevol carril
+
+        @Override
+        public long getEsperesBuit() {
+            return noBuit.getEsperes();
+        }
+
+        @Override
+        public long getTempsBloquejatBuitNs() {
+            return noBuit.getTempsBloquejatNs();
+        }
+
+        @Override
+        public int getEsperantsBuit() {
+            return noBuit.getEsperants();
+        }
+
+        @Override
+        public long getContencionsLock() {
+            return control.getContencionsLock();
+        }
+
+        @Override
+        public long getTempsEsperaLockNs() {
+            return control.getTempsEsperaLockNs();
+        }
+
+        @Override
+        public long getDespertarsEspuris() {
+            return control.getDespertarsEspuris();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.securechat;
+
+import static com.securechat.Multifil.log;
+
+import com.securechat.Multifil.MessageBuffer;
+import com.securechat.Multifil.MessageBuffer.ModeCua;
+import com.securechat.Multifil.MessageBuffer.PoliticaDesbordament;
+import com.securechat.Multifil.NivellLog;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import javax.management.ObjectName;
+
+/**
+ * Buffer repartit en N particions independents per conversa
+ *
+ * Amb un sol MessageBuffer tots els productors i el processador es
+ * disputen el mateix lock. Aquí cada missatge va a la partició que toca
+ * segons la clau de la seva conversa (Missatge::getConversa) i cada
+ * partició és un MessageBuffer amb el seu propi fil consumidor:
+ * - Els missatges d'una conversa sempre cauen a la mateixa partició i
+ *   els processa un sol fil, en l'ordre en què han arribat
+ * - Converses diferents es processen en paral·lel, sense compartir cap lock
+ *
+ * Una conversa molt activa no es pot repartir: si totes les claus cauen a
+ * la mateixa partició, no s'hi guanya res respecte d'un sol buffer.
+ * @param <T> Tipus dels missatges
+ */
+final class BufferParticionat<T> implements CuaMissatges<T> {
+    // Missatges que treu cada consumidor de la seva partició d'un sol cop
+    private static final int MIDA_LOT = 64;
+
+    private final MessageBuffer<T>[] particions;
+    private final ToIntFunction<? super T> clau;
+    private final AtomicLongArray processats;
+
+    private String nom;
+    private Thread[] consumidors;
+    private volatile boolean actiu;
+    private ObjectName[] nomsJmx;
+
+    /**
+     * Constructor amb una partició per processador disponible, en mode MONITOR i BLOQUEJAR
+     * @param capacitatPerParticio Capacitat de cada partició
+     * @param clau Clau de la conversa de cada missatge
+     */
+    BufferParticionat(int capacitatPerParticio, ToIntFunction<? super T> clau) {
+        this(Runtime.getRuntime().availableProcessors(), capacitatPerParticio,
+                ModeCua.MONITOR, PoliticaDesbordament.BLOQUEJAR, clau);
+    }
+
+    /**
+     * Constructor del buffer particionat
+     * @param nombreParticions Nombre de particions (i de fils consumidors)
+     * @param capacitatPerParticio Capacitat de cada partició
+     * @param mode Implementació de la cua de cada partició
+     * @param politica Política de desbordament de cada partició (ABOCAR_A_DISC no hi és admesa)
+     * @param clau Clau de la conversa de cada missatge
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferParticionat(int nombreParticions, int capacitatPerParticio, ModeCua mode, PoliticaDesbordament politica,
+            ToIntFunction<? super T> clau) {
+        if (nombreParticions <= 0) {
+            throw new IllegalArgumentException("Cal almenys una partició: " + nombreParticions);
+        }
+        if (politica == PoliticaDesbordament.ABOCAR_A_DISC) {
+            // Caldria un fitxer i un codec per partició
+            throw new IllegalArgumentException("ABOCAR_A_DISC no està disponible en un buffer particionat");
+        }
+        this.particions = new MessageBuffer[nombreParticions];
+        for (int i = 0; i < nombreParticions; i++) {
+            particions[i] = new MessageBuffer<>(capacitatPerParticio, mode, politica);
+        }
+        this.clau = clau;
+        this.processats = new AtomicLongArray(nombreParticions);
+    }
+
+    /**
+     * Arrenca un fil consumidor per partició i les publica per JMX i a les mètriques
+     * com a nom-0, nom-1...
+     * @param nom Nom del buffer; també dona nom als fils (Processador-nom-i)
+     * @param processador Què fer amb cada missatge; s'hi crida des del fil de la seva partició
+     * @throws IllegalStateException si ja s'havia arrencat (encara que ja s'hagi aturat)
+     */
+    synchronized void iniciar(String nom, Consumer<? super T> processador) {
+        if (consumidors != null) {
+            throw new IllegalStateException("El buffer particionat " + this.nom + " ja s'ha arrencat");
+        }
+        this.nom = nom;
+        actiu = true;
+        consumidors = new Thread[particions.length];
+        nomsJmx = new ObjectName[particions.length];
+        for (int i = 0; i < particions.length; i++) {
+            int particio = i;
+            String nomParticio = nom + "-" + i;
+            particions[i].registrarJmx(nomParticio);
+            MetriquesHttp.publicar(nomParticio, particions[i]);
+            consumidors[i] = new Thread(() -> consumir(particio, processador), "Processador-" + nomParticio);
+            nomsJmx[i] = GestioJmx.registrar(new GestioJmx.Processador(consumidors[i], () -> processats.get(particio)),
+                    "Processador", nomParticio);
+            consumidors[i].start();
+        }
+        log(NivellLog.INFO, "Buffer {} repartit en {} particions", nom, particions.length);
+    }
+
+    private void consumir(int particio, Consumer<? super T> processador) {
+        MessageBuffer<T> buffer = particions[particio];
+        while (actiu) {
+            List<T> lot = buffer.treureLot(MIDA_LOT);
+            for (T missatge : lot) {
+                try {
+                    processador.accept(missatge);
+                } catch (RuntimeException e) {
+                    // Un missatge defectuós no ha d'aturar tota la partició
+                    log(NivellLog.ERROR, "Error processant {}: {}", missatge, e);
+                }
+            }
+            processats.addAndGet(particio, lot.size());
+        }
+    }
+
+    /**
+     * Atura els consumidors i retira les particions de JMX i de les mètriques
+     * Els consumidors acaben el lot que tenen entre mans; els missatges que
+     * quedin a les particions no es processen
+     */
+    synchronized void aturar() {
+        if (!actiu) {
+            return;
+        }
+        // Sense interrompre'ls: s'aturen quan tornen a la cua, o els desperta aturarConsumidors()
+        actiu = false;
+        for (MessageBuffer<T> particio : particions) {
+            particio.aturarConsumidors();
+        }
+        try {
+            for (Thread consumidor : consumidors) {
+                consumidor.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log(NivellLog.AVIS, "Interromput esperant els consumidors de {}", nom);
+        }
+        for (int i = 0; i < particions.length; i++) {
+            particions[i].desregistrarJmx();
+            MetriquesHttp.retirar(particions[i]);
+            GestioJmx.desregistrar(nomsJmx[i]);
+        }
+    }
+
+    @Override
+    public boolean afegirMissatge(T missatge) {
+        return particio(missatge).afegirMissatge(missatge);
+    }
+
+    @Override
+    public boolean offer(T missatge, long temps, TimeUnit unitat) {
+        return particio(missatge).offer(missatge, temps, unitat);
+    }
+
+    @Override
+    public PoliticaDesbordament getPolitica() {
+        return particions[0].getPolitica();
+    }
+
+    private MessageBuffer<T> particio(T missatge) {
+        return particions[index(clau.applyAsInt(missatge), particions.length)];
+    }
+
+    /**
+     * Partició d'una clau; es barregen els bits perquè claus seqüencials o
+     * múltiples del nombre de particions no s'amunteguin
+     */
+    static int index(int clau, int nombreParticions) {
+        int barrejada = clau * 0x9E3779B9; // Hash de Fibonacci (2^32 / phi)
+        return Math.floorMod(barrejada ^ (barrejada >>> 16), nombreParticions);
+    }
+
+    int getNombreParticions() {
+        return particions.length;
+    }
+
+    /**
+     * @return Missatges processats pels consumidors de totes les particions
+     */
+    long getProcessats() {
+        long total = 0;
+        for (int i = 0; i < particions.length; i++) {
+            total += processats.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Escriu al log la càrrega, la residència i la contenció de cada partició
+     */
+    void informar() {
+        for (int i = 0; i < particions.length; i++) {
+            MessageBuffer<T> particio = particions[i];
+            int index = i;
+            log(NivellLog.INFO, () -> "Partició " + index + ": " + processats.get(index) + " processats"
+                    + " | Residència: " + particio.getResidencia().instantania()
+                    + " | Contenció: " + particio.resumContencio());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.securechat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client bloquejant del protocol de trames (CodecTrama)
+ * Pensat per a demostracions i proves per loopback: un fil per client
+ * No és segur entre fils
+ */
+final class ClientTrames implements Closeable {
+    private final SocketChannel canal;
+    // D'on llegeix rebre(): el canal, o amb temps màxim el flux del seu socket,
+    // perquè un SocketChannel bloquejant no respecta SO_TIMEOUT
+    private final ReadableByteChannel entrada;
+    private final CodecTrama codec = new CodecTrama();
+    private final ByteBuffer escriptura = PoolBuffers.COMPARTIT.obtenir(CodecTrama.MIDA_MAXIMA_TRAMA);
+    // Entre crides està en mode lectura, amb la trama actual a la posició
+    private final ByteBuffer lectura = PoolBuffers.COMPARTIT.obtenir(CodecTrama.MIDA_MAXIMA_TRAMA);
+    private int midaActual; // Mida de la trama rebuda per rebre(), 0 si no n'hi ha cap
+
+    /**
+     * Obre la connexió amb el servidor; rebre() espera indefinidament
+     * @param adreca Adreça del servidor
+     * @throws IOException si no es pot connectar
+     */
+    ClientTrames(InetSocketAddress adreca) throws IOException {
+        this(adreca, 0);
+    }
+
+    /**
+     * Obre la connexió amb el servidor amb un temps màxim per a cada rebre()
+     * @param adreca Adreça del servidor
+     * @param tempsMaximMs Temps màxim d'espera de rebre() en ms, 0 per esperar indefinidament
+     * @throws IOException si no es pot connectar
+     */
+    ClientTrames(InetSocketAddress adreca, int tempsMaximMs) throws IOException {
+        try {
+            this.canal = SocketChannel.open(adreca);
+        } catch (IOException e) {
+            // Sense connexió no hi haurà close(): retornar ja els buffers
+            PoolBuffers.COMPARTIT.alliberar(escriptura);
+            PoolBuffers.COMPARTIT.alliberar(lectura);
+            throw e;
+        }
+        canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (tempsMaximMs > 0) {
+            canal.socket().setSoTimeout(tempsMaximMs);
+            entrada = Channels.newChannel(canal.socket().getInputStream());
+        } else {
+            entrada = canal;
+        }
+        lectura.flip();
+    }
+
+    /**
+     * Envia una trama i espera que el socket l'hagi acceptat sencera
+     * @throws IllegalArgumentException si el contingut no hi cap en una trama
+     */
+    void enviar(byte tipus, int sala, long seq, CharSequence contingut) throws IOException {
+        escriptura.clear();
+        if (!codec.codificar(escriptura, tipus, 0, sala, seq, contingut)) {
+            throw new IllegalArgumentException("Contingut massa llarg per a una trama: " + contingut.length());
+        }
+        escriptura.flip();
+        while (escriptura.hasRemaining()) {
+            canal.write(escriptura);
+        }
+    }
+
+    /**
+     * Espera la següent trama del servidor
+     * Els camps es llegeixen després amb tipus(), remitent(), sala(), seq() i contingut()
+     * @return false si el servidor ha tancat la connexió
+     * @throws SocketTimeoutException si no ha arribat sencera dins del temps màxim
+     */
+    boolean rebre() throws IOException {
+        lectura.position(lectura.position() + midaActual);
+        // Sense trama actual fins que n'arribi una de sencera: si s'esgota el temps,
+        // el que ja s'ha rebut es queda al buffer per a la crida següent
+        midaActual = 0;
+        int mida;
+        while ((mida = CodecTrama.midaTrama(lectura)) < 0) {
+            lectura.compact();
+            int llegits;
+            try {
+                llegits = entrada.read(lectura);
+            } finally {
+                lectura.flip();
+            }
+            if (llegits < 0) {
+                return false;
+            }
+        }
+        midaActual = mida;
+        return true;
+    }
+
+    byte tipus() {
+        return CodecTrama.tipus(lectura);
+    }
+
+    int remitent() {
+        return CodecTrama.remitent(lectura);
+    }
+
+    int sala() {
+        return CodecTrama.sala(lectura);
+    }
+
+    long seq() {
+        return CodecTrama.seq(lectura);
+    }
+
+    String contingut() {
+        return codec.contingut(lectura).toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            canal.close();
+        } finally {
+            PoolBuffers.COMPARTIT.alliberar(escriptura);
+            PoolBuffers.COMPARTIT.alliberar(lectura);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.securechat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Format binari de les trames del protocol de xat
+ *
+ *   [longitud:int][tipus:byte][remitent:int][sala:int][seq:long][contingut:UTF-8]
+ *
+ * La longitud compta els bytes que la segueixen (capçalera + contingut).
+ * Tots els camps van en ordre de xarxa (big-endian), el per defecte de ByteBuffer.
+ *
+ * Les trames es llegeixen i s'escriuen directament sobre els ByteBuffers
+ * (directes) dels sockets amb accessos absoluts, sense byte[] ni Strings
+ * intermedis. Cada instància reutilitza el seu codificador i el seu
+ * CharBuffer: no és segura entre fils, cal una per fil.
+ */
+final class CodecTrama {
+    static final int MIDA_LONGITUD = 4;
+    // tipus + remitent + sala + seq
+    static final int MIDA_CAPCALERA = 1 + 4 + 4 + 8;
+    // Trama més gran acceptada, comptant-hi la longitud
+    static final int MIDA_MAXIMA_TRAMA = 8 * 1024;
+    static final int MIDA_MAXIMA_CONTINGUT = MIDA_MAXIMA_TRAMA - MIDA_LONGITUD - MIDA_CAPCALERA;
+
+    // Tipus de trama
+    static final byte TIPUS_MISSATGE = 1;  // Client -> servidor: missatge de xat; servidor -> membres d'una sala
+    static final byte TIPUS_RESPOSTA = 2;  // Servidor -> client
+    static final byte TIPUS_UNIR = 3;      // Client -> servidor: entrar a la sala; es respon amb TIPUS_RESPOSTA
+    static final byte TIPUS_SORTIR = 4;    // Client -> servidor: sortir de la sala
+
+    // Posició de cada camp des de l'inici de la trama
+    private static final int OFFSET_TIPUS = MIDA_LONGITUD;
+    private static final int OFFSET_REMITENT = OFFSET_TIPUS + 1;
+    private static final int OFFSET_SALA = OFFSET_REMITENT + 4;
+    private static final int OFFSET_SEQ = OFFSET_SALA + 4;
+    private static final int OFFSET_CONTINGUT = OFFSET_SEQ + 8;
+
+    private final CharsetEncoder codificador = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetDecoder descodificador = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // En UTF-8 cada caràcter ocupa almenys un byte: el contingut més llarg hi cap sempre
+    private final CharBuffer text = CharBuffer.allocate(MIDA_MAXIMA_CONTINGUT);
+
+    /**
+     * Escriu una trama a partir de la posició actual de desti
+     * @param desti Buffer en mode escriptura
+     * @param contingut Text de la trama; si és un CharBuffer no es copia
+     * @return false si la trama no hi cap (desti queda com estava)
+     */
+    boolean codificar(ByteBuffer desti, byte tipus, int remitent, int sala, long seq, CharSequence contingut) {
+        int inici = desti.position();
+        int limit = desti.limit();
+        if (desti.remaining() < OFFSET_CONTINGUT) {
+            return false;
+        }
+        // No deixar passar mai una trama més gran del màxim, encara que el desti sigui més gran
+        desti.position(inici + OFFSET_CONTINGUT).limit(Math.min(limit, inici + MIDA_MAXIMA_TRAMA));
+
+        CharBuffer font = contingut instanceof CharBuffer
+                ? ((CharBuffer) contingut).duplicate()
+                : CharBuffer.wrap(contingut);
+        codificador.reset();
+        CoderResult resultat = codificador.encode(font, desti, true);
+        if (!resultat.isOverflow()) {
+            resultat = codificador.flush(desti);
+        }
+        desti.limit(limit);
+        if (resultat.isOverflow()) {
+            desti.position(inici);
+            return false;
+        }
+
+        desti.putInt(inici, desti.position() - inici - MIDA_LONGITUD)
+                .put(inici + OFFSET_TIPUS, tipus)
+                .putInt(inici + OFFSET_REMITENT, remitent)
+                .putInt(inici + OFFSET_SALA, sala)
+                .putLong(inici + OFFSET_SEQ, seq);
+        return true;
+    }
+
+    /**
+     * Mida de la trama que comença a la posició actual de font
+     * @param font Buffer en mode lectura
+     * @return Mida total de la trama, o -1 si encara no ha arribat sencera
+     * @throws ProtocolException si la longitud declarada no és vàlida
+     */
+    static int midaTrama(ByteBuffer font) throws ProtocolException {
+        if (font.remaining() < MIDA_LONGITUD) {
+            return -1;
+        }
+        int longitud = font.getInt(font.position());
+        if (longitud < MIDA_CAPCALERA || longitud > MIDA_MAXIMA_TRAMA - MIDA_LONGITUD) {
+            throw new ProtocolException("Longitud de trama invàlida: " + longitud);
+        }
+        int mida = MIDA_LONGITUD + longitud;
+        return font.remaining() >= mida ? mida : -1;
+    }
+
+    // Accessors als camps de la trama a la posició actual de font (no l'avancen)
+
+    static byte tipus(ByteBuffer font) {
+        return font.get(font.position() + OFFSET_TIPUS);
+    }
+
+    static int remitent(ByteBuffer font) {
+        return font.getInt(font.position() + OFFSET_REMITENT);
+    }
+
+    static int sala(ByteBuffer font) {
+        return font.getInt(font.position() + OFFSET_SALA);
+    }
+
+    static long seq(ByteBuffer font) {
+        return font.getLong(font.position() + OFFSET_SEQ);
+    }
+
+    /**
+     * Descodifica el contingut de la trama a la posició actual de font
+     * No avança font; el resultat és vàlid fins a la següent crida
+     * @param font Buffer en mode lectura amb una trama sencera (midaTrama > 0)
+     * @return El contingut, en un CharBuffer reutilitzat
+     */
+    CharBuffer contingut(ByteBuffer font) {
+        int posicio = font.position();
+        int limit = font.limit();
+        font.limit(posicio + MIDA_LONGITUD + font.getInt(posicio)).position(posicio + OFFSET_CONTINGUT);
+
+        text.clear();
+        descodificador.reset();
+        descodificador.decode(font, text, true);
+        descodificador.flush(text);
+
+        font.limit(limit).position(posicio);
+        return text.flip();
+    }
+}
@@ -0,0 +1,313 @@
+package com.securechat;
+
+import static com.securechat.Multifil.log;
+
+import com.securechat.Multifil.MessageBuffer.PoliticaDesbordament;
+import com.securechat.Multifil.NivellLog;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Lock, esperes i política de desbordament d'una cua acotada, amb els seus comptadors
+ *
+ * MessageBuffer i BufferCarrils hi deleguen tot el que no depèn de com
+ * guarden els missatges:
+ * - Agafar el lock mesurant quant s'ha esperat si estava ocupat
+ * - Esperar a una condició (indefinidament o amb límit), comptant les
+ *   esperes, el temps bloquejat i els despertars espuris, i gravant
+ *   l'esdeveniment JFR de bloqueig
+ * - Decidir què fer amb un missatge que no hi cap segons la política
+ *
+ * L'estat de la cua hi entra amb lambdes que s'avaluen amb el lock agafat.
+ */
+final class ControlCua {
+    // Valor de temps d'espera que vol dir "esperar indefinidament"
+    static final long SENSE_LIMIT = -1L;
+
+    /**
+     * Una condició del lock amb els fils que hi esperen i les seves esperes
+     */
+    static final class Espera {
+        private final Condition condicio;
+        private final boolean ple; // Esperes de productors (cua plena) o de consumidors (cua buida)
+        // Es modifica amb el lock agafat, però és volatile perquè el mode anell
+        // el consulta sense lock per saber si cal despertar ningú
+        private volatile int esperants;
+        private final LongAdder esperes = new LongAdder();
+        private final LongAdder tempsBloquejat = new LongAdder();
+
+        private Espera(Condition condicio, boolean ple) {
+            this.condicio = condicio;
+            this.ple = ple;
+        }
+
+        /** @return Fils esperant ara mateix */
+        int getEsperants() {
+            return esperants;
+        }
+
+        /** @return Cops que un fil ha hagut d'esperar */
+        long getEsperes() {
+            return esperes.sum();
+        }
+
+        /** @return Temps total (ns) que els fils hi han estat bloquejats */
+        long getTempsBloquejatNs() {
+            return tempsBloquejat.sum();
+        }
+    }
+
+    /**
+     * Missatges perduts per la política de desbordament
+     */
+    static final class Desbordaments {
+        private final LongAdder descartatsNous = new LongAdder();
+        private final LongAdder descartatsAntics = new LongAdder();
+        private final LongAdder rebutjats = new LongAdder();
+
+        /** @return Missatges nous descartats per DESCARTAR_NOU */
+        long getDescartatsNous() {
+            return descartatsNous.sum();
+        }
+
+        /** @return Missatges antics descartats per DESCARTAR_ANTIC */
+        long getDescartatsAntics() {
+            return descartatsAntics.sum();
+        }
+
+        /** @return Intents d'afegir rebutjats amb excepció per REBUTJAR */
+        long getRebutjats() {
+            return rebutjats.sum();
+        }
+
+        /**
+         * Compta un missatge nou que no s'ha pogut guardar (també quan falla l'abocament a disc)
+         */
+        void descartarNou(String cua, Object missatge) {
+            descartatsNous.increment();
+            log(NivellLog.AVIS, "{}! Missatge descartat: '{}'", cua, missatge);
+        }
+
+        void descartarAntic(String cua, Object missatgeVell) {
+            descartatsAntics.increment();
+            log(NivellLog.AVIS, "{}! Descartat el missatge més antic: '{}'", cua, missatgeVell);
+        }
+
+        /**
+         * @throws IllegalStateException sempre
+         */
+        void rebutjar(String cua, int capacitat) {
+            rebutjats.increment();
+            throw new IllegalStateException(cua + " (capacitat " + capacitat + ")");
+        }
+    }
+
+    final ReentrantLock lock = new ReentrantLock();
+    private final IntSupplier mida; // Als esdeveniments JFR; sense el lock és aproximada
+    // Nom de la cua als esdeveniments JFR, o null
+    private volatile String nom;
+
+    // Cops que un fil s'ha despertat i la cua seguia plena/buida (protegit pel lock)
+    private long despertarsEspuris;
+    private final LongAdder contencionsLock = new LongAdder();
+    private final LongAdder tempsEsperaLock = new LongAdder();
+
+    /**
+     * @param mida Missatges a la cua, per als esdeveniments JFR
+     */
+    ControlCua(IntSupplier mida) {
+        this.mida = mida;
+    }
+
+    /**
+     * Crea una condició per a productors que esperen espai
+     */
+    Espera esperaPle() {
+        return new Espera(lock.newCondition(), true);
+    }
+
+    /**
+     * Crea una condició per a consumidors que esperen missatges
+     */
+    Espera esperaBuit() {
+        return new Espera(lock.newCondition(), false);
+    }
+
+    /**
+     * Agafa el lock mesurant quant s'ha hagut d'esperar si estava ocupat
+     * Camí ràpid amb tryLock: si està lliure no es llegeix cap rellotge
+     */
+    void agafarLock() {
+        if (lock.tryLock()) {
+            return;
+        }
+        long inici = System.nanoTime();
+        lock.lock();
+        contencionsLock.increment();
+        tempsEsperaLock.add(System.nanoTime() - inici);
+    }
+
+    /**
+     * Aplica la política a un missatge que no hi cap. S'ha de cridar amb el lock agafat
+     * ABOCAR_A_DISC l'ha de resoldre la cua abans: aquí s'hi espera com amb BLOQUEJAR
+     * @param cua Descripció per al log i l'excepció ("Cua plena", "Carril 1 ple"...)
+     * @param treureAntic Treu el missatge més antic (DESCARTAR_ANTIC)
+     * @param hiCap Si ja hi ha lloc per al missatge (BLOQUEJAR)
+     * @param nanos Temps màxim d'espera, o SENSE_LIMIT
+     * @return true si ara hi ha lloc per al missatge
+     * @throws IllegalStateException amb REBUTJAR
+     */
+    boolean desbordar(PoliticaDesbordament politica, Desbordaments comptadors, String cua, int capacitat,
+            Object missatge, Supplier<?> treureAntic, Espera noPle, BooleanSupplier hiCap, long nanos) {
+        switch (politica) {
+            case DESCARTAR_NOU:
+                comptadors.descartarNou(cua, missatge);
+                return false;
+            case DESCARTAR_ANTIC:
+                comptadors.descartarAntic(cua, treureAntic.get());
+                return true;
+            case REBUTJAR:
+                comptadors.rebutjar(cua, capacitat);
+                return false;
+            default:
+                return esperar(noPle, hiCap, nanos);
+        }
+    }
+
+    /**
+     * Espera a la condició fins que fet retorni true. S'ha de cridar amb el lock agafat
+     * fet s'avalua abans de dormir i després de cada despertar; pot fer l'operació
+     * que s'esperava (p. ex. oferir a l'anell), i llavors no es torna a cridar
+     * El comptador d'esperants s'incrementa abans del primer intent: qui canviï
+     * l'estat després sempre ens veurà i senyalarà
+     * @param nanos Temps màxim d'espera, o SENSE_LIMIT
+     * @return false si s'ha esgotat el temps o el fil ha estat interromput
+     */
+    boolean esperar(Espera espera, BooleanSupplier fet, long nanos) {
+        espera.esperants++;
+        try {
+            if (fet.getAsBoolean()) {
+                return true;
+            }
+            espera.esperes.increment();
+            long inici = System.nanoTime();
+            EsdevenimentsJfr.EsdevenimentBuffer esdeveniment = espera.ple
+                    ? new EsdevenimentsJfr.BloqueigPle() : new EsdevenimentsJfr.BloqueigBuit();
+            esdeveniment.begin();
+            try {
+                while (true) {
+                    try {
+                        nanos = esperarCondicio(espera.condicio, nanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        log(NivellLog.AVIS, "Error en esperar: {}", e.getMessage());
+                        return false;
+                    }
+                    if (nanos == 0) {
+                        return fet.getAsBoolean();
+                    }
+                    if (fet.getAsBoolean()) {
+                        return true;
+                    }
+                    despertarsEspuris++;
+                }
+            } finally {
+                espera.tempsBloquejat.add(System.nanoTime() - inici);
+                gravar(esdeveniment, 0);
+            }
+        } finally {
+            espera.esperants--;
+        }
+    }
+
+    /**
+     * Espera a la condició indefinidament o com a màxim nanos
+     * @return SENSE_LIMIT si l'espera és indefinida, o els nanos que queden (0 si s'han esgotat)
+     */
+    private static long esperarCondicio(Condition condicio, long nanos) throws InterruptedException {
+        if (nanos == SENSE_LIMIT) {
+            condicio.await();
+            return SENSE_LIMIT;
+        }
+        return nanos <= 0 ? 0 : Math.max(0, condicio.awaitNanos(nanos));
+    }
+
+    /**
+     * Desperta com a màxim 'quants' fils de la condició, i cap si no n'hi ha d'esperant
+     * S'ha de cridar amb el lock agafat
+     */
+    static void senyalar(Espera espera, int quants) {
+        for (int i = Math.min(espera.esperants, quants); i > 0; i--) {
+            espera.condicio.signal();
+        }
+    }
+
+    /**
+     * Desperta tots els fils de la condició. S'ha de cridar amb el lock agafat
+     */
+    static void senyalarTots(Espera espera) {
+        espera.condicio.signalAll();
+    }
+
+    /**
+     * Com senyalar(), però sense el lock agafat: només l'agafa si hi ha esperants
+     */
+    void despertar(Espera espera, int quants) {
+        if (espera.esperants > 0 && quants > 0) {
+            agafarLock();
+            try {
+                senyalar(espera, quants);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Tanca un esdeveniment JFR de la cua i el grava si supera el llindar
+     * @param missatges Missatges afegits o trets (0 als bloquejos)
+     */
+    void gravar(EsdevenimentsJfr.EsdevenimentBuffer esdeveniment, int missatges) {
+        esdeveniment.end();
+        if (esdeveniment.shouldCommit()) {
+            esdeveniment.buffer = nom;
+            esdeveniment.missatges = missatges;
+            esdeveniment.midaCua = mida.getAsInt();
+            esdeveniment.commit();
+        }
+    }
+
+    /**
+     * @param nom Nom de la cua als esdeveniments JFR
+     */
+    void setNom(String nom) {
+        this.nom = nom;
+    }
+
+    /** @return Cops que un fil ha trobat el lock ocupat */
+    long getContencionsLock() {
+        return contencionsLock.sum();
+    }
+
+    /** @return Temps total (ns) esperant per agafar el lock */
+    long getTempsEsperaLockNs() {
+        return tempsEsperaLock.sum();
+    }
+
+    /**
+     * @return Cops que un fil s'ha despertat i ha hagut de tornar a esperar
+     */
+    long getDespertarsEspuris() {
+        agafarLock();
+        try {
+            return despertarsEspuris;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.securechat;
+
+import com.securechat.Multifil.MessageBuffer.PoliticaDesbordament;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cua on els productors (clients, ServidorNio) deixen missatges
+ * La implementen el MessageBuffer i els buffers que en combinen diversos
+ * (BufferParticionat), de manera que el servidor no en depèn de cap
+ * @param <T> Tipus dels missatges
+ */
+interface CuaMissatges<T> {
+
+    /**
+     * Afegeix un missatge; si la cua és plena aplica la política de desbordament
+     * @return false si el missatge no s'ha afegit (descartat o fil interromput)
+     * @throws IllegalStateException si la cua és plena i la política és REBUTJAR
+     */
+    boolean afegirMissatge(T missatge);
+
+    /**
+     * Afegeix un missatge esperant com a màxim el temps indicat si la cua és plena
+     * @return false si s'ha esgotat el temps, s'ha descartat o el fil ha estat interromput
+     * @throws IllegalStateException si la cua és plena i la política és REBUTJAR
+     */
+    boolean offer(T missatge, long temps, TimeUnit unitat);
+
+    /**
+     * @return Què es fa amb un missatge que troba la cua plena
+     */
+    PoliticaDesbordament getPolitica();
+}
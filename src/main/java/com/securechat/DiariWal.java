@@ -0,0 +1,618 @@
+package com.securechat;
+
+import static com.securechat.Multifil.log;
+
+import com.securechat.Multifil.CodecDisc;
+import com.securechat.Multifil.NivellLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Diari d'escriptura anticipada (write-ahead log) d'un MessageBuffer
+ *
+ * Cada missatge acceptat pel buffer s'hi anota amb un número de seqüència
+ * i es guarda a disc en segments de només afegir (wal-<primera seq>.seg).
+ * Cada registre és [longitud int][crc32c int][seq long][dades].
+ *
+ * Commit en grup: els productors només copien el registre a un lot en
+ * memòria; un fil propi escriu el lot i fa un sol force() quan ha passat
+ * l'interval de sincronització o el lot arriba al llindar de bytes. Si la
+ * JVM o la màquina cauen, es poden perdre com a molt els missatges
+ * d'aquest últim interval, però no es paga cap fsync per missatge. Si una
+ * escriptura falla, el lot es guarda en memòria i es torna a provar a
+ * cada interval, per davant dels registres que arribin mentrestant.
+ *
+ * Un missatge es dona per consumit quan surt del buffer (un consumidor el
+ * treu o DESCARTAR_ANTIC el descarta). Com que el buffer és FIFO, n'hi ha
+ * prou de guardar la seqüència de l'últim consumit (fitxer consumits.chk)
+ * i esborrar els segments que ja són tots per sota. En obrir el diari es
+ * recuperen els registres no consumits, i un registre escrit a mitges
+ * al final de l'últim segment es talla.
+ *
+ * El consumidor no confirma res: un missatge compta com a consumit en
+ * sortir de la cua, no quan s'acaba de processar. El diari protegeix els
+ * missatges que esperen a la cua, no els que s'estan processant. Després
+ * d'una caiguda:
+ * - Es poden tornar a lliurar missatges que ja s'havien tret, perquè el
+ *   punt de control es guarda amb el mateix retard que els registres
+ * - Es perden els que un consumidor havia tret i no havia acabat de processar
+ * @param <T> Tipus dels missatges
+ */
+final class DiariWal<T> {
+    private static final int MIDA_CAPCALERA = 2 * Integer.BYTES + Long.BYTES;
+    private static final String PREFIX_SEGMENT = "wal-";
+    private static final String SUFIX_SEGMENT = ".seg";
+    private static final String FITXER_CONSUMITS = "consumits.chk";
+    private static final int MIDA_INICIAL_LOT = 64 * 1024;
+
+    private static final long INTERVAL_PER_DEFECTE_MS = 10;
+    private static final int LLINDAR_PER_DEFECTE = 256 * 1024;
+    private static final long MIDA_SEGMENT_PER_DEFECTE = 64L * 1024 * 1024;
+
+    /**
+     * Segment de disc i la seqüència del seu primer registre
+     */
+    private static final class Segment {
+        final long primeraSeq;
+        final Path fitxer;
+
+        Segment(long primeraSeq, Path fitxer) {
+            this.primeraSeq = primeraSeq;
+            this.fitxer = fitxer;
+        }
+    }
+
+    private final Path directori;
+    private final CodecDisc<T> codec;
+    private final long intervalNanos;
+    private final int llindarBytes;
+    private final long midaSegment;
+
+    // Lot que omplen els productors i el que el fil de sincronització torna buit (protegits per this)
+    private ByteBuffer lotActiu = ByteBuffer.allocate(MIDA_INICIAL_LOT);
+    private ByteBuffer lotLliure = ByteBuffer.allocate(MIDA_INICIAL_LOT);
+    private long seguentSeq;
+    private long primeraSeqLot; // Seqüència del primer registre de lotActiu
+    private boolean tancant;
+
+    // Seqüència de l'últim missatge consumit; només l'escriu el buffer, amb el seu lock agafat
+    private volatile long ultimConsumit;
+
+    // Només els toca el fil de sincronització (i obrir/tancar quan no corre)
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final FileChannel canalConsumits;
+    private final ByteBuffer registreConsumits = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+    private final CRC32C crc = new CRC32C();
+    private FileChannel canalSegment;
+    private long midaSegmentActual;
+    private long consumitGuardat;
+
+    // Dades recuperades en obrir el diari, pendents de lliurar al buffer
+    private List<byte[]> recuperats;
+    // Seqüències dels recuperats, en ordre; si un segment del mig era corrupte hi ha
+    // forats, i consumit() no pot només sumar 1. Null quan ja s'han consumit tots
+    private long[] seqsRecuperats;
+    private int recuperatsConsumits; // Només el toca el buffer, amb el seu lock agafat
+
+    private final Thread fil;
+    private volatile long sincronitzacions;
+    private volatile long bytesEscrits;
+    private volatile long errors;
+    private final HistogramaLatencia latenciaSincronitzacio = new HistogramaLatencia();
+
+    private DiariWal(Path directori, CodecDisc<T> codec, long intervalNanos, int llindarBytes, long midaSegment)
+            throws IOException {
+        this.directori = directori;
+        this.codec = codec;
+        this.intervalNanos = intervalNanos;
+        this.llindarBytes = llindarBytes;
+        this.midaSegment = midaSegment;
+        Files.createDirectories(directori);
+        this.canalConsumits = FileChannel.open(directori.resolve(FITXER_CONSUMITS),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recuperarDeDisc();
+        this.fil = new Thread(this::sincronitzarEnBucle, "Diari-WAL");
+        fil.setDaemon(true);
+        fil.start();
+    }
+
+    /**
+     * Obre (o crea) un diari amb sincronització cada 10 ms o cada 256 KB i segments de 64 MB
+     * @param directori Directori dels segments; un sol buffer per directori
+     * @param codec Serialització dels missatges
+     * @throws IOException si no es pot crear el directori o llegir-ne els segments
+     */
+    static <T> DiariWal<T> obrir(Path directori, CodecDisc<T> codec) throws IOException {
+        return obrir(directori, codec, INTERVAL_PER_DEFECTE_MS, TimeUnit.MILLISECONDS,
+                LLINDAR_PER_DEFECTE, MIDA_SEGMENT_PER_DEFECTE);
+    }
+
+    /**
+     * Obre (o crea) un diari
+     * @param directori Directori dels segments; un sol buffer per directori
+     * @param codec Serialització dels missatges
+     * @param interval Temps màxim que un registre espera el force(), i per tant el que es pot perdre
+     * @param unitat Unitat de l'interval
+     * @param llindarBytes Bytes pendents a partir dels quals se sincronitza sense esperar l'interval
+     * @param midaSegment Mida a partir de la qual es comença un segment nou
+     * @throws IOException si no es pot crear el directori o llegir-ne els segments
+     */
+    static <T> DiariWal<T> obrir(Path directori, CodecDisc<T> codec, long interval, TimeUnit unitat,
+            int llindarBytes, long midaSegment) throws IOException {
+        if (interval <= 0 || llindarBytes <= 0 || midaSegment <= 0) {
+            throw new IllegalArgumentException("L'interval, el llindar i la mida de segment han de ser positius");
+        }
+        return new DiariWal<>(directori, codec, unitat.toNanos(interval), llindarBytes, midaSegment);
+    }
+
+    /**
+     * Anota un missatge acceptat pel buffer; el buffer l'ha de cridar amb el seu
+     * lock agafat, en el mateix ordre en què els missatges entren a la cua
+     */
+    void afegir(T missatge) {
+        byte[] dades = codec.codificar(missatge);
+        synchronized (this) {
+            if (lotActiu.remaining() < MIDA_CAPCALERA + dades.length) {
+                ByteBuffer mesGran = ByteBuffer.allocate(Math.max(2 * lotActiu.capacity(),
+                        lotActiu.position() + MIDA_CAPCALERA + dades.length));
+                lotActiu = mesGran.put(lotActiu.flip());
+            }
+            // El CRC el calcula el fil de sincronització, fora del lock del buffer
+            lotActiu.putInt(dades.length).putInt(0).putLong(seguentSeq++).put(dades);
+            if (lotActiu.position() >= llindarBytes) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Marca com a consumit el missatge més antic encara no consumit; el buffer
+     * l'ha de cridar amb el seu lock agafat cada cop que un missatge surt de la cua
+     */
+    void consumit() {
+        if (seqsRecuperats == null) {
+            ultimConsumit++;
+            return;
+        }
+        ultimConsumit = seqsRecuperats[recuperatsConsumits++];
+        if (recuperatsConsumits == seqsRecuperats.length) {
+            // Els següents són els nous, que comencen just després de l'últim recuperat
+            seqsRecuperats = null;
+        }
+    }
+
+    /**
+     * Lliura els missatges no consumits que hi havia a disc en obrir el diari
+     * Només el primer cop retorna res: el buffer els ha de posar a la cua abans que cap altre
+     * @return Els missatges en l'ordre en què es van acceptar
+     */
+    List<T> recuperar() {
+        List<T> missatges = new ArrayList<>(recuperats.size());
+        for (byte[] dades : recuperats) {
+            missatges.add(codec.descodificar(ByteBuffer.wrap(dades)));
+        }
+        recuperats = List.of();
+        return missatges;
+    }
+
+    /**
+     * Fa una última sincronització i tanca els fitxers
+     */
+    void tancar() {
+        synchronized (this) {
+            tancant = true;
+            notifyAll();
+        }
+        try {
+            fil.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log(NivellLog.AVIS, "Interromput esperant la sincronització final del diari {}", directori);
+            return;
+        }
+        try {
+            if (canalSegment != null) {
+                canalSegment.close();
+            }
+            canalConsumits.close();
+        } catch (IOException e) {
+            log(NivellLog.ERROR, "Error tancant el diari {}: {}", directori, e.getMessage());
+        }
+        log(NivellLog.INFO, () -> "Diari " + directori + " tancat | " + sincronitzacions + " sincronitzacions, "
+                + bytesEscrits + " bytes | force(): " + latenciaSincronitzacio.instantania());
+    }
+
+    // Fil de sincronització
+
+    private void sincronitzarEnBucle() {
+        boolean ultima = false;
+        boolean fallat = false;
+        while (!ultima) {
+            ByteBuffer lot;
+            long primeraSeq;
+            synchronized (this) {
+                ultima = esperarLot(fallat);
+                lot = lotActiu;
+                primeraSeq = primeraSeqLot;
+                primeraSeqLot = seguentSeq;
+                lotActiu = lotLliure != null ? lotLliure : ByteBuffer.allocate(MIDA_INICIAL_LOT);
+                lotLliure = null;
+            }
+            // Pot anar per davant del que s'escriu ara (missatges encuats i trets durant
+            // aquesta volta): si es perden en una caiguda, ja estaven consumits
+            long consumit = ultimConsumit;
+            fallat = false;
+            if (lot.position() > 0) {
+                try {
+                    escriureLot(lot.flip(), primeraSeq);
+                } catch (IOException e) {
+                    // Fins que no s'escrigui, cap missatge posterior és durable: es torna a provar
+                    fallat = true;
+                    errors++;
+                    log(NivellLog.ERROR, "Error escrivint el diari {}, es tornarà a provar: {}", directori, e.getMessage());
+                }
+            }
+            if (consumit != consumitGuardat) {
+                try {
+                    guardarConsumits(consumit);
+                    esborrarSegmentsConsumits();
+                } catch (IOException e) {
+                    errors++;
+                    log(NivellLog.ERROR, "Error desant el punt de control del diari {}: {}", directori, e.getMessage());
+                }
+            }
+            synchronized (this) {
+                if (fallat) {
+                    retornarLot(lot.position(0), primeraSeq);
+                } else {
+                    lotLliure = lot.clear();
+                }
+            }
+        }
+        if (fallat) {
+            int perduts = lotActiu.position();
+            log(NivellLog.ERROR, "Diari {} tancat amb {} bytes sense escriure", directori, perduts);
+        }
+    }
+
+    /**
+     * Torna un lot que no s'ha pogut escriure a davant dels registres arribats mentrestant
+     * S'ha de cridar amb el monitor agafat
+     */
+    private void retornarLot(ByteBuffer fallat, long primeraSeq) {
+        ByteBuffer nous = lotActiu.flip();
+        ByteBuffer junts = ByteBuffer.allocate(Math.max(MIDA_INICIAL_LOT, fallat.remaining() + nous.remaining()));
+        lotActiu = junts.put(fallat).put(nous);
+        lotLliure = nous.clear();
+        primeraSeqLot = primeraSeq;
+    }
+
+    /**
+     * Espera que el lot arribi al llindar, que passi l'interval o que es tanqui el diari
+     * S'ha de cridar amb el monitor agafat
+     * @param reintentant Si l'última escriptura ha fallat: s'espera l'interval sencer encara que el lot sigui gran
+     * @return true si és l'última volta
+     */
+    private boolean esperarLot(boolean reintentant) {
+        long limit = System.nanoTime() + intervalNanos;
+        try {
+            while (!tancant && (reintentant || lotActiu.position() < llindarBytes)) {
+                long queda = limit - System.nanoTime();
+                if (queda <= 0) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, queda);
+            }
+        } catch (InterruptedException e) {
+            // Ningú interromp aquest fil: si passa, es desa el que hi hagi i s'acaba
+            Thread.currentThread().interrupt();
+            log(NivellLog.AVIS, "Fil del diari {} interromput", directori);
+            return true;
+        }
+        return tancant;
+    }
+
+    /**
+     * Omple els CRC del lot, l'escriu al segment actual (o a un de nou si
+     * l'actual ja és ple) i en fa un sol force()
+     * Si falla, el segment es deixa com estava abans del lot
+     */
+    private void escriureLot(ByteBuffer lot, long primeraSeq) throws IOException {
+        for (int posicio = 0; posicio < lot.limit(); ) {
+            int longitud = lot.getInt(posicio);
+            lot.putInt(posicio + Integer.BYTES, crcRegistre(lot, posicio, longitud));
+            posicio += MIDA_CAPCALERA + longitud;
+        }
+        if (canalSegment == null || (midaSegmentActual > 0 && midaSegmentActual + lot.remaining() > midaSegment)) {
+            obrirSegment(primeraSeq);
+        }
+        int bytes = lot.remaining();
+        try {
+            while (lot.hasRemaining()) {
+                canalSegment.write(lot);
+            }
+            long inici = System.nanoTime();
+            canalSegment.force(false);
+            latenciaSincronitzacio.registrar(System.nanoTime() - inici);
+        } catch (IOException e) {
+            desferEscriptura();
+            throw e;
+        }
+        midaSegmentActual += bytes;
+        bytesEscrits += bytes;
+        sincronitzacions++;
+    }
+
+    /**
+     * Treu del segment actual el que hagi quedat d'un lot que ha fallat; si no,
+     * el lot següent aniria darrere d'un registre tallat i la recuperació, que
+     * s'atura al primer CRC dolent, no el veuria mai
+     * Si no es pot tallar, es tanca el segment i el lot següent en comença un de nou
+     */
+    private void desferEscriptura() {
+        Segment actual = segments.peekLast();
+        try {
+            canalSegment.truncate(midaSegmentActual);
+            canalSegment.position(midaSegmentActual);
+            return;
+        } catch (IOException e) {
+            log(NivellLog.AVIS, "No s'ha pogut tallar el segment {}: {}", actual.fitxer.getFileName(), e.getMessage());
+        }
+        try {
+            canalSegment.close();
+        } catch (IOException e) {
+            log(NivellLog.DEPURACIO, "Error tancant el segment {}: {}", actual.fitxer.getFileName(), e.getMessage());
+        }
+        canalSegment = null;
+        if (midaSegmentActual == 0) {
+            // No té cap registre bo, i el segment nou tindrà el mateix nom
+            segments.removeLast();
+            try {
+                Files.deleteIfExists(actual.fitxer);
+            } catch (IOException e) {
+                log(NivellLog.AVIS, "No s'ha pogut esborrar el segment {}: {}", actual.fitxer.getFileName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * CRC de la seqüència i les dades d'un registre
+     */
+    private int crcRegistre(ByteBuffer lot, int posicio, int longitud) {
+        crc.reset();
+        int inici = posicio + 2 * Integer.BYTES;
+        crc.update(lot.duplicate().limit(inici + Long.BYTES + longitud).position(inici));
+        return (int) crc.getValue();
+    }
+
+    private void obrirSegment(long primeraSeq) throws IOException {
+        if (canalSegment != null) {
+            canalSegment.close(); // Ja té el seu force() fet
+        }
+        Path fitxer = directori.resolve(nomSegment(primeraSeq));
+        canalSegment = FileChannel.open(fitxer, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        midaSegmentActual = 0;
+        segments.addLast(new Segment(primeraSeq, fitxer));
+        // El fitxer nou només existeix del tot quan el directori s'ha desat
+        forceDirectori();
+    }
+
+    private void guardarConsumits(long consumit) throws IOException {
+        registreConsumits.clear();
+        registreConsumits.putLong(consumit);
+        crc.reset();
+        crc.update(registreConsumits.array(), 0, Long.BYTES);
+        registreConsumits.putInt((int) crc.getValue()).flip();
+        while (registreConsumits.hasRemaining()) {
+            // La posició al buffer és la mateixa que al fitxer
+            canalConsumits.write(registreConsumits, registreConsumits.position());
+        }
+        canalConsumits.force(false);
+        consumitGuardat = consumit;
+    }
+
+    /**
+     * Esborra els segments que no tenen cap registre per sobre de l'últim consumit desat
+     * L'actual no s'esborra mai: s'hi continua escrivint
+     */
+    private void esborrarSegmentsConsumits() throws IOException {
+        while (segments.size() > 1) {
+            Segment primer = segments.removeFirst();
+            if (segments.peekFirst().primeraSeq - 1 > consumitGuardat) {
+                segments.addFirst(primer);
+                return;
+            }
+            Files.deleteIfExists(primer.fitxer);
+            log(NivellLog.DEPURACIO, "Segment {} consumit i esborrat", primer.fitxer.getFileName());
+        }
+    }
+
+    private void forceDirectori() {
+        try (FileChannel canal = FileChannel.open(directori, StandardOpenOption.READ)) {
+            canal.force(true);
+        } catch (IOException e) {
+            // Alguns sistemes (Windows) no permeten obrir un directori: no hi ha res a fer
+            log(NivellLog.DEPURACIO, "No s'ha pogut sincronitzar el directori {}: {}", directori, e.getMessage());
+        }
+    }
+
+    // Recuperació
+
+    /**
+     * Llegeix el punt de control i tots els segments, guarda els registres no
+     * consumits i talla un registre escrit a mitges al final de l'últim segment
+     */
+    private void recuperarDeDisc() throws IOException {
+        long consumit = llegirConsumits();
+        List<Path> fitxers = new ArrayList<>();
+        try (DirectoryStream<Path> llistat = Files.newDirectoryStream(directori, PREFIX_SEGMENT + "*" + SUFIX_SEGMENT)) {
+            for (Path fitxer : llistat) {
+                fitxers.add(fitxer);
+            }
+        }
+        // Els noms porten la seqüència amb zeros al davant: l'ordre alfabètic és el de seqüència
+        fitxers.sort(null);
+
+        recuperats = new ArrayList<>();
+        List<Long> seqs = new ArrayList<>();
+        long primeraTrobada = -1;
+        long ultimaTrobada = 0;
+        for (int i = 0; i < fitxers.size(); i++) {
+            Path fitxer = fitxers.get(i);
+            long[] limits = llegirSegment(fitxer, consumit, i == fitxers.size() - 1, seqs);
+            if (Files.size(fitxer) == 0) {
+                // Creat just abans de la caiguda, o tallat del tot: el seu nom el pot tornar a fer servir un segment nou
+                Files.delete(fitxer);
+                continue;
+            }
+            segments.addLast(new Segment(seqDelNom(fitxer), fitxer));
+            if (limits[0] > 0 && primeraTrobada < 0) {
+                primeraTrobada = limits[0];
+            }
+            ultimaTrobada = Math.max(ultimaTrobada, limits[1]);
+        }
+
+        // Sense punt de control vàlid es torna a lliurar tot el que hi hagi
+        ultimConsumit = Math.max(consumit, primeraTrobada > 0 ? primeraTrobada - 1 : 0);
+        if (!seqs.isEmpty()) {
+            seqsRecuperats = seqs.stream().mapToLong(Long::longValue).toArray();
+        }
+        consumitGuardat = consumit;
+        seguentSeq = Math.max(ultimaTrobada, ultimConsumit) + 1;
+        primeraSeqLot = seguentSeq;
+        if (!fitxers.isEmpty()) {
+            log(NivellLog.INFO, () -> "Diari " + directori + ": " + recuperats.size() + " missatges per recuperar de "
+                    + fitxers.size() + " segments (consumits fins a " + ultimConsumit + ")");
+        }
+    }
+
+    /**
+     * Afegeix a recuperats les dades dels registres no consumits, i a seqs la seva seqüència
+     * @return {primera seq, última seq} dels registres vàlids del segment (0 si no n'hi ha)
+     */
+    private long[] llegirSegment(Path fitxer, long consumit, boolean ultim, List<Long> seqs) throws IOException {
+        long primera = 0;
+        long ultima = 0;
+        try (FileChannel canal = FileChannel.open(fitxer, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long mida = canal.size();
+            long posicio = 0;
+            ByteBuffer capcalera = ByteBuffer.allocate(MIDA_CAPCALERA);
+            while (posicio < mida) {
+                capcalera.clear();
+                int longitud = -1;
+                if (llegirComplet(canal, capcalera, posicio)) {
+                    longitud = capcalera.getInt(0);
+                }
+                ByteBuffer registre = null;
+                if (longitud >= 0 && posicio + MIDA_CAPCALERA + longitud <= mida) {
+                    registre = ByteBuffer.allocate(MIDA_CAPCALERA + longitud);
+                    registre.put(capcalera.flip());
+                    llegirComplet(canal, registre, posicio + MIDA_CAPCALERA);
+                    if (crcRegistre(registre, 0, longitud) != capcalera.getInt(Integer.BYTES)) {
+                        registre = null;
+                    }
+                }
+                if (registre == null) {
+                    if (ultim) {
+                        // Escriptura tallada per la caiguda: el que ve darrere no es va arribar a desar
+                        log(NivellLog.AVIS, "Diari {}: registre incomplet a la posició {}, es talla el segment",
+                                fitxer.getFileName(), posicio);
+                        canal.truncate(posicio);
+                        canal.force(true);
+                    } else {
+                        log(NivellLog.ERROR, "Diari {}: registre corrupte a la posició {}, es descarta la resta del segment",
+                                fitxer.getFileName(), posicio);
+                    }
+                    break;
+                }
+                long seq = registre.getLong(2 * Integer.BYTES);
+                if (primera == 0) {
+                    primera = seq;
+                }
+                ultima = seq;
+                if (seq > consumit) {
+                    byte[] dades = new byte[longitud];
+                    registre.get(MIDA_CAPCALERA, dades);
+                    recuperats.add(dades);
+                    seqs.add(seq);
+                }
+                posicio += MIDA_CAPCALERA + longitud;
+            }
+        }
+        return new long[] {primera, ultima};
+    }
+
+    /**
+     * @return false si el fitxer s'acaba abans d'omplir el buffer
+     */
+    private static boolean llegirComplet(FileChannel canal, ByteBuffer desti, long posicio) throws IOException {
+        while (desti.hasRemaining()) {
+            int llegits = canal.read(desti, posicio);
+            if (llegits < 0) {
+                return false;
+            }
+            posicio += llegits;
+        }
+        return true;
+    }
+
+    /**
+     * @return L'últim consumit desat, o 0 si el fitxer no existeix o no és vàlid
+     */
+    private long llegirConsumits() throws IOException {
+        registreConsumits.clear();
+        if (!llegirComplet(canalConsumits, registreConsumits, 0)) {
+            return 0;
+        }
+        crc.reset();
+        crc.update(registreConsumits.array(), 0, Long.BYTES);
+        if ((int) crc.getValue() != registreConsumits.getInt(Long.BYTES)) {
+            log(NivellLog.AVIS, "Diari {}: punt de control invàlid, es recupera tot", directori);
+            return 0;
+        }
+        return registreConsumits.getLong(0);
+    }
+
+    private static String nomSegment(long primeraSeq) {
+        return PREFIX_SEGMENT + String.format("%020d", primeraSeq) + SUFIX_SEGMENT;
+    }
+
+    private static long seqDelNom(Path fitxer) {
+        String nom = fitxer.getFileName().toString();
+        return Long.parseLong(nom.substring(PREFIX_SEGMENT.length(), nom.length() - SUFIX_SEGMENT.length()));
+    }
+
+    // Mètriques
+
+    long getSincronitzacions() {
+        return sincronitzacions;
+    }
+
+    long getBytesEscrits() {
+        return bytesEscrits;
+    }
+
+    /** @return Errors d'escriptura; mentre un lot no s'escriu, ni aquell ni els posteriors són durables */
+    long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return Histograma de la durada de cada force() dels segments
+     */
+    HistogramaLatencia getLatenciaSincronitzacio() {
+        return latenciaSincronitzacio;
+    }
+}
@@ -0,0 +1,162 @@
+package com.securechat;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Esdeveniments de Java Flight Recorder del cicle de vida dels missatges
+ *
+ * Es graven amb -XX:StartFlightRecording (o jcmd JFR.start) al costat dels
+ * de GC i safepoints de la JVM, així que un pic de latència es pot posar
+ * al costat del que feia la JVM en aquell moment.
+ *
+ * Els de durada tenen un llindar per defecte: només es graven les operacions
+ * lentes, i les ràpides es queden en un shouldCommit() que retorna false.
+ * Cap guarda la pila: el fil i el moment ja ho diuen tot. Els llindars es
+ * poden canviar en un fitxer .jfc, p. ex. com.securechat.Encuar#threshold=0 ms.
+ */
+final class EsdevenimentsJfr {
+    private EsdevenimentsJfr() {
+    }
+
+    /**
+     * Base dels esdeveniments d'un MessageBuffer; els camps els omple
+     * el buffer només si l'esdeveniment s'ha de gravar
+     */
+    @Category({"SecureChat", "MessageBuffer"})
+    @StackTrace(false)
+    abstract static class EsdevenimentBuffer extends Event {
+        @Label("Buffer")
+        @Description("Nom amb què s'ha publicat el buffer")
+        String buffer;
+
+        @Label("Missatges")
+        @Description("Missatges afegits o trets per l'operació")
+        int missatges;
+
+        @Label("Mida de la cua")
+        @Description("Missatges a la cua en acabar l'operació")
+        int midaCua;
+    }
+
+    @Name("com.securechat.Encuar")
+    @Label("Encuar missatge")
+    @Description("Afegir un missatge o un lot al buffer, incloses les esperes")
+    @Threshold("1 ms")
+    static final class Encuar extends EsdevenimentBuffer {
+    }
+
+    @Name("com.securechat.Treure")
+    @Label("Treure missatge")
+    @Description("Treure un missatge o un lot del buffer, incloses les esperes")
+    @Threshold("1 ms")
+    static final class Treure extends EsdevenimentBuffer {
+    }
+
+    @Name("com.securechat.BloqueigPle")
+    @Label("Bloqueig amb la cua plena")
+    @Description("Un productor ha esperat que hi hagués espai")
+    @Threshold("1 ms")
+    static final class BloqueigPle extends EsdevenimentBuffer {
+    }
+
+    // Un consumidor sense feina espera sempre: el llindar és més alt
+    @Name("com.securechat.BloqueigBuit")
+    @Label("Bloqueig amb la cua buida")
+    @Description("Un consumidor ha esperat que arribessin missatges")
+    @Threshold("10 ms")
+    static final class BloqueigBuit extends EsdevenimentBuffer {
+    }
+
+    @Name("com.securechat.ConnexioClient")
+    @Label("Connexió de client")
+    @Category({"SecureChat", "Clients"})
+    @StackTrace(false)
+    static final class ConnexioClient extends Event {
+        @Label("Client")
+        int client;
+
+        @Label("Adreça")
+        String adreca;
+    }
+
+    @Name("com.securechat.DesconnexioClient")
+    @Label("Desconnexió de client")
+    @Category({"SecureChat", "Clients"})
+    @StackTrace(false)
+    static final class DesconnexioClient extends Event {
+        @Label("Client")
+        int client;
+
+        @Label("Durada de la sessió")
+        @Timespan(Timespan.NANOSECONDS)
+        long durada;
+    }
+
+    @Name("com.securechat.ProcessamentMissatge")
+    @Label("Processament de missatge")
+    @Description("Un processador del servidor ha atès un missatge")
+    @Category({"SecureChat", "Servidor"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class ProcessamentMissatge extends Event {
+        @Label("Remitent")
+        int remitent;
+
+        @Label("Sala")
+        int sala;
+
+        @Label("Seqüència")
+        long seq;
+
+        @Label("Temps a la cua")
+        @Timespan(Timespan.NANOSECONDS)
+        long tempsACua;
+
+        /**
+         * Tanca l'esdeveniment amb les dades del missatge processat
+         */
+        void acabar(Missatge missatge) {
+            end();
+            if (shouldCommit()) {
+                remitent = missatge.getRemitent();
+                sala = missatge.getSala();
+                seq = missatge.getSeq();
+                tempsACua = missatge.getTempsACua();
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Grava la connexió d'un client
+     * @param adreca Adreça remota; només es converteix a text si l'esdeveniment està actiu
+     */
+    static void connectat(int client, Object adreca) {
+        ConnexioClient esdeveniment = new ConnexioClient();
+        if (esdeveniment.shouldCommit()) {
+            esdeveniment.client = client;
+            esdeveniment.adreca = String.valueOf(adreca);
+            esdeveniment.commit();
+        }
+    }
+
+    /**
+     * Grava la desconnexió d'un client
+     * @param iniciSessio System.nanoTime() de quan es va connectar
+     */
+    static void desconnectat(int client, long iniciSessio) {
+        DesconnexioClient esdeveniment = new DesconnexioClient();
+        if (esdeveniment.shouldCommit()) {
+            esdeveniment.client = client;
+            esdeveniment.durada = System.nanoTime() - iniciSessio;
+            esdeveniment.commit();
+        }
+    }
+}
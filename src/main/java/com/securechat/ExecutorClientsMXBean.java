@@ -0,0 +1,28 @@
+package com.securechat;
+
+/**
+ * Estat del pool de fils dels clients publicat per JMX
+ * (com.securechat:type=ExecutorClients,name=...)
+ */
+public interface ExecutorClientsMXBean {
+
+    /** @return Mida configurada del pool */
+    int getMidaPool();
+
+    /** @return Fils que existeixen ara mateix al pool */
+    int getFils();
+
+    /** @return Fils executant un client */
+    int getActius();
+
+    /** @return Clients esperant un fil lliure */
+    int getEnCua();
+
+    long getCompletats();
+
+    /**
+     * Canvia la mida del pool sense aturar-lo
+     * @param novaMida Nombre de fils
+     */
+    void redimensionar(int novaMida);
+}
@@ -0,0 +1,295 @@
+package com.securechat;
+
+import static com.securechat.Multifil.log;
+
+import com.securechat.Multifil.NivellLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generador de càrrega per loopback contra el ServidorNio
+ *
+ * Cada client és una connexió ClientTrames que envia trames de missatge i
+ * espera la resposta amb el mateix número de seqüència, en un de dos modes:
+ * - TANCAT: envia, espera la resposta, pensa i torna a enviar. La taxa la
+ *   marca el servidor: si va lent, els clients envien menys.
+ * - OBERT: cada client té un calendari d'enviaments fix (taxa / clients per
+ *   segon). Si una resposta arriba tard, els enviaments endarrerits surten
+ *   de seguida i la latència es compta des de l'instant previst, no des de
+ *   l'enviament real, per no amagar les esperes (coordinated omission, com
+ *   fa wrk2). La latència de servei, des de l'enviament real, es guarda a part.
+ *
+ * La mida dels missatges és uniforme entre un mínim i un màxim, i el temps
+ * de pensar del mode TANCAT segueix una exponencial amb la mitjana donada.
+ * Les trames van sense sala (sala 0): el servidor ha de respondre cadascuna
+ * al remitent amb una de TIPUS_RESPOSTA amb la mateixa seqüència (el
+ * processador de la Fita 3 fa eco del contingut). Una resposta que no arriba
+ * en TEMPS_MAXIM_RESPOSTA_MS es dona per perduda: compta com a error i
+ * aquell client plega.
+ *
+ * Configuració per propietats del sistema (desDePropietats):
+ *   securechat.carrega.clients  Nombre de connexions (5)
+ *   securechat.carrega.taxa     Missatges/s entre tots; si és 0, mode TANCAT (0)
+ *   securechat.carrega.mida     Mida del contingut en bytes, "min-max" o fixa (16-256)
+ *   securechat.carrega.pensar   Temps de pensar mitjà en ms, mode TANCAT (20)
+ *   securechat.carrega.durada   Durada en segons (5)
+ */
+final class GeneradorCarrega {
+
+    /**
+     * Com es decideix quan s'envia el missatge següent
+     */
+    enum Mode {
+        TANCAT,  // Quan arriba la resposta (i s'ha pensat)
+        OBERT    // Segons un calendari fix, independent de les respostes
+    }
+
+    // Text d'on es treuen els continguts, en ASCII perquè mida en caràcters = mida en bytes
+    private static final String FRASE = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. ";
+    private static final String TEXT = FRASE.repeat(CodecTrama.MIDA_MAXIMA_CONTINGUT / FRASE.length() + 1)
+            .substring(0, CodecTrama.MIDA_MAXIMA_CONTINGUT);
+    // Temps màxim d'espera de cada resposta
+    private static final int TEMPS_MAXIM_RESPOSTA_MS = 5_000;
+
+    private final InetSocketAddress adreca;
+    private final Mode mode;
+    private final int clients;
+    private final double taxa;          // Missatges/s entre tots, només OBERT
+    private final long tempsPensarNs;   // Mitjana, només TANCAT
+    private final int midaMinima;
+    private final int midaMaxima;
+    private final long duradaNs;
+
+    // Latència de cada missatge: en mode OBERT, des de l'instant previst d'enviament
+    private final HistogramaLatencia latencia = new HistogramaLatencia();
+    // Des de l'enviament real fins a la resposta
+    private final HistogramaLatencia servei = new HistogramaLatencia();
+    private final LongAdder enviats = new LongAdder();
+    private final LongAdder rebuts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private long tempsTotalNs;
+
+    private GeneradorCarrega(InetSocketAddress adreca, Mode mode, int clients, double taxa, long tempsPensarMs,
+            int midaMinima, int midaMaxima, long duradaS) {
+        if (clients <= 0 || duradaS <= 0 || tempsPensarMs < 0) {
+            throw new IllegalArgumentException("Clients, durada i temps de pensar han de ser positius");
+        }
+        if (mode == Mode.OBERT && !(taxa > 0)) {
+            throw new IllegalArgumentException("El mode OBERT necessita una taxa positiva: " + taxa);
+        }
+        if (midaMinima < 0 || midaMinima > midaMaxima || midaMaxima > CodecTrama.MIDA_MAXIMA_CONTINGUT) {
+            throw new IllegalArgumentException("Mides fora de rang (0.." + CodecTrama.MIDA_MAXIMA_CONTINGUT + "): "
+                    + midaMinima + "-" + midaMaxima);
+        }
+        this.adreca = adreca;
+        this.mode = mode;
+        this.clients = clients;
+        this.taxa = taxa;
+        this.tempsPensarNs = TimeUnit.MILLISECONDS.toNanos(tempsPensarMs);
+        this.midaMinima = midaMinima;
+        this.midaMaxima = midaMaxima;
+        this.duradaNs = TimeUnit.SECONDS.toNanos(duradaS);
+    }
+
+    /**
+     * Generador en mode TANCAT
+     * @param tempsPensarMs Temps de pensar mitjà entre resposta i enviament (0: cap)
+     */
+    static GeneradorCarrega tancat(InetSocketAddress adreca, int clients, long tempsPensarMs,
+            int midaMinima, int midaMaxima, long duradaS) {
+        return new GeneradorCarrega(adreca, Mode.TANCAT, clients, 0, tempsPensarMs, midaMinima, midaMaxima, duradaS);
+    }
+
+    /**
+     * Generador en mode OBERT
+     * @param taxa Missatges per segon entre tots els clients
+     */
+    static GeneradorCarrega obert(InetSocketAddress adreca, int clients, double taxa,
+            int midaMinima, int midaMaxima, long duradaS) {
+        return new GeneradorCarrega(adreca, Mode.OBERT, clients, taxa, 0, midaMinima, midaMaxima, duradaS);
+    }
+
+    /**
+     * Generador configurat amb les propietats securechat.carrega.*
+     * @throws IllegalArgumentException si alguna propietat no és vàlida
+     */
+    static GeneradorCarrega desDePropietats(InetSocketAddress adreca) {
+        int clients = Integer.getInteger("securechat.carrega.clients", 5);
+        double taxa = Double.parseDouble(System.getProperty("securechat.carrega.taxa", "0"));
+        String mida = System.getProperty("securechat.carrega.mida", "16-256");
+        long tempsPensarMs = Long.getLong("securechat.carrega.pensar", 20);
+        long duradaS = Long.getLong("securechat.carrega.durada", 5);
+
+        int guio = mida.indexOf('-');
+        int midaMinima = Integer.parseInt(guio < 0 ? mida.trim() : mida.substring(0, guio).trim());
+        int midaMaxima = guio < 0 ? midaMinima : Integer.parseInt(mida.substring(guio + 1).trim());
+        return taxa > 0
+                ? obert(adreca, clients, taxa, midaMinima, midaMaxima, duradaS)
+                : tancat(adreca, clients, tempsPensarMs, midaMinima, midaMaxima, duradaS);
+    }
+
+    /**
+     * Executa tots els clients a l'executor i espera que acabin
+     * Cal un fil per client: amb un pool més petit, els que no hi caben
+     * comencen quan n'acaba un altre i ja no tenen temps d'enviar res
+     */
+    void executar(ExecutorService executor) throws InterruptedException {
+        if (executor instanceof ThreadPoolExecutor && ((ThreadPoolExecutor) executor).getMaximumPoolSize() < clients) {
+            log(NivellLog.AVIS, "L'executor té menys fils que clients ({}): no tots s'executaran alhora", clients);
+        }
+        log(NivellLog.INFO, "Generant càrrega: {}", this);
+
+        long inici = System.nanoTime();
+        long fi = inici + duradaNs;
+        List<Future<?>> tasques = new ArrayList<>(clients);
+        for (int i = 1; i <= clients; i++) {
+            tasques.add(executor.submit(new Client(i, inici, fi)));
+        }
+        // Un client que no ha acabat a la fi més l'última espera de resposta (i un marge) s'ha encallat
+        long limit = fi + TimeUnit.MILLISECONDS.toNanos(2 * TEMPS_MAXIM_RESPOSTA_MS);
+        try {
+            for (Future<?> tasca : tasques) {
+                try {
+                    tasca.get(Math.max(0, limit - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    // Se segueix esperant la resta: el temps total només es pren quan tots han acabat
+                    errors.increment();
+                    log(NivellLog.ERROR, "Error inesperat a un client de càrrega: {}", e.getCause());
+                } catch (TimeoutException e) {
+                    // Interrompre'l tanca el seu canal i el treu de qualsevol lectura
+                    tasca.cancel(true);
+                    errors.increment();
+                    log(NivellLog.AVIS, "Un client de càrrega no ha acabat a temps i s'ha cancel·lat");
+                }
+            }
+        } finally {
+            tempsTotalNs = System.nanoTime() - inici;
+        }
+    }
+
+    /**
+     * Escriu al log el throughput i els percentils de latència de l'última execució
+     */
+    void informar() {
+        long respostes = rebuts.sum();
+        double segons = tempsTotalNs / 1e9;
+        log(NivellLog.INFO, () -> "Càrrega: " + enviats.sum() + " enviats, " + respostes + " respostes, "
+                + errors.sum() + " errors");
+        log(NivellLog.INFO, "Throughput: {} missatges/s{}", String.format("%.1f", segons > 0 ? respostes / segons : 0.0),
+                mode == Mode.OBERT ? String.format(" (objectiu %.1f)", taxa) : "");
+        if (mode == Mode.OBERT) {
+            log(NivellLog.INFO, "Latència corregida (des de l'instant previst): {}", latencia.instantania());
+        }
+        log(NivellLog.INFO, "Latència de servei (des de l'enviament): {}", servei.instantania());
+    }
+
+    @Override
+    public String toString() {
+        return clients + " clients, mode " + mode
+                + (mode == Mode.OBERT
+                        ? String.format(" a %.1f missatges/s", taxa)
+                        : " amb " + TimeUnit.NANOSECONDS.toMillis(tempsPensarNs) + " ms de pensar")
+                + ", " + midaMinima + "-" + midaMaxima + " bytes, "
+                + TimeUnit.NANOSECONDS.toSeconds(duradaNs) + " s";
+    }
+
+    /**
+     * Una connexió del generador; s'executa en un fil de l'executor
+     */
+    private final class Client implements Runnable {
+        private final int idClient;
+        private final long inici;
+        private final long fi;
+
+        Client(int idClient, long inici, long fi) {
+            this.idClient = idClient;
+            this.inici = inici;
+            this.fi = fi;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom aleatori = ThreadLocalRandom.current();
+            long interval = mode == Mode.OBERT ? (long) (clients * 1e9 / taxa) : 0;
+            // Escalonar els calendaris perquè els clients no enviïn tots alhora
+            long seguent = inici + (interval > 0 ? aleatori.nextLong(interval) : 0);
+            long seq = 0;
+
+            try (ClientTrames connexio = new ClientTrames(adreca, TEMPS_MAXIM_RESPOSTA_MS)) {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long previst;
+                    if (mode == Mode.OBERT) {
+                        previst = seguent;
+                        seguent += interval;
+                        if (previst >= fi) {
+                            break;
+                        }
+                        esperarFins(previst);
+                    } else {
+                        previst = System.nanoTime();
+                        if (previst >= fi) {
+                            break;
+                        }
+                    }
+
+                    int mida = midaMinima + aleatori.nextInt(midaMaxima - midaMinima + 1);
+                    long enviament = System.nanoTime();
+                    connexio.enviar(CodecTrama.TIPUS_MISSATGE, 0, ++seq, CharBuffer.wrap(TEXT, 0, mida));
+                    enviats.increment();
+                    if (!connexio.rebre()) {
+                        log(NivellLog.AVIS, "El servidor ha tancat la connexió del client de càrrega {}", idClient);
+                        errors.increment();
+                        return;
+                    }
+                    long ara = System.nanoTime();
+                    if (connexio.tipus() != CodecTrama.TIPUS_RESPOSTA || connexio.seq() != seq) {
+                        log(NivellLog.AVIS, "Resposta inesperada al client de càrrega {}: #{}", idClient, connexio.seq());
+                        errors.increment();
+                        return;
+                    }
+                    rebuts.increment();
+                    servei.registrar(ara - enviament);
+                    latencia.registrar(ara - previst);
+
+                    if (tempsPensarNs > 0) {
+                        // Exponencial amb la mitjana configurada, sense passar de la fi
+                        long pensar = (long) (-Math.log(1.0 - aleatori.nextDouble()) * tempsPensarNs);
+                        esperarFins(Math.min(ara + pensar, fi));
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Si arribés ara, la resposta ja no quadraria amb cap enviament: plegar
+                errors.increment();
+                log(NivellLog.AVIS, "Client de càrrega {}: cap resposta en {} ms, es dona per perduda",
+                        idClient, TEMPS_MAXIM_RESPOSTA_MS);
+            } catch (IOException e) {
+                errors.increment();
+                log(NivellLog.AVIS, "Error al client de càrrega {}: {}", idClient, e.getMessage());
+            }
+        }
+
+        private void esperarFins(long instant) {
+            long queda;
+            while ((queda = instant - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(queda);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.securechat;
+
+import static com.securechat.Multifil.log;
+
+import com.securechat.Multifil.NivellLog;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Registre dels MXBeans del servidor al MBeanServer de la plataforma
+ * Tots es publiquen sota el domini com.securechat:type=<tipus>,name=<nom>
+ * Els errors de registre només es registren al log: la monitorització
+ * no ha d'impedir mai que el servidor funcioni
+ */
+final class GestioJmx {
+    private static final String DOMINI = "com.securechat";
+
+    private GestioJmx() {
+    }
+
+    /**
+     * Publica un MXBean; si ja n'hi havia un amb el mateix nom, el substitueix
+     * @param mbean Objecte que implementa una interfície *MXBean
+     * @param tipus Tipus (MessageBuffer, ExecutorClients...)
+     * @param nom Nom de la instància
+     * @return El nom JMX amb què s'ha registrat, o null si no s'ha pogut
+     */
+    static ObjectName registrar(Object mbean, String tipus, String nom) {
+        try {
+            ObjectName objectName = new ObjectName(DOMINI + ":type=" + tipus + ",name=" + ObjectName.quote(nom));
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            log(NivellLog.ERROR, "No s'ha pogut registrar {} per JMX: {}", tipus + " " + nom, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Retira un MXBean publicat amb registrar()
+     * @param objectName Nom retornat per registrar(); si és null no fa res
+     */
+    static void desregistrar(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log(NivellLog.ERROR, "No s'ha pogut retirar {} de JMX: {}", objectName, e.getMessage());
+        }
+    }
+
+    /**
+     * Vista JMX del pool de fils dels clients
+     */
+    static final class ExecutorClients implements ExecutorClientsMXBean {
+        private final ThreadPoolExecutor executor;
+
+        ExecutorClients(ThreadPoolExecutor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public int getMidaPool() {
+            return executor.getCorePoolSize();
+        }
+
+        @Override
+        public int getFils() {
+            return executor.getPoolSize();
+        }
+
+        @Override
+        public int getActius() {
+            return executor.getActiveCount();
+        }
+
+        @Override
+        public int getEnCua() {
+            return executor.getQueue().size();
+        }
+
+        @Override
+        public long getCompletats() {
+            return executor.getCompletedTaskCount();
+        }
+
+        @Override
+        public synchronized void redimensionar(int novaMida) {
+            if (novaMida <= 0) {
+                throw new IllegalArgumentException("La mida del pool ha de ser positiva: " + novaMida);
+            }
+            int anterior = executor.getCorePoolSize();
+            // El màxim no pot quedar mai per sota del nucli: l'ordre depèn de si creix o minva
+            if (novaMida > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(novaMida);
+                executor.setCorePoolSize(novaMida);
+            } else {
+                executor.setCorePoolSize(novaMida);
+                executor.setMaximumPoolSize(novaMida);
+            }
+            log(NivellLog.INFO, "Pool de clients redimensionat: {} -> {}", anterior, novaMida);
+        }
+    }
+
+    /**
+     * Vista JMX d'un fil processador de missatges
+     */
+    static final class Processador implements ProcessadorMXBean {
+        private static final ThreadMXBean FILS = ManagementFactory.getThreadMXBean();
+
+        private final Thread fil;
+        private final LongSupplier processats;
+
+        /**
+         * @param fil Fil processador
+         * @param processats Comptador de missatges processats pel fil
+         */
+        Processador(Thread fil, LongSupplier processats) {
+            this.fil = fil;
+            this.processats = processats;
+        }
+
+        @Override
+        public String getNom() {
+            return fil.getName();
+        }
+
+        @Override
+        public String getEstat() {
+            return fil.getState().name();
+        }
+
+        @Override
+        public boolean isViu() {
+            return fil.isAlive();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation") // Thread.threadId() només existeix a partir del JDK 19
+        public long getTempsCpuMs() {
+            long nanos = FILS.isThreadCpuTimeSupported() ? FILS.getThreadCpuTime(fil.getId()) : -1;
+            return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        @Override
+        public long getProcessats() {
+            return processats.getAsLong();
+        }
+    }
+}
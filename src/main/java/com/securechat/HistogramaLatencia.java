@@ -0,0 +1,228 @@
+package com.securechat;
+
+import static com.securechat.Multifil.log;
+
+import com.securechat.Multifil.NivellLog;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma log-lineal de latències en nanosegons, a l'estil HDR
+ *
+ * Els valors petits (< 64 ns) tenen un cubell cadascun; a partir d'aquí
+ * cada potència de 2 es divideix en 32 cubells iguals, de manera que
+ * l'error relatiu és com a màxim d'un 3% per a qualsevol valor de long
+ * amb només 1888 comptadors.
+ *
+ * registrar() és lock-free (uns quants increments atòmics i, rarament, un CAS
+ * per al màxim) i es pot cridar des de qualsevol fil. Els comptadors només
+ * creixen, com els counters de Prometheus: instantania() acumula des de
+ * l'inici i instantaniaInterval() resta la lectura de l'interval anterior,
+ * sense perdre cap valor.
+ */
+final class HistogramaLatencia {
+    private static final int BITS_SUBCUBELLS = 5;
+    private static final int SUBCUBELLS = 1 << BITS_SUBCUBELLS;       // 32 per potència de 2
+    private static final int LINEALS = 2 * SUBCUBELLS;                // 0..63, un cubell per valor
+    private static final int NOMBRE_CUBELLS = LINEALS + (63 - BITS_SUBCUBELLS - 1) * SUBCUBELLS;
+
+    // Fil compartit per als informes periòdics de tots els histogrames
+    private static ScheduledExecutorService planificador;
+
+    private final AtomicLongArray cubells = new AtomicLongArray(NOMBRE_CUBELLS);
+    private final AtomicLong maxim = new AtomicLong();
+    private final AtomicLong maximInterval = new AtomicLong();
+    private final AtomicLong suma = new AtomicLong();
+    // Comptadors a l'última instantaniaInterval(), protegits pel monitor
+    private final long[] anteriors = new long[NOMBRE_CUBELLS];
+
+    /**
+     * Afegeix un valor a l'histograma
+     * @param nanos Latència en nanosegons; els negatius compten com a 0
+     */
+    void registrar(long nanos) {
+        long valor = Math.max(0, nanos);
+        cubells.getAndIncrement(index(valor));
+        suma.getAndAdd(valor);
+        actualitzarMaxim(maxim, valor);
+        actualitzarMaxim(maximInterval, valor);
+    }
+
+    private static void actualitzarMaxim(AtomicLong maxim, long valor) {
+        long maximActual = maxim.get();
+        while (valor > maximActual && !maxim.compareAndSet(maximActual, valor)) {
+            maximActual = maxim.get();
+        }
+    }
+
+    /**
+     * @return Instantània acumulada des de l'inici
+     */
+    Instantania instantania() {
+        long[] comptes = new long[NOMBRE_CUBELLS];
+        for (int i = 0; i < NOMBRE_CUBELLS; i++) {
+            comptes[i] = cubells.get(i);
+        }
+        return new Instantania(comptes, maxim.get());
+    }
+
+    /**
+     * Cada valor surt exactament en un interval; no afecta instantania()
+     * @return Instantània dels valors registrats des de l'interval anterior
+     */
+    synchronized Instantania instantaniaInterval() {
+        long[] comptes = new long[NOMBRE_CUBELLS];
+        for (int i = 0; i < NOMBRE_CUBELLS; i++) {
+            long actual = cubells.get(i);
+            comptes[i] = actual - anteriors[i];
+            anteriors[i] = actual;
+        }
+        return new Instantania(comptes, maximInterval.getAndSet(0));
+    }
+
+    /**
+     * Comptes acumulats fins a uns límits, per exportar-los com a histograma
+     * de Prometheus sense crear cap objecte. Cada valor compta sencer al
+     * límit on cau el seu cubell, amb el mateix error relatiu de l'histograma.
+     * @param limitsNs Límits superiors en nanosegons, en ordre creixent
+     * @param acumulats Sortida: valors de cada límit o per sota (mateixa mida que limitsNs)
+     * @return Nombre total de valors
+     */
+    long acumular(long[] limitsNs, long[] acumulats) {
+        long total = 0;
+        int limit = 0;
+        for (int i = 0; i < NOMBRE_CUBELLS; i++) {
+            long compte = cubells.get(i);
+            if (compte == 0) {
+                continue;
+            }
+            long superior = limitSuperior(i);
+            while (limit < limitsNs.length && limitsNs[limit] < superior) {
+                acumulats[limit++] = total;
+            }
+            total += compte;
+        }
+        while (limit < limitsNs.length) {
+            acumulats[limit++] = total;
+        }
+        return total;
+    }
+
+    /**
+     * @return Suma de tots els valors registrats, en nanosegons
+     */
+    long getSuma() {
+        return suma.get();
+    }
+
+    /**
+     * Escriu al log una instantània d'interval cada periode
+     * @param nom Nom que surt al log
+     * @return La tasca planificada, per cancel·lar-la
+     */
+    ScheduledFuture<?> informarPeriodicament(String nom, long periode, TimeUnit unitat) {
+        return planificador().scheduleAtFixedRate(
+                () -> log(NivellLog.INFO, "{}: {}", nom, instantaniaInterval()), periode, periode, unitat);
+    }
+
+    private static synchronized ScheduledExecutorService planificador() {
+        if (planificador == null) {
+            planificador = Executors.newSingleThreadScheduledExecutor(tasca -> {
+                Thread fil = new Thread(tasca, "Informes-Latencia");
+                fil.setDaemon(true);
+                return fil;
+            });
+        }
+        return planificador;
+    }
+
+    /**
+     * @return Cubell on cau un valor no negatiu
+     */
+    static int index(long valor) {
+        if (valor < LINEALS) {
+            return (int) valor;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(valor);   // >= BITS_SUBCUBELLS + 1
+        int desplacament = exponent - BITS_SUBCUBELLS;
+        int subcubell = (int) (valor >>> desplacament) - SUBCUBELLS; // 0..31
+        return LINEALS + (desplacament - 1) * SUBCUBELLS + subcubell;
+    }
+
+    /**
+     * @return El valor més gran que cau al cubell
+     */
+    static long limitSuperior(int index) {
+        if (index < LINEALS) {
+            return index;
+        }
+        int desplacament = (index - LINEALS) / SUBCUBELLS + 1;
+        long subcubell = SUBCUBELLS + (index - LINEALS) % SUBCUBELLS;
+        return ((subcubell + 1) << desplacament) - 1;
+    }
+
+    /**
+     * Còpia immutable dels comptadors en un moment donat
+     */
+    static final class Instantania {
+        private final long[] comptes;
+        private final long total;
+        private final long maxim;
+
+        private Instantania(long[] comptes, long maxim) {
+            this.comptes = comptes;
+            long suma = 0;
+            for (long compte : comptes) {
+                suma += compte;
+            }
+            this.total = suma;
+            this.maxim = maxim;
+        }
+
+        long getTotal() {
+            return total;
+        }
+
+        long getMaxim() {
+            return maxim;
+        }
+
+        /**
+         * @param percentil Entre 0 i 100 (p. ex. 99.9)
+         * @return Latència en ns per sota de la qual hi ha aquest percentatge de valors
+         */
+        long percentil(double percentil) {
+            if (total == 0) {
+                return 0;
+            }
+            long objectiu = Math.max(1, (long) Math.ceil(total * percentil / 100.0));
+            long acumulat = 0;
+            for (int i = 0; i < comptes.length; i++) {
+                acumulat += comptes[i];
+                if (acumulat >= objectiu) {
+                    // Mai per sobre del màxim real
+                    return Math.min(limitSuperior(i), maxim);
+                }
+            }
+            return maxim;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + total
+                    + " p50=" + micros(percentil(50))
+                    + " p99=" + micros(percentil(99))
+                    + " p99.9=" + micros(percentil(99.9))
+                    + " max=" + micros(maxim);
+        }
+
+        private static String micros(long nanos) {
+            return String.format("%.1fµs", nanos / 1000.0);
+        }
+    }
+}
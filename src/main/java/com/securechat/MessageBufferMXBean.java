@@ -0,0 +1,62 @@
+package com.securechat;
+
+/**
+ * Mètriques i gestió d'un MessageBuffer publicades per JMX
+ * (jconsole / VisualVM: com.securechat:type=MessageBuffer,name=...)
+ * Els comptadors i els temps (en nanosegons) són acumulats des de la creació del buffer
+ */
+public interface MessageBufferMXBean {
+
+    /** @return Missatges a la cua ara mateix */
+    int getMidaCua();
+
+    int getCapacitat();
+
+    /**
+     * Canvia la capacitat màxima sense aturar el buffer (només en mode MONITOR)
+     * @param novaCapacitat Nova capacitat
+     */
+    void redimensionar(int novaCapacitat);
+
+    /** @return Missatges abocats a disc pendents de tornar a la cua (ABOCAR_A_DISC) */
+    long getMidaDisc();
+
+    // Throughput: la diferència entre dues lectures dona el ritme
+
+    long getAcceptats();
+
+    long getLliurats();
+
+    // Missatges perduts per la política de desbordament
+
+    long getRebutjats();
+
+    long getDescartatsNous();
+
+    long getDescartatsAntics();
+
+    long getAbocatsADisc();
+
+    // Contenció
+
+    /** @return Cops que un productor ha hagut d'esperar amb la cua plena */
+    long getBloquejats();
+
+    long getTempsBloquejatPleNs();
+
+    /** @return Cops que un consumidor ha hagut de dormir amb la cua buida */
+    long getEsperesBuit();
+
+    long getTempsBloquejatBuitNs();
+
+    /** @return Cops que un fil ha trobat el lock ocupat */
+    long getContencionsLock();
+
+    long getTempsEsperaLockNs();
+
+    int getEsperantsPle();
+
+    int getEsperantsBuit();
+
+    long getDespertarsEspuris();
+}
@@ -0,0 +1,524 @@
+package com.securechat;
+
+import static com.securechat.Multifil.log;
+
+import com.securechat.Multifil.MessageBuffer;
+import com.securechat.Multifil.NivellLog;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Endpoint HTTP de mètriques en format de text de Prometheus (/metrics)
+ *
+ * És opcional: només s'engega amb -Dsecurechat.metriques.port=<port>.
+ * No té autenticació i exposa detalls interns (GC, fils, cues), així que
+ * per defecte només escolta a loopback; per obrir-lo a una altra interfície
+ * cal dir-ho explícitament amb -Dsecurechat.metriques.adreca=<adreça>.
+ * Fa servir el HttpServer del JDK sense executor propi, de manera que les
+ * peticions s'atenen d'una en una al fil del servidor HTTP.
+ *
+ * Cada scrape es renderitza sobre el mateix byte[] amb els números escrits
+ * a mà (sense String.valueOf ni doubles) i les etiquetes codificades en
+ * publicar la font; l'únic que es crea per petició és el que crea el mateix
+ * HttpServer i algun MemoryUsage de la JVM.
+ *
+ * Les fonts (buffers i servidors) es publiquen i es retiren amb els mètodes
+ * estàtics, tant si l'endpoint està engegat com si no; el pool de buffers
+ * compartit i les dades de la JVM hi surten sempre.
+ */
+final class MetriquesHttp {
+    static final String PROPIETAT_PORT = "securechat.metriques.port";
+    static final String PROPIETAT_ADRECA = "securechat.metriques.adreca";
+    private static final String RUTA = "/metrics";
+    private static final String TIPUS_CONTINGUT = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+
+    // Límits de l'histograma de residència, en segons i en ns
+    private static final String[] LIMITS_TEXT = {
+        "0.00001", "0.00005", "0.0001", "0.0005", "0.001", "0.005",
+        "0.01", "0.05", "0.1", "0.5", "1", "5", "10"
+    };
+    private static final long[] LIMITS_NS = {
+        10_000L, 50_000L, 100_000L, 500_000L, 1_000_000L, 5_000_000L,
+        10_000_000L, 50_000_000L, 100_000_000L, 500_000_000L, 1_000_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+
+    /**
+     * Una mètrica que es llegeix de cada buffer publicat (MessageBuffer o carril d'un BufferCarrils)
+     */
+    private static final class MetricaBuffer {
+        final String nom;
+        final String tipus;
+        final String ajuda;
+        final ToLongFunction<MessageBufferMXBean> lectura;
+        final boolean nanosASegons;
+
+        MetricaBuffer(String nom, String tipus, String ajuda, ToLongFunction<MessageBufferMXBean> lectura,
+                boolean nanosASegons) {
+            this.nom = nom;
+            this.tipus = tipus;
+            this.ajuda = ajuda;
+            this.lectura = lectura;
+            this.nanosASegons = nanosASegons;
+        }
+    }
+
+    private static final MetricaBuffer[] METRIQUES_BUFFER = {
+        new MetricaBuffer("securechat_buffer_depth", GAUGE,
+                "Missatges a la cua en memòria", MessageBufferMXBean::getMidaCua, false),
+        new MetricaBuffer("securechat_buffer_capacity", GAUGE,
+                "Capacitat de la cua en memòria", MessageBufferMXBean::getCapacitat, false),
+        new MetricaBuffer("securechat_buffer_disk_depth", GAUGE,
+                "Missatges abocats a disc pendents de tornar a la cua", MessageBufferMXBean::getMidaDisc, false),
+        new MetricaBuffer("securechat_buffer_accepted_total", COUNTER,
+                "Missatges acceptats", MessageBufferMXBean::getAcceptats, false),
+        new MetricaBuffer("securechat_buffer_delivered_total", COUNTER,
+                "Missatges lliurats als consumidors", MessageBufferMXBean::getLliurats, false),
+        new MetricaBuffer("securechat_buffer_rejected_total", COUNTER,
+                "Missatges rebutjats amb la cua plena (REBUTJAR)", MessageBufferMXBean::getRebutjats, false),
+        new MetricaBuffer("securechat_buffer_dropped_new_total", COUNTER,
+                "Missatges nous descartats amb la cua plena (DESCARTAR_NOU)", MessageBufferMXBean::getDescartatsNous, false),
+        new MetricaBuffer("securechat_buffer_dropped_old_total", COUNTER,
+                "Missatges antics descartats per fer lloc (DESCARTAR_ANTIC)", MessageBufferMXBean::getDescartatsAntics, false),
+        new MetricaBuffer("securechat_buffer_spilled_total", COUNTER,
+                "Missatges abocats a disc (ABOCAR_A_DISC)", MessageBufferMXBean::getAbocatsADisc, false),
+        new MetricaBuffer("securechat_buffer_full_waits_total", COUNTER,
+                "Productors que han hagut d'esperar amb la cua plena", MessageBufferMXBean::getBloquejats, false),
+        new MetricaBuffer("securechat_buffer_full_wait_seconds_total", COUNTER,
+                "Temps total d'espera dels productors amb la cua plena", MessageBufferMXBean::getTempsBloquejatPleNs, true),
+        new MetricaBuffer("securechat_buffer_empty_waits_total", COUNTER,
+                "Consumidors que han hagut d'esperar amb la cua buida", MessageBufferMXBean::getEsperesBuit, false),
+        new MetricaBuffer("securechat_buffer_empty_wait_seconds_total", COUNTER,
+                "Temps total d'espera dels consumidors amb la cua buida", MessageBufferMXBean::getTempsBloquejatBuitNs, true),
+        new MetricaBuffer("securechat_buffer_lock_contended_total", COUNTER,
+                "Adquisicions del lock que l'han trobat ocupat", MessageBufferMXBean::getContencionsLock, false),
+        new MetricaBuffer("securechat_buffer_lock_wait_seconds_total", COUNTER,
+                "Temps total d'espera del lock", MessageBufferMXBean::getTempsEsperaLockNs, true),
+        new MetricaBuffer("securechat_buffer_waiting_producers", GAUGE,
+                "Productors esperant ara mateix", MessageBufferMXBean::getEsperantsPle, false),
+        new MetricaBuffer("securechat_buffer_waiting_consumers", GAUGE,
+                "Consumidors esperant ara mateix", MessageBufferMXBean::getEsperantsBuit, false),
+        new MetricaBuffer("securechat_buffer_spurious_wakeups_total", COUNTER,
+                "Despertars sense res a fer", MessageBufferMXBean::getDespertarsEspuris, false),
+    };
+
+    /**
+     * Una font publicada amb la seva etiqueta ja codificada (p. ex. buffer="servidor")
+     */
+    private static final class Font {
+        final Object objecte;
+        final byte[] etiqueta;
+        final HistogramaLatencia residencia; // Només als buffers
+
+        Font(Object objecte, String clau, String valor) {
+            this(objecte, clau, valor, null);
+        }
+
+        Font(Object objecte, String clau, String valor, HistogramaLatencia residencia) {
+            this.objecte = objecte;
+            this.etiqueta = etiqueta(clau, valor);
+            this.residencia = residencia;
+        }
+    }
+
+    // Còpia en escriure: el renderitzat la recorre per índex sense bloquejar
+    private static volatile Font[] fonts = new Font[0];
+
+    private final HttpServer servidor;
+    private final Sortida sortida = new Sortida();
+    private final long[] acumulats = new long[LIMITS_NS.length];
+
+    private final MemoryMXBean memoria = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean fils = ManagementFactory.getThreadMXBean();
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final byte[][] etiquetesCollectors;
+
+    private MetriquesHttp(InetSocketAddress adreca) throws IOException {
+        this.servidor = HttpServer.create(adreca, 0);
+        this.etiquetesCollectors = new byte[collectors.size()][];
+        for (int i = 0; i < etiquetesCollectors.length; i++) {
+            etiquetesCollectors[i] = etiqueta("gc", collectors.get(i).getName());
+        }
+        servidor.createContext(RUTA, this::atendre);
+    }
+
+    /**
+     * Engega l'endpoint si s'ha configurat el port amb -Dsecurechat.metriques.port
+     * Escolta a loopback tret que -Dsecurechat.metriques.adreca en digui una altra
+     * @return L'endpoint engegat, o null si no està configurat o no s'ha pogut obrir
+     */
+    static MetriquesHttp iniciarSiConfigurat() {
+        Integer port = Integer.getInteger(PROPIETAT_PORT);
+        if (port == null) {
+            return null;
+        }
+        String adreca = System.getProperty(PROPIETAT_ADRECA);
+        try {
+            InetAddress interficie = adreca == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(adreca);
+            return iniciar(new InetSocketAddress(interficie, port));
+        } catch (IOException e) {
+            log(NivellLog.ERROR, "No s'ha pogut obrir l'endpoint de mètriques al port {}: {}", port, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Engega l'endpoint a l'adreça indicada
+     * @param adreca Interfície i port; fora de loopback, qualsevol que hi arribi pot llegir les mètriques
+     * @throws IOException si no es pot obrir el port
+     */
+    static MetriquesHttp iniciar(InetSocketAddress adreca) throws IOException {
+        MetriquesHttp metriques = new MetriquesHttp(adreca);
+        metriques.servidor.start();
+        InetSocketAddress local = metriques.servidor.getAddress();
+        log(NivellLog.INFO, "Mètriques de Prometheus a http://{}{}",
+                local.getHostString() + ":" + local.getPort(), RUTA);
+        return metriques;
+    }
+
+    /**
+     * Deixa de servir mètriques
+     */
+    void aturar() {
+        servidor.stop(0);
+    }
+
+    /**
+     * Publica un buffer amb l'etiqueta buffer="nom"
+     */
+    static void publicar(String nom, MessageBuffer<?> buffer) {
+        publicar(nom, buffer, buffer.getResidencia());
+    }
+
+    /**
+     * Publica qualsevol cua amb les mètriques d'un MessageBuffer, p. ex. un carril d'un BufferCarrils
+     * @param residencia Histograma del temps que passen els missatges a la cua
+     */
+    static void publicar(String nom, MessageBufferMXBean cua, HistogramaLatencia residencia) {
+        afegir(new Font(cua, "buffer", nom, residencia));
+    }
+
+    /**
+     * Publica un servidor amb l'etiqueta servidor="port-N"
+     */
+    static void publicar(ServidorNio servidorNio) {
+        afegir(new Font(servidorNio, "servidor", "port-" + servidorNio.getPort()));
+    }
+
+    /**
+     * Retira una font publicada; si no ho estava no fa res
+     */
+    static synchronized void retirar(Object objecte) {
+        Font[] actuals = fonts;
+        for (int i = 0; i < actuals.length; i++) {
+            if (actuals[i].objecte == objecte) {
+                Font[] noves = Arrays.copyOf(actuals, actuals.length - 1);
+                System.arraycopy(actuals, i + 1, noves, i, actuals.length - i - 1);
+                fonts = noves;
+                return;
+            }
+        }
+    }
+
+    private static synchronized void afegir(Font font) {
+        Font[] actuals = fonts;
+        Font[] noves = Arrays.copyOf(actuals, actuals.length + 1);
+        noves[actuals.length] = font;
+        fonts = noves;
+    }
+
+    private void atendre(HttpExchange intercanvi) throws IOException {
+        try (intercanvi) {
+            if (!"GET".equals(intercanvi.getRequestMethod())) {
+                intercanvi.sendResponseHeaders(405, -1);
+                return;
+            }
+            synchronized (this) {
+                renderitzar();
+                intercanvi.getResponseHeaders().set("Content-Type", TIPUS_CONTINGUT);
+                intercanvi.sendResponseHeaders(200, sortida.mida);
+                intercanvi.getResponseBody().write(sortida.dades, 0, sortida.mida);
+            }
+        }
+    }
+
+    /**
+     * Escriu totes les mètriques a la sortida reutilitzable
+     */
+    private void renderitzar() {
+        sortida.mida = 0;
+        Font[] actuals = fonts;
+
+        // Buffers
+        for (MetricaBuffer metrica : METRIQUES_BUFFER) {
+            capcalera(metrica.nom, metrica.tipus, metrica.ajuda);
+            for (Font font : actuals) {
+                if (font.objecte instanceof MessageBufferMXBean) {
+                    long valor = metrica.lectura.applyAsLong((MessageBufferMXBean) font.objecte);
+                    inici(metrica.nom, font.etiqueta);
+                    if (metrica.nanosASegons) {
+                        sortida.decimal(valor, 9);
+                    } else {
+                        sortida.nombre(valor);
+                    }
+                    sortida.salt();
+                }
+            }
+        }
+        capcalera("securechat_buffer_residency_seconds", "histogram", "Temps que passen els missatges a la cua");
+        for (Font font : actuals) {
+            if (font.objecte instanceof MessageBufferMXBean) {
+                histograma("securechat_buffer_residency_seconds", font.etiqueta, font.residencia);
+            }
+        }
+
+        // Servidors
+        metricaServidor(actuals, "securechat_connections_active", GAUGE, "Connexions obertes",
+                ServidorNio::getConnexionsActives);
+        metricaServidor(actuals, "securechat_connections_accepted_total", COUNTER, "Connexions acceptades",
+                ServidorNio::getConnexionsAcceptades);
+        metricaServidor(actuals, "securechat_outbound_dropped_total", COUNTER,
+                "Trames no enviades per tenir la cua de sortida del client plena", ServidorNio::getTramesDescartades);
+        metricaServidor(actuals, "securechat_outbound_coalesced_total", COUNTER,
+                "Missatges pendents substituïts per un de més recent", ServidorNio::getTramesCoalescides);
+        metricaServidor(actuals, "securechat_slow_consumer_disconnects_total", COUNTER,
+                "Connexions tancades per no llegir prou de pressa", ServidorNio::getDesconnexionsLentes);
+
+        // Pool de buffers directes
+        PoolBuffers pool = PoolBuffers.COMPARTIT;
+        capcalera("securechat_bufferpool_hits_total", COUNTER, "Buffers servits sense crear-ne cap de nou");
+        mostra("securechat_bufferpool_hits_total", null, pool.getEncerts());
+        capcalera("securechat_bufferpool_misses_total", COUNTER, "Buffers que s'han hagut de crear");
+        mostra("securechat_bufferpool_misses_total", null, pool.getErrades());
+        capcalera("securechat_bufferpool_outstanding", GAUGE, "Buffers obtinguts que encara no s'han retornat");
+        mostra("securechat_bufferpool_outstanding", null, pool.getPendents());
+
+        // JVM
+        capcalera("jvm_gc_collections_total", COUNTER, "Recollides de cada col·lector");
+        for (int i = 0; i < etiquetesCollectors.length; i++) {
+            mostra("jvm_gc_collections_total", etiquetesCollectors[i], collectors.get(i).getCollectionCount());
+        }
+        capcalera("jvm_gc_collection_seconds_total", COUNTER, "Temps acumulat de cada col·lector");
+        for (int i = 0; i < etiquetesCollectors.length; i++) {
+            inici("jvm_gc_collection_seconds_total", etiquetesCollectors[i]);
+            sortida.decimal(collectors.get(i).getCollectionTime(), 3);
+            sortida.salt();
+        }
+        MemoryUsage heap = memoria.getHeapMemoryUsage();
+        capcalera("jvm_memory_heap_used_bytes", GAUGE, "Heap ocupat");
+        mostra("jvm_memory_heap_used_bytes", null, heap.getUsed());
+        capcalera("jvm_memory_heap_committed_bytes", GAUGE, "Heap reservat");
+        mostra("jvm_memory_heap_committed_bytes", null, heap.getCommitted());
+        capcalera("jvm_threads_live", GAUGE, "Fils de plataforma vius");
+        mostra("jvm_threads_live", null, fils.getThreadCount());
+        long assignats = bytesAssignats();
+        if (assignats >= 0) {
+            capcalera("jvm_threads_allocated_bytes", GAUGE, "Bytes assignats al heap pels fils vius des que van arrencar");
+            mostra("jvm_threads_allocated_bytes", null, assignats);
+        }
+    }
+
+    /**
+     * Amb Java 17 no hi ha el total de la JVM (getTotalThreadAllocatedBytes
+     * és del 21): se sumen els fils vius, així que baixa quan en mor algun
+     * @return Bytes assignats pels fils vius, o -1 si la JVM no ho permet
+     */
+    private long bytesAssignats() {
+        if (fils instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean filsHotSpot = (com.sun.management.ThreadMXBean) fils;
+            if (filsHotSpot.isThreadAllocatedMemorySupported() && filsHotSpot.isThreadAllocatedMemoryEnabled()) {
+                long total = 0;
+                for (long bytes : filsHotSpot.getThreadAllocatedBytes(fils.getAllThreadIds())) {
+                    // -1 per als fils que han mort entre les dues crides
+                    total += Math.max(0, bytes);
+                }
+                return total;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Escriu una mètrica amb una mostra per servidor publicat
+     */
+    private void metricaServidor(Font[] actuals, String nom, String tipus, String ajuda,
+            ToLongFunction<ServidorNio> lectura) {
+        capcalera(nom, tipus, ajuda);
+        for (Font font : actuals) {
+            if (font.objecte instanceof ServidorNio) {
+                mostra(nom, font.etiqueta, lectura.applyAsLong((ServidorNio) font.objecte));
+            }
+        }
+    }
+
+    private void histograma(String nom, byte[] etiqueta, HistogramaLatencia histograma) {
+        long total = histograma.acumular(LIMITS_NS, acumulats);
+        for (int i = 0; i < LIMITS_NS.length; i++) {
+            inici(nom, "_bucket", etiqueta, LIMITS_TEXT[i]);
+            sortida.nombre(acumulats[i]);
+            sortida.salt();
+        }
+        inici(nom, "_bucket", etiqueta, "+Inf");
+        sortida.nombre(total);
+        sortida.salt();
+        inici(nom, "_sum", etiqueta, null);
+        sortida.decimal(histograma.getSuma(), 9);
+        sortida.salt();
+        inici(nom, "_count", etiqueta, null);
+        sortida.nombre(total);
+        sortida.salt();
+    }
+
+    private void capcalera(String nom, String tipus, String ajuda) {
+        sortida.text("# HELP ").text(nom).text(" ").text(ajuda).salt();
+        sortida.text("# TYPE ").text(nom).text(" ").text(tipus).salt();
+    }
+
+    private void mostra(String nom, byte[] etiqueta, long valor) {
+        inici(nom, etiqueta);
+        sortida.nombre(valor);
+        sortida.salt();
+    }
+
+    private void inici(String nom, byte[] etiqueta) {
+        inici(nom, "", etiqueta, null);
+    }
+
+    /**
+     * Escriu "nom+sufix{etiqueta,le="limit"} " ometent el que sigui null
+     */
+    private void inici(String nom, String sufix, byte[] etiqueta, String limit) {
+        sortida.text(nom).text(sufix);
+        if (etiqueta != null || limit != null) {
+            sortida.text("{");
+            if (etiqueta != null) {
+                sortida.bytes(etiqueta);
+            }
+            if (limit != null) {
+                if (etiqueta != null) {
+                    sortida.text(",");
+                }
+                sortida.text("le=\"").text(limit).text("\"");
+            }
+            sortida.text("}");
+        }
+        sortida.text(" ");
+    }
+
+    /**
+     * Codifica clau="valor" amb les seqüències d'escapament del format de text
+     */
+    private static byte[] etiqueta(String clau, String valor) {
+        String escapat = valor.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return (clau + "=\"" + escapat + "\"").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * byte[] que creix quan cal i es reutilitza entre scrapes
+     */
+    private static final class Sortida {
+        byte[] dades = new byte[16 * 1024];
+        int mida;
+
+        Sortida text(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                // Els textos fixos són del BMP: n'hi ha prou amb UTF-8 d'1 a 3 bytes
+                if (c < 0x80) {
+                    escriure((byte) c);
+                } else if (c < 0x800) {
+                    escriure((byte) (0xC0 | (c >> 6)));
+                    escriure((byte) (0x80 | (c & 0x3F)));
+                } else {
+                    escriure((byte) (0xE0 | (c >> 12)));
+                    escriure((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    escriure((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+            return this;
+        }
+
+        void bytes(byte[] origen) {
+            assegurar(origen.length);
+            System.arraycopy(origen, 0, dades, mida, origen.length);
+            mida += origen.length;
+        }
+
+        /**
+         * Escriu un enter en decimal sense passar per String
+         */
+        void nombre(long valor) {
+            if (valor < 0) {
+                if (valor == Long.MIN_VALUE) {
+                    text("-9223372036854775808");
+                    return;
+                }
+                escriure((byte) '-');
+                valor = -valor;
+            }
+            assegurar(19);
+            int inici = mida;
+            do {
+                dades[mida++] = (byte) ('0' + valor % 10);
+                valor /= 10;
+            } while (valor != 0);
+            // Els dígits han sortit al revés
+            for (int i = inici, j = mida - 1; i < j; i++, j--) {
+                byte temporal = dades[i];
+                dades[i] = dades[j];
+                dades[j] = temporal;
+            }
+        }
+
+        /**
+         * Escriu valor / 10^decimals amb coma fixa (p. ex. nanosegons com a segons)
+         */
+        void decimal(long valor, int decimals) {
+            if (valor < 0) {
+                escriure((byte) '-');
+                valor = -valor;
+            }
+            long divisor = 1;
+            for (int i = 0; i < decimals; i++) {
+                divisor *= 10;
+            }
+            nombre(valor / divisor);
+            escriure((byte) '.');
+            long fraccio = valor % divisor;
+            for (long posicio = divisor / 10; posicio > 0; posicio /= 10) {
+                escriure((byte) ('0' + fraccio / posicio % 10));
+            }
+        }
+
+        Sortida salt() {
+            escriure((byte) '\n');
+            return this;
+        }
+
+        private void escriure(byte b) {
+            assegurar(1);
+            dades[mida++] = b;
+        }
+
+        private void assegurar(int addicionals) {
+            if (mida + addicionals > dades.length) {
+                dades = Arrays.copyOf(dades, Math.max(2 * dades.length, mida + addicionals));
+            }
+        }
+    }
+}
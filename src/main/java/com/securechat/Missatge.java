@@ -0,0 +1,101 @@
+package com.securechat;
+
+import com.securechat.Multifil.CodecDisc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Missatge de xat tal com circula pel MessageBuffer del servidor
+ * Porta les metadades de la trama ja descodificades, de manera que els
+ * consumidors poden encaminar-lo sense tornar a analitzar cap text.
+ * És immutable: es pot passar entre fils sense sincronització.
+ */
+final class Missatge {
+    private final int remitent;
+    private final int sala;
+    private final long seq;
+    private final long tempsEncuat;
+    private final String contingut;
+
+    /**
+     * Crea un missatge que s'està a punt d'encuar
+     * @param remitent Id de la connexió que l'ha enviat
+     * @param sala Sala de la conversa
+     * @param seq Número de seqüència del client
+     * @param contingut Text del missatge
+     */
+    Missatge(int remitent, int sala, long seq, String contingut) {
+        this.remitent = remitent;
+        this.sala = sala;
+        this.seq = seq;
+        this.tempsEncuat = System.nanoTime();
+        this.contingut = contingut;
+    }
+
+    int getRemitent() {
+        return remitent;
+    }
+
+    int getSala() {
+        return sala;
+    }
+
+    long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return Clau de la conversa: la sala, o el remitent si el missatge no en té
+     */
+    int getConversa() {
+        return sala != 0 ? sala : remitent;
+    }
+
+    /**
+     * @return Moment (System.nanoTime) en què el servidor l'ha rebut i l'ha encuat
+     */
+    long getTempsEncuat() {
+        return tempsEncuat;
+    }
+
+    /**
+     * @return Temps que fa que és a la cua, en nanosegons
+     */
+    long getTempsACua() {
+        return System.nanoTime() - tempsEncuat;
+    }
+
+    String getContingut() {
+        return contingut;
+    }
+
+    @Override
+    public String toString() {
+        return "[client " + remitent + ", sala " + sala + ", #" + seq + "] " + contingut;
+    }
+
+    // Format del diari (DiariWal): [remitent int][sala int][seq long][contingut UTF-8]
+    // Sense tempsEncuat, que no sobreviu a la JVM: un missatge recuperat compta com a encuat en descodificar-lo
+    static final CodecDisc<Missatge> CODEC_DIARI = new CodecDisc<>() {
+        @Override
+        public byte[] codificar(Missatge missatge) {
+            byte[] text = missatge.contingut.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer registre = ByteBuffer.allocate(2 * Integer.BYTES + Long.BYTES + text.length);
+            registre.putInt(missatge.remitent)
+                    .putInt(missatge.sala)
+                    .putLong(missatge.seq)
+                    .put(text);
+            return registre.array();
+        }
+
+        @Override
+        public Missatge descodificar(ByteBuffer registre) {
+            int remitent = registre.getInt();
+            int sala = registre.getInt();
+            long seq = registre.getLong();
+            String contingut = StandardCharsets.UTF_8.decode(registre).toString();
+            return new Missatge(remitent, sala, seq, contingut);
+        }
+    };
+}
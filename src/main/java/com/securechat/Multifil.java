@@ -0,0 +1,2295 @@
+package com.securechat;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import javax.management.ObjectName;
+
+/**
+ * Classe Multifil - FASE 1 RA2
+ * Aquesta classe implementa les 3 fites de la Fase 1:
+ * - Fita 1: 3 fils funcionant en paral·lel amb logs de temps
+ * - Fita 2: MessageBuffer - cua segura per a missatges
+ * - Fita 3: ExecutorService amb clients simulats
+ * - Fita 4: Servidor NIO amb connexions TCP reals (ServidorNio)
+ */
+public class Multifil {
+
+    //   ##################################
+    //  ###  CLASSE DE COLORS ANSI     ###
+    // ##################################
+
+    /**
+     * Classe amb constants per als colors ANSI de la terminal
+     * Permet colorir la sortida per fer-la més llegible
+     */
+    static class Colors {
+        // Reset - torna al color per defecte
+        public static final String RESET = "\u001B[0m";
+
+        // Colors bàsics
+        public static final String NEGRO = "\u001B[30m";
+        public static final String ROJO = "\u001B[31m";
+        public static final String VERDE = "\u001B[32m";
+        public static final String AMARILLO = "\u001B[33m";
+        public static final String AZUL = "\u001B[34m";
+        public static final String MAGENTA = "\u001B[35m";
+        public static final String CYAN = "\u001B[36m";
+        public static final String BLANCO = "\u001B[37m";
+
+        // Colors brillants (més visibles)
+        public static final String ROJO_BRILLANTE = "\u001B[91m";
+        public static final String VERDE_BRILLANTE = "\u001B[92m";
+        public static final String AMARILLO_BRILLANTE = "\u001B[93m";
+        public static final String AZUL_BRILLANTE = "\u001B[94m";
+        public static final String MAGENTA_BRILLANTE = "\u001B[95m";
+        public static final String CYAN_BRILLANTE = "\u001B[96m";
+
+        // Estils
+        public static final String NEGRETA = "\u001B[1m";
+
+        /**
+         * Colorea un text amb el color especificat
+         * @param text Text a colorar
+         * @param color Color ANSI
+         * @return Text colorat
+         */
+        public static String colorear(String text, String color) {
+            return color + text + RESET;
+        }
+    }
+
+    //   ##############################################################
+    //  ###  FITA 2: MESSAGE BUFFER - CUA SEGURA PER A MISSATGES  ####
+    // ##############################################################
+
+    /**
+     * Implementa una cua thread-safe per emmagatzemar missatges
+     * Utilitza un ReentrantLock amb dues condicions (no plena / no buida) per
+     * evitar condicions de carrera i despertar només el fil que pot avançar
+     * En mode ANELL_LOCK_FREE els missatges van a un AnellMPMC i només
+     * es passa pel lock quan cal bloquejar (cua plena o buida)
+     * És genèric: les demostracions hi posen Strings i el servidor, Missatges
+     * @param <T> Tipus dels missatges
+     */
+    static class MessageBuffer<T> implements MessageBufferMXBean, CuaMissatges<T> {
+
+        /**
+         * Implementació interna de la cua, escollida en construir el buffer
+         */
+        enum ModeCua {
+            MONITOR,          // CuaCircular protegida amb el lock i les condicions
+            ANELL_LOCK_FREE   // AnellMPMC sense bloquejos al camí ràpid
+        }
+
+        /**
+         * Què fa el buffer quan un productor troba la cua plena
+         */
+        enum PoliticaDesbordament {
+            BLOQUEJAR,        // Esperar fins que hi hagi espai (o fins al timeout d'offer)
+            DESCARTAR_NOU,    // Descartar el missatge que s'intenta afegir
+            DESCARTAR_ANTIC,  // Descartar el missatge més antic de la cua per fer lloc
+            REBUTJAR,         // Llançar IllegalStateException al productor
+            ABOCAR_A_DISC     // Escriure'l a un fitxer i recuperar-lo quan hi hagi espai (només MONITOR)
+        }
+
+        // Voltes que es reintenta l'anell abans d'anar a dormir a la condició
+        private static final int VOLTES_ESPERA_ACTIVA = 64;
+
+        // Valor de temps d'espera que vol dir "esperar indefinidament"
+        private static final long SENSE_LIMIT = ControlCua.SENSE_LIMIT;
+
+        private final CuaCircular<T> cua;
+        private final AnellMPMC<T> anell;
+        // Es pot canviar en calent en mode MONITOR (redimensionar); es modifica amb el lock agafat
+        private volatile int capacitatMaxima;
+        private final PoliticaDesbordament politica;
+        private final AbocamentDisc<T> abocament; // només amb ABOCAR_A_DISC, protegit pel lock
+        private final DiariWal<T> diari; // només si s'ha demanat durabilitat; s'hi anota amb el lock agafat
+
+        // Lock, esperes i política de desbordament, compartits amb BufferCarrils
+        private final ControlCua control = new ControlCua(this::midaAproximada);
+        private final ReentrantLock lock = control.lock;
+        // Els productors esperen a noPle i els consumidors a noBuit
+        private final ControlCua.Espera noPle = control.esperaPle();
+        private final ControlCua.Espera noBuit = control.esperaBuit();
+        private final ControlCua.Desbordaments desbordaments = new ControlCua.Desbordaments();
+        // Estat de la cua del mode MONITOR per a les esperes (s'avaluen amb el lock agafat)
+        private final BooleanSupplier hiCapMonitor = this::hiCapMonitor;
+        private final BooleanSupplier potTreureMonitor = this::potTreureMonitor;
+        // Amb els consumidors aturats, qui troba la cua buida ja no s'hi espera
+        private volatile boolean consumidorsAturats;
+        private final Supplier<T> treureAntic = this::treureAnticMonitor;
+
+        // Resultat de cada intent d'afegir
+        private final LongAdder acceptats = new LongAdder();
+        private final LongAdder abocatsADisc = new LongAdder();
+        // Missatges lliurats als consumidors
+        private final LongAdder lliurats = new LongAdder();
+
+        // Nom amb què s'ha publicat per JMX, o null
+        private ObjectName nomJmx;
+
+        // Temps que passa cada missatge a la cua fins que un consumidor el treu
+        private final HistogramaLatencia residencia = new HistogramaLatencia();
+
+        /**
+         * Constructor del MessageBuffer
+         * @param capacitat Capacitat màxima de la cua
+         */
+        public MessageBuffer(int capacitat) {
+            this(capacitat, ModeCua.MONITOR);
+        }
+
+        /**
+         * Constructor del MessageBuffer amb mode de cua
+         * En mode ANELL_LOCK_FREE la capacitat s'arrodoneix a la següent potència de 2
+         * @param capacitat Capacitat màxima de la cua
+         * @param mode Implementació interna de la cua
+         */
+        public MessageBuffer(int capacitat, ModeCua mode) {
+            this(capacitat, mode, PoliticaDesbordament.BLOQUEJAR);
+        }
+
+        /**
+         * Constructor del MessageBuffer amb mode de cua i política de desbordament
+         * @param capacitat Capacitat màxima de la cua
+         * @param mode Implementació interna de la cua
+         * @param politica Què fer quan un productor troba la cua plena (ABOCAR_A_DISC necessita un codec)
+         */
+        public MessageBuffer(int capacitat, ModeCua mode, PoliticaDesbordament politica) {
+            this(capacitat, mode, politica, null);
+        }
+
+        /**
+         * Constructor del MessageBuffer amb el codec per escriure els missatges a disc
+         * @param capacitat Capacitat màxima de la cua
+         * @param mode Implementació interna de la cua
+         * @param politica Què fer quan un productor troba la cua plena
+         * @param codecDisc Serialització dels missatges per a ABOCAR_A_DISC
+         */
+        public MessageBuffer(int capacitat, ModeCua mode, PoliticaDesbordament politica, CodecDisc<T> codecDisc) {
+            this(capacitat, mode, politica, codecDisc, null);
+        }
+
+        /**
+         * Constructor del MessageBuffer durable: cada missatge acceptat s'anota al diari
+         * i els que no s'havien consumit en tancar (o caure) l'anterior es tornen a posar a la cua
+         * @param capacitat Capacitat màxima de la cua
+         * @param mode Implementació interna de la cua (el diari només admet MONITOR)
+         * @param politica Què fer quan un productor troba la cua plena
+         * @param codecDisc Serialització dels missatges per a ABOCAR_A_DISC, o null
+         * @param diari Diari d'escriptura anticipada obert amb DiariWal.obrir(), o null
+         */
+        public MessageBuffer(int capacitat, ModeCua mode, PoliticaDesbordament politica, CodecDisc<T> codecDisc,
+                DiariWal<T> diari) {
+            if (diari != null && mode != ModeCua.MONITOR) {
+                // L'anell no té cap punt on ordenar les anotacions igual que la cua
+                throw new IllegalArgumentException("El diari només està disponible en mode MONITOR");
+            }
+            if (politica == PoliticaDesbordament.ABOCAR_A_DISC && codecDisc == null) {
+                throw new IllegalArgumentException("ABOCAR_A_DISC necessita un CodecDisc per als missatges");
+            }
+            if (mode == ModeCua.ANELL_LOCK_FREE) {
+                if (politica == PoliticaDesbordament.ABOCAR_A_DISC) {
+                    // L'anell no pot garantir l'ordre entre memòria i disc sense bloquejar
+                    throw new IllegalArgumentException("ABOCAR_A_DISC només està disponible en mode MONITOR");
+                }
+                this.anell = new AnellMPMC<>(capacitat, residencia);
+                this.cua = null;
+                this.capacitatMaxima = anell.capacitat();
+            } else {
+                this.anell = null;
+                this.cua = new CuaCircular<>(capacitat);
+                this.capacitatMaxima = capacitat;
+            }
+            this.politica = politica;
+            try {
+                this.abocament = politica == PoliticaDesbordament.ABOCAR_A_DISC ? AbocamentDisc.temporal(codecDisc) : null;
+            } catch (IOException e) {
+                throw new UncheckedIOException("No s'ha pogut crear el fitxer d'abocament", e);
+            }
+            this.diari = diari;
+            log("MessageBuffer creat amb capacitat: " + capacitatMaxima + " (" + mode + ", " + politica + ")");
+            if (diari != null) {
+                // Ja són al diari: no s'hi tornen a anotar, i poden passar de la capacitat
+                List<T> recuperats = diari.recuperar();
+                long ara = System.nanoTime();
+                for (T missatge : recuperats) {
+                    cua.afegir(missatge, ara);
+                }
+                if (!recuperats.isEmpty()) {
+                    log(NivellLog.INFO, "{} missatges recuperats del diari", recuperats.size());
+                }
+            }
+        }
+
+        /**
+         * Afegeix un missatge a la cua de forma segura
+         * Si la cua està plena, aplica la política de desbordament (per defecte, esperar)
+         * @param missatge El missatge a afegir
+         * @return false si el missatge no s'ha afegit (descartat o fil interromput)
+         * @throws IllegalStateException si la cua és plena i la política és REBUTJAR
+         */
+        @Override
+        public boolean afegirMissatge(T missatge) {
+            return afegir(missatge, SENSE_LIMIT);
+        }
+
+        /**
+         * Afegeix un missatge esperant com a màxim el temps indicat
+         * Permet als clients fallar ràpid quan el servidor va saturat
+         * @param missatge El missatge a afegir
+         * @param temps Temps màxim d'espera si la cua està plena
+         * @param unitat Unitat del temps d'espera
+         * @return false si s'ha esgotat el temps, s'ha descartat o el fil ha estat interromput
+         * @throws IllegalStateException si la cua és plena i la política és REBUTJAR
+         */
+        @Override
+        public boolean offer(T missatge, long temps, TimeUnit unitat) {
+            return afegir(missatge, Math.max(0, unitat.toNanos(temps)));
+        }
+
+        private boolean afegir(T missatge, long nanos) {
+            EsdevenimentsJfr.Encuar esdeveniment = new EsdevenimentsJfr.Encuar();
+            esdeveniment.begin();
+            boolean afegit = anell != null ? afegirAnell(missatge, nanos) : afegirMonitor(missatge, nanos);
+            control.gravar(esdeveniment, afegit ? 1 : 0);
+            return afegit;
+        }
+
+        private boolean afegirMonitor(T missatge, long nanos) {
+            agafarLock();
+            try {
+                if (!encuarMonitor(missatge, nanos)) {
+                    return false;
+                }
+                log(NivellLog.DEPURACIO, "Missatge afegit: '{}' | Total cua: {}", missatge, cua.size());
+
+                // Despertar un sol consumidor, si n'hi ha cap esperant
+                ControlCua.senyalar(noBuit, 1);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Posa el missatge a la cua aplicant la política de desbordament si està plena
+         * S'ha de cridar amb el lock agafat; no senyalitza els consumidors
+         * @return true si el missatge s'ha acceptat (a memòria o a disc)
+         */
+        private boolean encuarMonitor(T missatge, long nanos) {
+            // Mentre quedin missatges al disc, els nous hi van darrere per mantenir l'ordre
+            if (abocament != null && (abocament.teMissatges() || cua.size() >= capacitatMaxima)) {
+                if (!abocarADisc(missatge)) {
+                    return false;
+                }
+                anotarAlDiari(missatge);
+                return true;
+            }
+
+            if (cua.size() >= capacitatMaxima && !control.desbordar(politica, desbordaments, "Cua plena",
+                    capacitatMaxima, missatge, treureAntic, noPle, hiCapMonitor, nanos)) {
+                return false;
+            }
+
+            anotarAlDiari(missatge);
+            cua.afegir(missatge, System.nanoTime());
+            acceptats.increment();
+            return true;
+        }
+
+        private void anotarAlDiari(T missatge) {
+            if (diari != null) {
+                diari.afegir(missatge);
+            }
+        }
+
+        private boolean abocarADisc(T missatge) {
+            try {
+                abocament.escriure(missatge, System.nanoTime());
+            } catch (IOException e) {
+                log(NivellLog.ERROR, "Error abocant a disc: {}", e.getMessage());
+                desbordaments.descartarNou("Cua plena", missatge);
+                return false;
+            }
+            abocatsADisc.increment();
+            acceptats.increment();
+            log(NivellLog.DEPURACIO, "Cua plena! Missatge abocat a disc | Pendents al disc: {}", abocament.getPendents());
+            return true;
+        }
+
+        /**
+         * Torna a memòria tants missatges del disc com hi càpiguen
+         * S'ha de cridar amb el lock agafat, després de treure missatges
+         */
+        private void recarregarDeDisc() {
+            if (abocament == null) {
+                return;
+            }
+            try {
+                while (cua.size() < capacitatMaxima && abocament.teMissatges()) {
+                    T missatge = abocament.llegir();
+                    cua.afegir(missatge, abocament.getTempsLlegit());
+                }
+            } catch (IOException e) {
+                log(NivellLog.ERROR, "Error recuperant missatges del disc: {}", e.getMessage());
+            }
+        }
+
+        /**
+         * Treu el primer missatge de la cua del mode MONITOR i en registra la residència
+         * S'ha de cridar amb el lock agafat i la cua no buida
+         */
+        private T treureCua() {
+            T missatge = cua.treure();
+            if (diari != null) {
+                diari.consumit();
+            }
+            lliurats.increment();
+            residencia.registrar(System.nanoTime() - cua.getTempsTret());
+            return missatge;
+        }
+
+        private boolean hiCapMonitor() {
+            return cua.size() < capacitatMaxima;
+        }
+
+        private boolean potTreureMonitor() {
+            return !cua.isEmpty() || consumidorsAturats;
+        }
+
+        /**
+         * Treu el missatge més antic per fer lloc (DESCARTAR_ANTIC). S'ha de cridar amb el lock agafat
+         */
+        private T treureAnticMonitor() {
+            T vell = cua.treure();
+            if (diari != null) {
+                diari.consumit();
+            }
+            return vell;
+        }
+
+        private boolean afegirAnell(T missatge, long nanos) {
+            boolean afegit = politica == PoliticaDesbordament.BLOQUEJAR
+                    ? esperarOferirAnell(missatge, nanos)
+                    : anell.oferir(missatge) || desbordamentAnell(missatge);
+            if (!afegit) {
+                return false;
+            }
+            acceptats.increment();
+            log(NivellLog.DEPURACIO, "Missatge afegit: '{}' | Total cua: {}", missatge, anell.mida());
+            control.despertar(noBuit, 1);
+            return true;
+        }
+
+        /**
+         * Aplica una política que no bloqueja quan l'anell és ple
+         * @return true si finalment el missatge s'ha posat a l'anell
+         */
+        private boolean desbordamentAnell(T missatge) {
+            switch (politica) {
+                case DESCARTAR_ANTIC:
+                    do {
+                        T vell = anell.treureSenseMesurar();
+                        if (vell != null) {
+                            desbordaments.descartarAntic("Cua plena", vell);
+                        }
+                    } while (!anell.oferir(missatge));
+                    return true;
+                case REBUTJAR:
+                    desbordaments.rebutjar("Cua plena", capacitatMaxima);
+                    return false;
+                default:
+                    desbordaments.descartarNou("Cua plena", missatge);
+                    return false;
+            }
+        }
+
+        /**
+         * Posa un missatge a l'anell, bloquejant si està ple
+         * No registra res ni desperta consumidors: ho fa qui la crida
+         * @param nanos Temps màxim d'espera, o SENSE_LIMIT
+         * @return false si s'ha esgotat el temps o el fil ha estat interromput
+         */
+        private boolean esperarOferirAnell(T missatge, long nanos) {
+            // Camí ràpid: reintentar uns quants cops sense bloquejar
+            for (int i = 0; i < VOLTES_ESPERA_ACTIVA; i++) {
+                if (anell.oferir(missatge)) {
+                    return true;
+                }
+                Thread.onSpinWait();
+            }
+
+            // Camí lent: dormir a noPle fins que un consumidor alliberi espai.
+            // ControlCua compta l'esperant abans de reintentar, així un consumidor
+            // que buidi un slot després sempre ens veurà i senyalarà
+            agafarLock();
+            try {
+                return control.esperar(noPle, () -> anell.oferir(missatge), nanos);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Treu un missatge de la cua de forma segura
+         * Si la cua està buida, espera fins que hi hagi missatges
+         * @return El missatge tret de la cua
+         */
+        public T treureMissatge() {
+            return treure(SENSE_LIMIT);
+        }
+
+        /**
+         * Treu un missatge esperant com a màxim el temps indicat
+         * @param temps Temps màxim d'espera si la cua està buida
+         * @param unitat Unitat del temps d'espera
+         * @return El missatge, o null si s'ha esgotat el temps, el fil ha estat interromput
+         *         o s'han aturat els consumidors
+         */
+        public T poll(long temps, TimeUnit unitat) {
+            return treure(Math.max(0, unitat.toNanos(temps)));
+        }
+
+        private T treure(long nanos) {
+            EsdevenimentsJfr.Treure esdeveniment = new EsdevenimentsJfr.Treure();
+            esdeveniment.begin();
+            T missatge = anell != null ? treureAnell(nanos) : treureMonitor(nanos);
+            control.gravar(esdeveniment, missatge != null ? 1 : 0);
+            return missatge;
+        }
+
+        private T treureMonitor(long nanos) {
+            agafarLock();
+            try {
+                // Esperar mentre la cua estigui buida
+                if (!control.esperar(noBuit, potTreureMonitor, nanos) || cua.isEmpty()) {
+                    return null;
+                }
+
+                // Treure el missatge i recuperar el que hi hagi al disc
+                T missatge = treureCua();
+                recarregarDeDisc();
+                log(NivellLog.DEPURACIO, "Missatge tret: '{}' | Restants: {}", missatge, cua.size());
+
+                // Despertar un sol productor, si n'hi ha cap esperant
+                ControlCua.senyalar(noPle, 1);
+
+                return missatge;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private T treureAnell(long nanos) {
+            T missatge = esperarTreureAnell(nanos);
+            if (missatge == null) {
+                return null;
+            }
+            lliurats.increment();
+            log(NivellLog.DEPURACIO, "Missatge tret: '{}' | Restants: {}", missatge, anell.mida());
+            control.despertar(noPle, 1);
+            return missatge;
+        }
+
+        /**
+         * Treu un missatge de l'anell, bloquejant si està buit
+         * @param nanos Temps màxim d'espera, o SENSE_LIMIT
+         * @return El missatge, o null si s'ha esgotat el temps o el fil ha estat interromput
+         */
+        @SuppressWarnings("unchecked")
+        private T esperarTreureAnell(long nanos) {
+            T missatge = null;
+            for (int i = 0; i < VOLTES_ESPERA_ACTIVA && missatge == null; i++) {
+                missatge = anell.treure();
+                if (missatge == null) {
+                    Thread.onSpinWait();
+                }
+            }
+            if (missatge != null) {
+                return missatge;
+            }
+
+            agafarLock();
+            try {
+                Object[] tret = new Object[1];
+                control.esperar(noBuit, () -> (tret[0] = anell.treure()) != null || consumidorsAturats, nanos);
+                return (T) tret[0];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Afegeix un lot de missatges amb una sola senyalització per lot
+         * Si la cua s'omple a mig lot, aplica la política de desbordament a cada missatge
+         * @param missatges Missatges a afegir, en ordre
+         * @return Nombre de missatges afegits, menys que el lot si se n'han descartat
+         *         o el fil ha estat interromput
+         * @throws IllegalStateException amb REBUTJAR, al primer missatge que no hi cap
+         */
+        public int afegirLot(Collection<? extends T> missatges) {
+            if (missatges.isEmpty()) {
+                return 0;
+            }
+            EsdevenimentsJfr.Encuar esdeveniment = new EsdevenimentsJfr.Encuar();
+            esdeveniment.begin();
+            int afegits = anell != null ? afegirLotAnell(missatges) : afegirLotMonitor(missatges);
+            control.gravar(esdeveniment, afegits);
+            return afegits;
+        }
+
+        private int afegirLotMonitor(Collection<? extends T> missatges) {
+            int afegits = 0;
+            int pendentsDeSenyalar = 0;
+            agafarLock();
+            try {
+                for (T missatge : missatges) {
+                    if (pendentsDeSenyalar > 0 && cua.size() >= capacitatMaxima) {
+                        // Que els consumidors buidin el que ja hem afegit abans d'esperar
+                        ControlCua.senyalar(noBuit, pendentsDeSenyalar);
+                        pendentsDeSenyalar = 0;
+                    }
+                    if (encuarMonitor(missatge, SENSE_LIMIT)) {
+                        afegits++;
+                        pendentsDeSenyalar++;
+                    } else if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                }
+                log(NivellLog.DEPURACIO, "Lot de {} missatges afegit | Total cua: {}", afegits, cua.size());
+                return afegits;
+            } finally {
+                // També si REBUTJAR talla el lot: el que ja s'ha afegit s'ha de poder consumir
+                ControlCua.senyalar(noBuit, pendentsDeSenyalar);
+                lock.unlock();
+            }
+        }
+
+        private int afegirLotAnell(Collection<? extends T> missatges) {
+            int afegits = 0;
+            int pendentsDeSenyalar = 0;
+            try {
+                for (T missatge : missatges) {
+                    if (!anell.oferir(missatge)) {
+                        if (politica != PoliticaDesbordament.BLOQUEJAR) {
+                            if (!desbordamentAnell(missatge)) {
+                                continue;
+                            }
+                        } else {
+                            control.despertar(noBuit, pendentsDeSenyalar);
+                            pendentsDeSenyalar = 0;
+                            if (!esperarOferirAnell(missatge, SENSE_LIMIT)) {
+                                break;
+                            }
+                        }
+                    }
+                    acceptats.increment();
+                    afegits++;
+                    pendentsDeSenyalar++;
+                }
+                log(NivellLog.DEPURACIO, "Lot de {} missatges afegit | Total cua: {}", afegits, anell.mida());
+                return afegits;
+            } finally {
+                control.despertar(noBuit, pendentsDeSenyalar);
+            }
+        }
+
+        /**
+         * Treu tots els missatges disponibles (fins a max) amb una sola senyalització
+         * Si la cua està buida, espera fins que hi hagi com a mínim un missatge
+         * @param max Nombre màxim de missatges a treure
+         * @return Llista amb els missatges trets, buida si el fil ha estat interromput
+         *         o s'han aturat els consumidors (aturarConsumidors)
+         */
+        public List<T> treureLot(int max) {
+            EsdevenimentsJfr.Treure esdeveniment = new EsdevenimentsJfr.Treure();
+            esdeveniment.begin();
+            List<T> lot = treureLotSenseGravar(max);
+            control.gravar(esdeveniment, lot.size());
+            return lot;
+        }
+
+        private List<T> treureLotSenseGravar(int max) {
+            List<T> lot = new ArrayList<>(Math.min(max, capacitatMaxima));
+            if (anell != null) {
+                T primer = esperarTreureAnell(SENSE_LIMIT);
+                if (primer != null) {
+                    lot.add(primer);
+                    lliurats.increment();
+                    // El primer també ha alliberat un slot: es compta a la senyalització
+                    int trets = 1 + buidarAnell(lot, max - 1);
+                    log(NivellLog.DEPURACIO, "Lot de {} missatges tret | Restants: {}", trets, anell.mida());
+                    control.despertar(noPle, trets);
+                }
+                return lot;
+            }
+
+            agafarLock();
+            try {
+                if (control.esperar(noBuit, potTreureMonitor, SENSE_LIMIT)) {
+                    drainTo(lot, max);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return lot;
+        }
+
+        /**
+         * Treu de l'anell fins a max missatges sense bloquejar ni senyalitzar
+         * @return Nombre de missatges trets
+         */
+        private int buidarAnell(Collection<? super T> desti, int max) {
+            int trets = 0;
+            T missatge;
+            while (trets < max && (missatge = anell.treure()) != null) {
+                desti.add(missatge);
+                trets++;
+            }
+            lliurats.add(trets);
+            return trets;
+        }
+
+        /**
+         * Passa a desti els missatges disponibles (fins a max) sense bloquejar
+         * Equivalent a BlockingQueue.drainTo: tot el lot en una sola secció crítica
+         * @param desti Col·lecció on s'afegeixen els missatges
+         * @param max Nombre màxim de missatges a treure
+         * @return Nombre de missatges trets
+         */
+        public int drainTo(Collection<? super T> desti, int max) {
+            int trets = 0;
+            if (anell != null) {
+                trets = buidarAnell(desti, max);
+                if (trets > 0) {
+                    log(NivellLog.DEPURACIO, "Lot de {} missatges tret | Restants: {}", trets, anell.mida());
+                    control.despertar(noPle, trets);
+                }
+                return trets;
+            }
+
+            agafarLock();
+            try {
+                while (trets < max && !cua.isEmpty()) {
+                    desti.add(treureCua());
+                    trets++;
+                    if (cua.isEmpty()) {
+                        recarregarDeDisc();
+                    }
+                }
+                recarregarDeDisc();
+                if (trets > 0) {
+                    log(NivellLog.DEPURACIO, "Lot de {} missatges tret | Restants: {}", trets, cua.size());
+                    ControlCua.senyalar(noPle, trets);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return trets;
+        }
+
+        private void agafarLock() {
+            control.agafarLock();
+        }
+
+        /**
+         * Mida per als esdeveniments JFR: sense el lock és aproximada
+         */
+        private int midaAproximada() {
+            return anell != null ? anell.mida() : cua.size();
+        }
+
+        /**
+         * Retorna la quantitat de missatges a la cua
+         * En mode ANELL_LOCK_FREE és una aproximació si hi ha operacions en curs
+         * @return Nombre de missatges
+         */
+        @Override
+        public int getMidaCua() {
+            if (anell != null) {
+                return anell.mida();
+            }
+            agafarLock();
+            try {
+                return cua.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int getCapacitat() {
+            return capacitatMaxima;
+        }
+
+        /**
+         * Canvia la capacitat en calent (només en mode MONITOR)
+         * Si creix, desperta els productors que esperaven; si minva, els missatges
+         * que ja hi són es queden i els productors esperen fins que baixi de la nova capacitat
+         * @param novaCapacitat Nova capacitat màxima
+         * @throws UnsupportedOperationException en mode ANELL_LOCK_FREE, on la mida és fixa
+         */
+        @Override
+        public void redimensionar(int novaCapacitat) {
+            if (novaCapacitat <= 0) {
+                throw new IllegalArgumentException("La capacitat ha de ser positiva: " + novaCapacitat);
+            }
+            if (anell != null) {
+                throw new UnsupportedOperationException("La capacitat de l'anell és fixa; només es pot canviar en mode MONITOR");
+            }
+            agafarLock();
+            try {
+                int anterior = capacitatMaxima;
+                capacitatMaxima = novaCapacitat;
+                if (novaCapacitat > anterior) {
+                    recarregarDeDisc();
+                    ControlCua.senyalarTots(noPle);
+                }
+                log(NivellLog.INFO, "MessageBuffer redimensionat: {} -> {}", anterior, novaCapacitat);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Retorna quants missatges hi ha abocats al disc esperant tornar a memòria
+         * @return Nombre de missatges al disc (0 si la política no és ABOCAR_A_DISC)
+         */
+        @Override
+        public long getMidaDisc() {
+            if (abocament == null) {
+                return 0;
+            }
+            agafarLock();
+            try {
+                return abocament.getPendents();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public PoliticaDesbordament getPolitica() {
+            return politica;
+        }
+
+        /**
+         * @return Resum llegible dels comptadors de contenció
+         */
+        public String resumContencio() {
+            return "ple " + getBloquejats() + " cops (" + TimeUnit.NANOSECONDS.toMillis(getTempsBloquejatPleNs()) + " ms)"
+                    + ", buit " + getEsperesBuit() + " cops (" + TimeUnit.NANOSECONDS.toMillis(getTempsBloquejatBuitNs()) + " ms)"
+                    + ", lock ocupat " + getContencionsLock() + " cops (" + TimeUnit.NANOSECONDS.toMicros(getTempsEsperaLockNs()) + " µs)"
+                    + ", despertars espuris " + getDespertarsEspuris();
+        }
+
+        /**
+         * Publica les mètriques del buffer per JMX
+         * El nom també identifica el buffer als esdeveniments JFR
+         * @param nom Nom del buffer dins de com.securechat:type=MessageBuffer
+         */
+        public synchronized void registrarJmx(String nom) {
+            control.setNom(nom);
+            nomJmx = GestioJmx.registrar(this, "MessageBuffer", nom);
+        }
+
+        /**
+         * Retira el buffer de JMX, si s'hi havia publicat
+         */
+        public synchronized void desregistrarJmx() {
+            GestioJmx.desregistrar(nomJmx);
+            nomJmx = null;
+        }
+
+        /**
+         * Desperta els consumidors que esperen i fa que ja no s'esperin més:
+         * amb la cua buida, treureMissatge() i poll() retornen null i treureLot()
+         * una llista buida. Els missatges que quedin encara es poden treure
+         * Per aturar-los sense interrompre'ls (una interrupció a mitja espera fa soroll al log)
+         */
+        public void aturarConsumidors() {
+            consumidorsAturats = true;
+            agafarLock();
+            try {
+                ControlCua.senyalarTots(noBuit);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Fa l'última sincronització del diari i el tanca, si n'hi ha
+         * El que quedi a la cua es recuperarà en obrir el diari de nou
+         */
+        public void tancarDiari() {
+            if (diari != null) {
+                diari.tancar();
+            }
+        }
+
+        /**
+         * @return Histograma del temps entre que un missatge s'encua i un consumidor el treu
+         *         (els descartats no hi compten; els abocats a disc hi compten el temps al disc)
+         */
+        public HistogramaLatencia getResidencia() {
+            return residencia;
+        }
+
+        /** @return Missatges acceptats (a memòria o a disc) */
+        @Override
+        public long getAcceptats() {
+            return acceptats.sum();
+        }
+
+        /** @return Cops que un productor ha hagut d'esperar amb la cua plena */
+        @Override
+        public long getBloquejats() {
+            return noPle.getEsperes();
+        }
+
+        /** @return Missatges nous descartats per DESCARTAR_NOU (o per error d'abocament) */
+        @Override
+        public long getDescartatsNous() {
+            return desbordaments.getDescartatsNous();
+        }
+
+        /** @return Missatges antics descartats per DESCARTAR_ANTIC */
+        @Override
+        public long getDescartatsAntics() {
+            return desbordaments.getDescartatsAntics();
+        }
+
+        /** @return Missatges que els consumidors han tret de la cua */
+        @Override
+        public long getLliurats() {
+            return lliurats.sum();
+        }
+
+        /** @return Intents d'afegir rebutjats amb excepció per REBUTJAR */
+        @Override
+        public long getRebutjats() {
+            return desbordaments.getRebutjats();
+        }
+
+        /** @return Missatges que han passat pel disc per ABOCAR_A_DISC */
+        @Override
+        public long getAbocatsADisc() {
+            return abocatsADisc.sum();
+        }
+
+        /** @return Temps total (ns) que els productors han estat bloquejats amb la cua plena */
+        @Override
+        public long getTempsBloquejatPleNs() {
+            return noPle.getTempsBloquejatNs();
+        }
+
+        /** @return Cops que un consumidor ha hagut de dormir amb la cua buida */
+        @Override
+        public long getEsperesBuit() {
+            return noBuit.getEsperes();
+        }
+
+        /** @return Temps total (ns) que els consumidors han estat bloquejats amb la cua buida */
+        @Override
+        public long getTempsBloquejatBuitNs() {
+            return noBuit.getTempsBloquejatNs();
+        }
+
+        /** @return Cops que un fil ha trobat el lock ocupat */
+        @Override
+        public long getContencionsLock() {
+            return control.getContencionsLock();
+        }
+
+        /** @return Temps total (ns) esperant per agafar el lock */
+        @Override
+        public long getTempsEsperaLockNs() {
+            return control.getTempsEsperaLockNs();
+        }
+
+        /** @return Productors esperant ara mateix que hi hagi espai */
+        @Override
+        public int getEsperantsPle() {
+            return noPle.getEsperants();
+        }
+
+        /** @return Consumidors esperant ara mateix que hi hagi missatges */
+        @Override
+        public int getEsperantsBuit() {
+            return noBuit.getEsperants();
+        }
+
+        /**
+         * Retorna quants cops un fil s'ha despertat i ha hagut de tornar a esperar
+         * perquè la cua seguia plena o buida
+         * @return Nombre de despertars espuris des de la creació del buffer
+         */
+        @Override
+        public long getDespertarsEspuris() {
+            return control.getDespertarsEspuris();
+        }
+    }
+
+    //   ##################################################
+    //  ###  ABOCAMENT A DISC - DESBORDAMENT DEL BUFFER  ###
+    // ##################################################
+
+    /**
+     * Serialització dels missatges que el MessageBuffer escriu a disc
+     */
+    interface CodecDisc<T> {
+        /**
+         * @return Els bytes del missatge
+         */
+        byte[] codificar(T missatge);
+
+        /**
+         * @param registre Buffer que conté exactament els bytes d'un missatge
+         * @return El missatge reconstruït
+         */
+        T descodificar(ByteBuffer registre);
+
+        // Missatges de text en UTF-8
+        CodecDisc<String> TEXT = new CodecDisc<>() {
+            @Override
+            public byte[] codificar(String missatge) {
+                return missatge.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String descodificar(ByteBuffer registre) {
+                return StandardCharsets.UTF_8.decode(registre).toString();
+            }
+        };
+    }
+
+    /**
+     * Fitxer FIFO on el MessageBuffer aboca els missatges que no hi caben
+     * Cada registre és [longitud int][temps d'encuat long][bytes del CodecDisc].
+     * Quan s'ha llegit tot el fitxer es trunca per no créixer indefinidament.
+     * No és thread-safe: el MessageBuffer l'usa sempre amb el lock agafat
+     */
+    static final class AbocamentDisc<T> {
+        private final FileChannel canal;
+        private final CodecDisc<T> codec;
+        private final ByteBuffer capcalera = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+        private long posicioEscriptura;
+        private long posicioLectura;
+        private long pendents;
+        private long tempsLlegit; // Temps d'encuat de l'últim missatge llegit
+
+        AbocamentDisc(Path fitxer, CodecDisc<T> codec) throws IOException {
+            this.codec = codec;
+            this.canal = FileChannel.open(fitxer, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * Crea un abocament sobre un fitxer temporal que s'esborra en sortir
+         */
+        static <T> AbocamentDisc<T> temporal(CodecDisc<T> codec) throws IOException {
+            Path fitxer = Files.createTempFile("securechat-abocament-", ".bin");
+            fitxer.toFile().deleteOnExit();
+            return new AbocamentDisc<>(fitxer, codec);
+        }
+
+        /**
+         * @param tempsEncuat Moment (System.nanoTime) en què el missatge ha entrat al buffer
+         */
+        void escriure(T missatge, long tempsEncuat) throws IOException {
+            byte[] bytes = codec.codificar(missatge);
+            ByteBuffer registre = ByteBuffer.allocate(Integer.BYTES + Long.BYTES + bytes.length);
+            registre.putInt(bytes.length).putLong(tempsEncuat).put(bytes).flip();
+            while (registre.hasRemaining()) {
+                posicioEscriptura += canal.write(registre, posicioEscriptura);
+            }
+            pendents++;
+        }
+
+        /**
+         * @return El missatge més antic del fitxer, o null si no n'hi ha
+         */
+        T llegir() throws IOException {
+            if (pendents == 0) {
+                return null;
+            }
+            capcalera.clear();
+            llegirComplet(capcalera);
+            ByteBuffer cos = ByteBuffer.allocate(capcalera.getInt(0));
+            tempsLlegit = capcalera.getLong(Integer.BYTES);
+            llegirComplet(cos);
+            pendents--;
+
+            if (pendents == 0) {
+                // Tot llegit: tornar a començar el fitxer des de zero
+                canal.truncate(0);
+                posicioEscriptura = 0;
+                posicioLectura = 0;
+            }
+            return codec.descodificar(cos.flip());
+        }
+
+        private void llegirComplet(ByteBuffer desti) throws IOException {
+            while (desti.hasRemaining()) {
+                int llegits = canal.read(desti, posicioLectura);
+                if (llegits < 0) {
+                    throw new EOFException("Fitxer d'abocament truncat");
+                }
+                posicioLectura += llegits;
+            }
+        }
+
+        /**
+         * @return Temps d'encuat del missatge retornat per l'últim llegir()
+         */
+        long getTempsLlegit() {
+            return tempsLlegit;
+        }
+
+        boolean teMissatges() {
+            return pendents > 0;
+        }
+
+        long getPendents() {
+            return pendents;
+        }
+    }
+
+    /**
+     * Cua FIFO circular sobre arrays per al mode MONITOR
+     * Guarda el temps d'encuat de cada element en un array paral·lel, sense
+     * cap objecte per element. Creix doblant la mida si cal.
+     * No és thread-safe: el MessageBuffer l'usa sempre amb el lock agafat
+     */
+    static final class CuaCircular<E> {
+        private static final int MIDA_INICIAL_MAXIMA = 1024;
+
+        private Object[] elements;
+        private long[] temps;
+        private int primer;
+        private int mida;
+        private long tempsTret; // Temps d'encuat de l'últim element tret
+
+        /**
+         * @param capacitat Capacitat prevista; els arrays comencen petits i creixen fins a ella
+         */
+        CuaCircular(int capacitat) {
+            int inicial = Math.max(2, Math.min(capacitat, MIDA_INICIAL_MAXIMA));
+            this.elements = new Object[inicial];
+            this.temps = new long[inicial];
+        }
+
+        void afegir(E element, long tempsEncuat) {
+            if (mida == elements.length) {
+                redimensionar(elements.length * 2);
+            }
+            int index = (primer + mida) % elements.length;
+            elements[index] = element;
+            temps[index] = tempsEncuat;
+            mida++;
+        }
+
+        /**
+         * @return El primer element, o null si la cua és buida
+         */
+        @SuppressWarnings("unchecked")
+        E treure() {
+            if (mida == 0) {
+                return null;
+            }
+            E element = (E) elements[primer];
+            elements[primer] = null;
+            tempsTret = temps[primer];
+            primer = (primer + 1) % elements.length;
+            mida--;
+            return element;
+        }
+
+        /**
+         * @return Temps d'encuat de l'element retornat per l'últim treure()
+         */
+        long getTempsTret() {
+            return tempsTret;
+        }
+
+        int size() {
+            return mida;
+        }
+
+        boolean isEmpty() {
+            return mida == 0;
+        }
+
+        private void redimensionar(int novaMida) {
+            Object[] nousElements = new Object[novaMida];
+            long[] nousTemps = new long[novaMida];
+            for (int i = 0; i < mida; i++) {
+                int index = (primer + i) % elements.length;
+                nousElements[i] = elements[index];
+                nousTemps[i] = temps[index];
+            }
+            elements = nousElements;
+            temps = nousTemps;
+            primer = 0;
+        }
+    }
+
+    //   ##########################################################
+    //  ###  ANELL MPMC - CUA LOCK-FREE AMB SEQÜÈNCIES PER SLOT  ###
+    // ##########################################################
+
+    // Farciment perquè els cursors no comparteixin línia de cache (false sharing)
+    abstract static class FarcimentAnellInici {
+        long p00, p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    abstract static class CursorProductorAnell extends FarcimentAnellInici {
+        volatile long cursorProductor;
+    }
+
+    abstract static class FarcimentAnellMig extends CursorProductorAnell {
+        long p10, p11, p12, p13, p14, p15, p16, p17;
+    }
+
+    abstract static class CursorConsumidorAnell extends FarcimentAnellMig {
+        volatile long cursorConsumidor;
+    }
+
+    abstract static class FarcimentAnellFi extends CursorConsumidorAnell {
+        long p20, p21, p22, p23, p24, p25, p26, p27;
+    }
+
+    /**
+     * Cua circular lock-free per a múltiples productors i consumidors
+     * Cada slot té un número de seqüència que indica si està lliure o ocupat
+     * per a la volta actual, i els cursors s'avancen amb compareAndSet.
+     * oferir() i treure() no bloquegen mai: retornen false/null si està plena/buida
+     * Si té histograma, cada slot guarda també el temps d'encuat i treure()
+     * hi registra quant ha estat l'element a l'anell
+     */
+    static final class AnellMPMC<E> extends FarcimentAnellFi {
+        private static final VarHandle CURSOR_PRODUCTOR;
+        private static final VarHandle CURSOR_CONSUMIDOR;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                CURSOR_PRODUCTOR = lookup.findVarHandle(CursorProductorAnell.class, "cursorProductor", long.class);
+                CURSOR_CONSUMIDOR = lookup.findVarHandle(CursorConsumidorAnell.class, "cursorConsumidor", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final int mascara;
+        private final AtomicLongArray sequencies;
+        private final Object[] elements;
+        private final long[] temps;                     // Només si hi ha histograma
+        private final HistogramaLatencia residencia;
+
+        /**
+         * @param capacitat Capacitat mínima, s'arrodoneix a la següent potència de 2
+         */
+        AnellMPMC(int capacitat) {
+            this(capacitat, null);
+        }
+
+        /**
+         * @param capacitat Capacitat mínima, s'arrodoneix a la següent potència de 2
+         * @param residencia Histograma on registrar el temps a l'anell, o null
+         */
+        AnellMPMC(int capacitat, HistogramaLatencia residencia) {
+            if (capacitat <= 0) {
+                throw new IllegalArgumentException("La capacitat ha de ser positiva: " + capacitat);
+            }
+            int mida = capacitat <= 2 ? 2 : Integer.highestOneBit(capacitat - 1) << 1;
+            this.mascara = mida - 1;
+            this.sequencies = new AtomicLongArray(mida);
+            this.elements = new Object[mida];
+            this.residencia = residencia;
+            this.temps = residencia != null ? new long[mida] : null;
+            for (int i = 0; i < mida; i++) {
+                sequencies.set(i, i);
+            }
+        }
+
+        /**
+         * Intenta afegir un element sense bloquejar
+         * @return false si l'anell està ple
+         */
+        boolean oferir(E element) {
+            long posicio = cursorProductor;
+            while (true) {
+                int index = (int) (posicio & mascara);
+                long diferencia = sequencies.get(index) - posicio;
+                if (diferencia == 0) {
+                    if (CURSOR_PRODUCTOR.compareAndSet(this, posicio, posicio + 1)) {
+                        elements[index] = element;
+                        if (temps != null) {
+                            temps[index] = System.nanoTime();
+                        }
+                        sequencies.set(index, posicio + 1); // publica el slot als consumidors
+                        return true;
+                    }
+                    posicio = cursorProductor;
+                } else if (diferencia < 0) {
+                    return false; // el slot encara és de la volta anterior: ple
+                } else {
+                    posicio = cursorProductor; // un altre productor ens ha passat davant
+                }
+            }
+        }
+
+        /**
+         * Intenta treure un element sense bloquejar
+         * @return l'element, o null si l'anell està buit
+         */
+        E treure() {
+            return treure(true);
+        }
+
+        /**
+         * Com treure(), però sense registrar la residència (per descartar elements)
+         */
+        E treureSenseMesurar() {
+            return treure(false);
+        }
+
+        @SuppressWarnings("unchecked")
+        private E treure(boolean mesurar) {
+            long posicio = cursorConsumidor;
+            while (true) {
+                int index = (int) (posicio & mascara);
+                long diferencia = sequencies.get(index) - (posicio + 1);
+                if (diferencia == 0) {
+                    if (CURSOR_CONSUMIDOR.compareAndSet(this, posicio, posicio + 1)) {
+                        E element = (E) elements[index];
+                        elements[index] = null;
+                        if (mesurar && temps != null) {
+                            residencia.registrar(System.nanoTime() - temps[index]);
+                        }
+                        sequencies.set(index, posicio + mascara + 1); // allibera el slot per a la volta següent
+                        return element;
+                    }
+                    posicio = cursorConsumidor;
+                } else if (diferencia < 0) {
+                    return null; // encara no s'ha publicat res en aquest slot: buit
+                } else {
+                    posicio = cursorConsumidor;
+                }
+            }
+        }
+
+        int capacitat() {
+            return mascara + 1;
+        }
+
+        /**
+         * Mida aproximada: exacta només si no hi ha operacions concurrents
+         */
+        int mida() {
+            long mida = cursorProductor - cursorConsumidor;
+            return (int) Math.max(0, Math.min(mida, capacitat()));
+        }
+    }
+
+    //   #######################################
+    //  ###  UTILITATS - LOG AMB TIMESTAMP  ###
+    // #######################################
+
+    // Colors disponibles per als fils, en l'ordre en què s'assignen
+    private static final String[] COLORS_FILS = {
+            Colors.AZUL_BRILLANTE,
+            Colors.VERDE_BRILLANTE,
+            Colors.AMARILLO_BRILLANTE,
+            Colors.MAGENTA_BRILLANTE,
+            Colors.CYAN_BRILLANTE,
+            Colors.ROJO_BRILLANTE
+    };
+
+    /**
+     * Assigna un color consistent a cada fil segons el seu nom
+     * @param nomFil Nom del fil
+     * @return Color ANSI assignat al fil
+     */
+    private static String obtenirColorPerFil(String nomFil) {
+        // Usar el hashCode del nom per assignar un color consistent
+        int index = Math.abs(nomFil.hashCode()) % COLORS_FILS.length;
+        return COLORS_FILS[index];
+    }
+
+    /**
+     * Registre asíncron: els fils que fan log només omplen una entrada
+     * preassignada d'un anell i un únic fil escriptor les formata i les
+     * escriu per lots. Així cap fil fa entrada/sortida de consola mentre té
+     * el lock del buffer, i una crida de log no assigna memòria pròpia:
+     * cada fil resol una sola vegada el seu ContextFil (nom, color, capçalera)
+     * i les entrades de l'anell es reutilitzen a cada volta
+     */
+    static final class RegistreAsincron {
+        private static final int CAPACITAT = 8192; // potència de 2
+        private static final int MASCARA = CAPACITAT - 1;
+        private static final int MIDA_LOT = 256;
+        private static final long ESPERA_MAXIMA_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+        private static final String SALT_LINIA = System.lineSeparator();
+        private static final DateTimeFormatter FORMAT_HORA = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+        /**
+         * Estat de log d'un fil, calculat una sola vegada per fil
+         */
+        static final class ContextFil {
+            final Thread fil;
+            String nom;
+            String capcalera; // "] [nom] " + color del fil
+
+            ContextFil(Thread fil) {
+                this.fil = fil;
+                actualitzarNom();
+            }
+
+            /**
+             * Recalcula la capçalera si el fil ha canviat de nom des de l'últim log
+             */
+            ContextFil actualitzarNom() {
+                String nomActual = fil.getName();
+                if (nomActual != nom) {
+                    nom = nomActual;
+                    // Els fils virtuals no tenen nom per defecte: s'identifiquen pel seu id
+                    @SuppressWarnings("deprecation")
+                    String nomVisible = nomActual.isEmpty() ? "fil-" + fil.getId() : nomActual;
+                    capcalera = "] [" + nomVisible + "] " + obtenirColorPerFil(nomVisible);
+                }
+                return this;
+            }
+        }
+
+        /**
+         * Slot de l'anell. Es reutilitza a cada volta: el productor l'omple
+         * i el publica amb la seqüència, i l'escriptor el buida
+         */
+        private static final class Entrada {
+            long instant;
+            String capcalera; // null per a línies sense format (separadors)
+            String missatge;  // text literal o plantilla amb {}
+            int nombreArgs;
+            Object arg1;
+            Object arg2;
+        }
+
+        // Anell de seqüències per slot com l'AnellMPMC, però amb les entrades
+        // preassignades i un sol consumidor (l'escriptor)
+        private final Entrada[] entrades = new Entrada[CAPACITAT];
+        private final AtomicLongArray sequencies = new AtomicLongArray(CAPACITAT);
+        private final AtomicLong cursorProductor = new AtomicLong();
+        private long cursorEscriptor; // només l'usa l'escriptor (o, un cop aturat, qui té el monitor)
+
+        private final ThreadLocal<ContextFil> contextos = ThreadLocal.withInitial(
+                () -> new ContextFil(Thread.currentThread()));
+        private final PrintStream sortida;
+        private final Thread escriptor;
+
+        // Estat de format: només l'usa el fil escriptor, i un cop aturat, qui té el monitor
+        private final StringBuilder lot = new StringBuilder(16 * 1024);
+        private final ZoneId zona = ZoneId.systemDefault();
+        private long segonFormatat = Long.MIN_VALUE;
+        private String horaFormatada = "";
+
+        private final Entrada directa = new Entrada(); // protegida pel monitor
+
+        private volatile boolean escriptorAdormit;
+        private volatile boolean tancant;
+        private volatile boolean tancat; // l'escriptor ja no buidarà l'anell
+
+        RegistreAsincron(PrintStream sortida) {
+            for (int i = 0; i < CAPACITAT; i++) {
+                entrades[i] = new Entrada();
+                sequencies.set(i, i);
+            }
+            this.sortida = sortida;
+            this.escriptor = new Thread(this::escriure, "Registre-Escriptor");
+            this.escriptor.setDaemon(true);
+            this.escriptor.start();
+            // Buidar el que quedi pendent quan la JVM s'aturi
+            Runtime.getRuntime().addShutdownHook(new Thread(this::tancar, "Registre-Tancament"));
+        }
+
+        void registrar(String missatge) {
+            registrar(missatge, 0, null, null);
+        }
+
+        /**
+         * @param plantilla Missatge; si nombreArgs > 0, cada {} es substitueix en formatar
+         */
+        void registrar(String plantilla, int nombreArgs, Object arg1, Object arg2) {
+            publicar(System.currentTimeMillis(), contextos.get().actualitzarNom().capcalera,
+                    plantilla, nombreArgs, arg1, arg2);
+        }
+
+        void registrarLinia(String linia) {
+            publicar(0, null, linia, 0, null, null);
+        }
+
+        /**
+         * Reserva un slot, l'omple i el publica a l'escriptor
+         * Si l'anell és ple esperem l'escriptor: preferim frenar que perdre logs
+         * Un cop aturat l'escriptor, s'escriu directament des del fil que fa log
+         */
+        private void publicar(long instant, String capcalera, String missatge,
+                              int nombreArgs, Object arg1, Object arg2) {
+            if (tancat) {
+                escriureDirectament(instant, capcalera, missatge, nombreArgs, arg1, arg2);
+                return;
+            }
+            long posicio = cursorProductor.get();
+            while (true) {
+                int index = (int) (posicio & MASCARA);
+                long diferencia = sequencies.get(index) - posicio;
+                if (diferencia == 0) {
+                    if (cursorProductor.compareAndSet(posicio, posicio + 1)) {
+                        Entrada entrada = entrades[index];
+                        entrada.instant = instant;
+                        entrada.capcalera = capcalera;
+                        entrada.missatge = missatge;
+                        entrada.nombreArgs = nombreArgs;
+                        entrada.arg1 = arg1;
+                        entrada.arg2 = arg2;
+                        sequencies.set(index, posicio + 1);
+                        break;
+                    }
+                } else if (diferencia < 0) {
+                    if (tancat) {
+                        // Ple i sense ningú que el buidi: esperar seria per sempre
+                        escriureDirectament(instant, capcalera, missatge, nombreArgs, arg1, arg2);
+                        return;
+                    }
+                    LockSupport.unpark(escriptor);
+                    Thread.yield();
+                }
+                posicio = cursorProductor.get();
+            }
+            if (escriptorAdormit) {
+                LockSupport.unpark(escriptor);
+            }
+        }
+
+        private boolean hiHaPendents() {
+            return sequencies.get((int) (cursorEscriptor & MASCARA)) == cursorEscriptor + 1;
+        }
+
+        /**
+         * Bucle del fil escriptor: treu entrades per lots, les formata i fa un sol flush per lot
+         */
+        private void escriure() {
+            while (true) {
+                if (formatarPendents(MIDA_LOT) > 0) {
+                    bolcarLot();
+                    continue;
+                }
+                if (tancant) {
+                    synchronized (this) {
+                        // A partir d'aquí els productors escriuen directament; el que
+                        // s'hagi publicat just abans es buida ara
+                        tancat = true;
+                        formatarPendents(Integer.MAX_VALUE);
+                        bolcarLot();
+                    }
+                    return;
+                }
+                // Marcar-se com adormit abans de tornar a mirar l'anell, així
+                // un productor que hi publiqui després sempre ens despertarà
+                escriptorAdormit = true;
+                if (!hiHaPendents()) {
+                    LockSupport.parkNanos(this, ESPERA_MAXIMA_NANOS);
+                }
+                escriptorAdormit = false;
+            }
+        }
+
+        /**
+         * Formata al lot fins a maxim entrades publicades i allibera els seus slots
+         * @return Entrades formatades
+         */
+        private int formatarPendents(int maxim) {
+            int escrites = 0;
+            while (escrites < maxim && hiHaPendents()) {
+                int index = (int) (cursorEscriptor & MASCARA);
+                Entrada entrada = entrades[index];
+                formatar(entrada);
+                entrada.missatge = null;
+                entrada.arg1 = null;
+                entrada.arg2 = null;
+                sequencies.set(index, cursorEscriptor + CAPACITAT); // slot lliure per a la volta següent
+                cursorEscriptor++;
+                escrites++;
+            }
+            return escrites;
+        }
+
+        private void bolcarLot() {
+            sortida.append(lot);
+            sortida.flush();
+            lot.setLength(0);
+        }
+
+        /**
+         * Escriu una entrada des del fil que fa log, quan l'escriptor ja s'ha aturat
+         * Abans buida el que hagi quedat a l'anell, per no alterar l'ordre
+         */
+        private synchronized void escriureDirectament(long instant, String capcalera, String missatge,
+                                                      int nombreArgs, Object arg1, Object arg2) {
+            formatarPendents(Integer.MAX_VALUE);
+            directa.instant = instant;
+            directa.capcalera = capcalera;
+            directa.missatge = missatge;
+            directa.nombreArgs = nombreArgs;
+            directa.arg1 = arg1;
+            directa.arg2 = arg2;
+            formatar(directa);
+            directa.missatge = null;
+            directa.arg1 = null;
+            directa.arg2 = null;
+            bolcarLot();
+        }
+
+        private void formatar(Entrada entrada) {
+            if (entrada.capcalera == null) {
+                lot.append(entrada.missatge).append(SALT_LINIA);
+                return;
+            }
+            lot.append('[');
+            afegirHora(entrada.instant);
+            lot.append(entrada.capcalera);
+            if (entrada.nombreArgs == 0) {
+                lot.append(entrada.missatge);
+            } else {
+                afegirPlantilla(entrada);
+            }
+            lot.append(Colors.RESET).append(SALT_LINIA);
+        }
+
+        /**
+         * Substitueix cada {} de la plantilla pel següent argument
+         */
+        private void afegirPlantilla(Entrada entrada) {
+            String plantilla = entrada.missatge;
+            int inici = 0;
+            for (int i = 0; i < entrada.nombreArgs; i++) {
+                int marca = plantilla.indexOf("{}", inici);
+                if (marca < 0) {
+                    break;
+                }
+                lot.append(plantilla, inici, marca).append(i == 0 ? entrada.arg1 : entrada.arg2);
+                inici = marca + 2;
+            }
+            lot.append(plantilla, inici, plantilla.length());
+        }
+
+        /**
+         * Escriu HH:mm:ss.SSS al lot. La part HH:mm:ss només es recalcula
+         * quan canvia el segon; els mil·lisegons s'escriuen a mà
+         */
+        private void afegirHora(long instant) {
+            long segon = Math.floorDiv(instant, 1000);
+            if (segon != segonFormatat) {
+                segonFormatat = segon;
+                horaFormatada = FORMAT_HORA.format(Instant.ofEpochSecond(segon).atZone(zona)) + ".";
+            }
+            int millis = Math.floorMod(instant, 1000);
+            lot.append(horaFormatada)
+                    .append((char) ('0' + millis / 100))
+                    .append((char) ('0' + millis / 10 % 10))
+                    .append((char) ('0' + millis % 10));
+        }
+
+        /**
+         * Espera que l'escriptor hagi buidat tot el que hi havia i atura'l
+         */
+        void tancar() {
+            tancant = true;
+            LockSupport.unpark(escriptor);
+            try {
+                escriptor.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final RegistreAsincron REGISTRE = new RegistreAsincron(obrirSortidaLog());
+
+    /**
+     * Sortida del registre: la consola, o el fitxer de -Dsecurechat.log.fitxer
+     * (per exemple /dev/null als benchmarks, per mesurar el cost sense inundar la consola)
+     */
+    private static PrintStream obrirSortidaLog() {
+        String fitxer = System.getProperty("securechat.log.fitxer");
+        if (fitxer == null) {
+            return System.out;
+        }
+        try {
+            return new PrintStream(new BufferedOutputStream(new FileOutputStream(fitxer, true)), false,
+                    StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("No s'ha pogut obrir el fitxer de log " + fitxer + ": " + e.getMessage());
+            return System.out;
+        }
+    }
+
+    /**
+     * Nivells de log, de més a menys detallat
+     */
+    enum NivellLog {
+        DEPURACIO,  // Detall de cada operació del buffer (camí calent)
+        INFO,       // Esdeveniments normals: connexions, inici i aturada
+        AVIS,       // Missatges descartats, clients saturats, interrupcions
+        ERROR       // Errors d'entrada/sortida
+    }
+
+    // Nivell mínim que s'escriu; es pot canviar amb -Dsecurechat.log.nivell=DEPURACIO
+    private static volatile int nivellMinim = llegirNivellLog().ordinal();
+
+    /**
+     * Nivell de la propietat securechat.log.nivell, sense distingir majúscules
+     * Un valor desconegut no ha d'impedir carregar la classe: s'avisa i es fa servir INFO
+     */
+    private static NivellLog llegirNivellLog() {
+        String valor = System.getProperty("securechat.log.nivell");
+        if (valor == null) {
+            return NivellLog.INFO;
+        }
+        try {
+            return NivellLog.valueOf(valor.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            // El registre asíncron encara no està a punt
+            System.err.println("Nivell de log desconegut '" + valor + "', es fa servir INFO (valors: "
+                    + Arrays.toString(NivellLog.values()) + ")");
+            return NivellLog.INFO;
+        }
+    }
+
+    /**
+     * Canvia el nivell mínim de log en calent
+     * @param nivell Nivell a partir del qual s'escriuen els missatges
+     */
+    static void setNivellLog(NivellLog nivell) {
+        nivellMinim = nivell.ordinal();
+    }
+
+    /**
+     * @return true si un missatge d'aquest nivell s'escriuria
+     */
+    static boolean logActiu(NivellLog nivell) {
+        return nivell.ordinal() >= nivellMinim;
+    }
+
+    /**
+     * Mètode per imprimir logs amb timestamp, nom del fil i color automàtic
+     * Cada fil té assignat automàticament un color segons el seu nom
+     * El format i l'escriptura es fan en segon pla (RegistreAsincron)
+     * @param missatge El missatge a mostrar (nivell INFO)
+     */
+    static void log(String missatge) {
+        log(NivellLog.INFO, missatge);
+    }
+
+    static void log(NivellLog nivell, String missatge) {
+        if (logActiu(nivell)) {
+            REGISTRE.registrar(missatge, 0, null, null);
+        }
+    }
+
+    /**
+     * Log amb el missatge construït només si el nivell està actiu
+     * @param missatge Construeix el missatge al fil que fa el log
+     */
+    static void log(NivellLog nivell, Supplier<String> missatge) {
+        if (logActiu(nivell)) {
+            REGISTRE.registrar(missatge.get(), 0, null, null);
+        }
+    }
+
+    /**
+     * Log amb plantilla: cada {} es substitueix per un argument al fil escriptor,
+     * així el fil que fa el log no concatena res. Els arguments han de ser
+     * immutables (String, nombres...) perquè es llegeixen més tard
+     */
+    static void log(NivellLog nivell, String plantilla, Object arg) {
+        if (logActiu(nivell)) {
+            REGISTRE.registrar(plantilla, 1, arg, null);
+        }
+    }
+
+    static void log(NivellLog nivell, String plantilla, Object arg1, Object arg2) {
+        if (logActiu(nivell)) {
+            REGISTRE.registrar(plantilla, 2, arg1, arg2);
+        }
+    }
+
+    /**
+     * Imprimeix un separador visual a la consola
+     * Passa pel mateix registre asíncron perquè no s'avanci als logs pendents
+     * @param titol Títol del separador
+     */
+    private static void imprimirSeparador(String titol) {
+        REGISTRE.registrarLinia("\n" + Colors.colorear("=".repeat(70), Colors.CYAN_BRILLANTE));
+        REGISTRE.registrarLinia(Colors.colorear("  " + titol, Colors.CYAN_BRILLANTE + Colors.NEGRETA));
+        REGISTRE.registrarLinia(Colors.colorear("=".repeat(70), Colors.CYAN_BRILLANTE) + "\n");
+    }
+
+    //   ################################################
+    //  ###  FITA 1: 3 FILS FUNCIONANT EN PARAL·LEL  ###
+    // ################################################
+
+    /**
+     * Demostra 3 fils executant-se en paral·lel
+     * Cada fil imprimeix logs amb timestamps i colors diferents
+     */
+    public static void demostrarFilsBasics() {
+        imprimirSeparador("FITA 1: 3 FILS EN PARAL·LEL");
+
+        // Crear 3 fils - cada un tindrà el seu color automàtic
+        Thread fil1 = new Thread(() -> {
+            for (int i = 1; i <= 5; i++) {
+                log("Fil 1 - Iteració " + i);
+                try {
+                    Thread.sleep(500); // Simular treball
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            log("Fil 1 - FINALITZAT");
+        }, "Fil-1");
+
+        Thread fil2 = new Thread(() -> {
+            for (int i = 1; i <= 5; i++) {
+                log("Fil 2 - Iteració " + i);
+                try {
+                    Thread.sleep(700); // Simular treball amb diferent velocitat
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            log("Fil 2 - FINALITZAT");
+        }, "Fil-2");
+
+        Thread fil3 = new Thread(() -> {
+            for (int i = 1; i <= 5; i++) {
+                log("Fil 3 - Iteració " + i);
+                try {
+                    Thread.sleep(600); // Simular treball amb diferent velocitat
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            log("Fil 3 - FINALITZAT");
+        }, "Fil-3");
+
+        // Iniciar els 3 fils
+        log("Iniciant els 3 fils...");
+        fil1.start();
+        fil2.start();
+        fil3.start();
+
+        // Esperar que tots els fils acabin
+        try {
+            fil1.join();
+            fil2.join();
+            fil3.join();
+            log("Tots els fils han finalitzat correctament");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Error esperant els fils: " + e.getMessage());
+        }
+    }
+
+    //   ###############################################
+    //  ###  FITA 2: DEMOSTRACIÓ DE MESSAGE BUFFER  ###
+    // ###############################################
+
+    /**
+     * Demostra el funcionament del MessageBuffer
+     * Crea productors i consumidors que treballen amb la cua segura
+     */
+    public static void demostrarMessageBuffer() {
+        imprimirSeparador("FITA 2: MESSAGE BUFFER - CUA SEGURA");
+
+        // Crear el buffer compartit amb capacitat de 3 missatges
+        MessageBuffer<String> buffer = new MessageBuffer<>(3);
+
+        // Fil PRODUCTOR - Afegeix missatges
+        Thread productor = new Thread(() -> {
+            for (int i = 1; i <= 7; i++) {
+                String missatge = "Missatge_" + i;
+                log("Productor intenta afegir: " + missatge);
+                buffer.afegirMissatge(missatge);
+                try {
+                    Thread.sleep(400); // Simular temps entre missatges
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            log("Productor FINALITZAT");
+        }, "Productor");
+
+        // Fil CONSUMIDOR - Treu missatges
+        Thread consumidor = new Thread(() -> {
+            for (int i = 1; i <= 7; i++) {
+                log("Consumidor intenta treure missatge");
+                String missatge = buffer.treureMissatge();
+                log("Consumidor ha rebut: " + missatge);
+                try {
+                    Thread.sleep(800); // Simular processament més lent
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            log("Consumidor FINALITZAT");
+        }, "Consumidor");
+
+        // Iniciar productor i consumidor
+        log("Iniciant productor i consumidor...");
+        productor.start();
+        consumidor.start();
+
+        // Esperar que acabin
+        try {
+            productor.join();
+            consumidor.join();
+            log("MessageBuffer funciona correctament!");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Error esperant fils: " + e.getMessage());
+        }
+    }
+
+    /**
+     * FITA 2b: Carrils de prioritat
+     * Un productor omple el carril de dades més de pressa del que el consumidor
+     * el buida; els missatges de control passen igualment per davant.
+     * Després, els torns ponderats amb els dos carrils plens
+     */
+    public static void demostrarCarrilsPrioritat() {
+        imprimirSeparador("FITA 2b: CARRILS DE PRIORITAT - CONTROL PER DAVANT DE LES DADES");
+
+        // Carril 0 (control) i carril 1 (dades), de 4 missatges cadascun
+        BufferCarrils<String> buffer = BufferCarrils.estricta(new int[] {4, 4}, MessageBuffer.PoliticaDesbordament.BLOQUEJAR,
+                missatge -> missatge.startsWith("Control") ? 0 : 1);
+        buffer.registrar("carrils"); // carrils-0 (control) i carrils-1 (dades) a JMX i a les mètriques
+        int nombreDades = 8;
+        int nombreControl = 3;
+
+        // Fil PRODUCTOR de dades - s'atura quan el seu carril és ple
+        Thread productorDades = new Thread(() -> {
+            for (int i = 1; i <= nombreDades; i++) {
+                buffer.afegirMissatge("Dades_" + i);
+            }
+            log("Productor de dades FINALITZAT");
+        }, "Productor-Dades");
+
+        // Fil PRODUCTOR de control - el carril de dades ple no l'atura
+        Thread productorControl = new Thread(() -> {
+            for (int i = 1; i <= nombreControl; i++) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                log("Productor de control afegeix: Control_" + i);
+                buffer.afegirMissatge("Control_" + i);
+            }
+            log("Productor de control FINALITZAT");
+        }, "Productor-Control");
+
+        // Fil CONSUMIDOR - lent, sempre treu primer el control
+        Thread consumidor = new Thread(() -> {
+            for (int i = 1; i <= nombreDades + nombreControl; i++) {
+                String missatge = buffer.treureMissatge();
+                if (missatge == null) {
+                    return;
+                }
+                log("Consumidor ha rebut: " + missatge);
+                try {
+                    Thread.sleep(300); // Simular processament lent
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            log("Consumidor FINALITZAT");
+        }, "Consumidor");
+
+        productorDades.start();
+        productorControl.start();
+        consumidor.start();
+        try {
+            productorDades.join();
+            productorControl.join();
+            consumidor.join();
+            buffer.informar();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Error esperant fils: " + e.getMessage());
+        } finally {
+            buffer.desregistrar();
+        }
+
+        // Amb torns ponderats {3, 1} i els dos carrils plens, les dades també avancen
+        BufferCarrils<String> ponderat = BufferCarrils.ponderada(new int[] {6, 6}, new int[] {3, 1},
+                MessageBuffer.PoliticaDesbordament.BLOQUEJAR, missatge -> missatge.startsWith("Control") ? 0 : 1);
+        for (int i = 1; i <= 6; i++) {
+            ponderat.afegirMissatge("Dades_" + i);
+            ponderat.afegirMissatge("Control_" + i);
+        }
+        log("Ordre amb torns ponderats {3, 1}: " + ponderat.treureLot(12));
+    }
+
+    //   #######################################################
+    //  ###  FITA 3: EXECUTOR SERVICE AMB GENERADOR DE CÀRREGA  ###
+    // #######################################################
+
+    /**
+     * Com s'executen els clients al servidor
+     */
+    enum ModeExecucio {
+        POOL_FIX,     // Pool de MIDA_POOL fils de plataforma: un client adormit n'ocupa un
+        FIL_VIRTUAL   // Un fil virtual per client (JDK 21+): els clients adormits no ocupen cap fil de plataforma
+    }
+
+    private static final int MIDA_POOL = 5;
+
+    /**
+     * Llegeix el mode d'execució dels clients: -Dsecurechat.clients.mode=FIL_VIRTUAL
+     * @return El mode configurat, POOL_FIX per defecte
+     */
+    static ModeExecucio modeExecucioConfigurat() {
+        return ModeExecucio.valueOf(System.getProperty("securechat.clients.mode", ModeExecucio.POOL_FIX.name()));
+    }
+
+    /**
+     * Crea l'ExecutorService on s'executen els clients
+     * Els fils virtuals s'obtenen per reflexió perquè el projecte compila per a Java 17;
+     * si la JVM no en té, es torna al pool fix
+     * @param mode Mode d'execució demanat
+     * @return L'executor dels clients
+     */
+    static ExecutorService crearExecutorClients(ModeExecucio mode) {
+        if (mode == ModeExecucio.FIL_VIRTUAL) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                log("Servidor iniciat amb un fil virtual per client");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                log(NivellLog.AVIS, "Fils virtuals no disponibles a Java {}, s'usa el pool fix", Runtime.version().feature());
+            }
+        }
+        log(NivellLog.INFO, "Servidor iniciat amb pool de {} fils", MIDA_POOL);
+        return Executors.newFixedThreadPool(MIDA_POOL);
+    }
+
+    /**
+     * Demostra l'ús d'ExecutorService per gestionar múltiples clients
+     * Els clients del GeneradorCarrega corren als fils de l'executor i carreguen
+     * per loopback un ServidorNio amb un processador que fa eco de cada missatge
+     * Es configura amb les propietats securechat.carrega.* (vegeu GeneradorCarrega)
+     */
+    public static void demostrarExecutorService() {
+        imprimirSeparador("FITA 3: EXECUTOR SERVICE - GENERADOR DE CÀRREGA");
+
+        // Un buffer per conversa repartit entre tantes particions com nuclis,
+        // cadascuna amb un processador que fa l'eco de cada missatge
+        BufferParticionat<Missatge> buffer = new BufferParticionat<>(64, Missatge::getConversa);
+
+        ServidorNio servidor = new ServidorNio(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, buffer);
+        try {
+            servidor.iniciar();
+        } catch (IOException e) {
+            log(NivellLog.ERROR, "No s'ha pogut iniciar el servidor: {}", e.getMessage());
+            return;
+        }
+
+        // Crear l'ExecutorService dels clients segons el mode configurat:
+        // pool fix de 5 fils o un fil virtual per client
+        ExecutorService executorService = crearExecutorClients(modeExecucioConfigurat());
+        // Amb fils virtuals no hi ha pool per mirar ni redimensionar
+        ObjectName nomJmxExecutor = null;
+        if (executorService instanceof ThreadPoolExecutor) {
+            nomJmxExecutor = GestioJmx.registrar(
+                    new GestioJmx.ExecutorClients((ThreadPoolExecutor) executorService), "ExecutorClients", "clients");
+        } else {
+            log(NivellLog.DEPURACIO, "L'executor de clients no és un pool de fils: no es publica per JMX");
+        }
+
+        // Els missatges d'un client sempre van a la mateixa partició: l'eco surt en ordre
+        buffer.iniciar("clients", missatge -> {
+            EsdevenimentsJfr.ProcessamentMissatge esdeveniment = new EsdevenimentsJfr.ProcessamentMissatge();
+            esdeveniment.begin();
+            log(NivellLog.DEPURACIO, "Servidor processant: {}", missatge);
+            servidor.enviar(missatge.getRemitent(), CodecTrama.TIPUS_RESPOSTA, 0, missatge.getSala(),
+                    missatge.getSeq(), missatge.getContingut());
+            esdeveniment.acabar(missatge);
+        });
+
+        try {
+            GeneradorCarrega generador = GeneradorCarrega.desDePropietats(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), servidor.getPort()));
+            generador.executar(executorService);
+            generador.informar();
+        } catch (IllegalArgumentException e) {
+            log(NivellLog.ERROR, "Configuració de càrrega no vàlida: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Error esperant els clients: " + e.getMessage());
+        }
+
+        // Tancar l'ExecutorService de forma ordenada
+        log("\nTancant servidor...");
+        executorService.shutdown();
+        servidor.aturar();
+
+        try {
+            // Esperar que tots els clients acabin (màxim 30 segons)
+            if (!executorService.awaitTermination(30, TimeUnit.SECONDS)) {
+                log("Timeout: alguns clients encara s'estan processant");
+                executorService.shutdownNow();
+            }
+
+            // Esperar els processadors de les particions
+            buffer.aturar();
+            buffer.informar();
+            log("Servidor tancat correctament");
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Error tancant el servidor: " + e.getMessage());
+            executorService.shutdownNow();
+            buffer.aturar();
+        } finally {
+            GestioJmx.desregistrar(nomJmxExecutor);
+        }
+    }
+
+    //   ##############################
+    //  ###  FITA 4: SERVIDOR NIO  ###
+    // ##############################
+
+    /**
+     * Buffer del servidor de la Fita 4; amb -Dsecurechat.wal.directori=... és durable:
+     * els missatges s'anoten en un DiariWal en aquell directori i els que no
+     * havien sortit de la cua en l'execució anterior es recuperen
+     */
+    static MessageBuffer<Missatge> crearBufferServidor() {
+        String directori = System.getProperty("securechat.wal.directori");
+        if (directori == null) {
+            return new MessageBuffer<>(10);
+        }
+        try {
+            DiariWal<Missatge> diari = DiariWal.obrir(Path.of(directori), Missatge.CODEC_DIARI);
+            return new MessageBuffer<>(10, MessageBuffer.ModeCua.MONITOR, MessageBuffer.PoliticaDesbordament.BLOQUEJAR,
+                    null, diari);
+        } catch (IOException e) {
+            log(NivellLog.ERROR, "No s'ha pogut obrir el diari a {}, el buffer no serà durable: {}",
+                    directori, e.getMessage());
+            return new MessageBuffer<>(10);
+        }
+    }
+
+    /**
+     * FITA 4: Servidor NIO
+     * Connexions TCP reals per loopback ateses per 2 fils de bucle d'esdeveniments
+     * Els clients entren a una sala i el processador difon cada missatge de la
+     * sala a tots els membres, codificant-lo un sol cop; sense sala, respon l'eco
+     */
+    public static void demostrarServidorNio() {
+        imprimirSeparador("FITA 4: SERVIDOR NIO - SELECTOR I SOCKETS NO BLOQUEJANTS");
+
+        MessageBuffer<Missatge> buffer = crearBufferServidor();
+        buffer.registrarJmx("servidor");
+        MetriquesHttp.publicar("servidor", buffer);
+        ServidorNio servidor = new ServidorNio(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, buffer);
+        try {
+            servidor.iniciar();
+        } catch (IOException e) {
+            log(NivellLog.ERROR, "No s'ha pogut iniciar el servidor: {}", e.getMessage());
+            buffer.tancarDiari();
+            return;
+        }
+
+        // Processador: treu els missatges i respon a qui els ha enviat
+        AtomicLong processats = new AtomicLong();
+        Thread processador = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Missatge> lot = buffer.treureLot(16);
+                for (Missatge missatge : lot) {
+                    EsdevenimentsJfr.ProcessamentMissatge esdeveniment = new EsdevenimentsJfr.ProcessamentMissatge();
+                    esdeveniment.begin();
+                    log(NivellLog.DEPURACIO, "Servidor processant: {} (a la cua {} µs)",
+                            missatge, TimeUnit.NANOSECONDS.toMicros(missatge.getTempsACua()));
+                    if (missatge.getSala() != 0) {
+                        servidor.difondre(missatge.getSala(), CodecTrama.TIPUS_MISSATGE, missatge.getRemitent(),
+                                missatge.getSeq(), missatge.getContingut());
+                    } else {
+                        servidor.enviar(missatge.getRemitent(), CodecTrama.TIPUS_RESPOSTA, 0, missatge.getSala(),
+                                missatge.getSeq(), "ECO: " + missatge.getContingut());
+                    }
+                    esdeveniment.acabar(missatge);
+                }
+                processats.addAndGet(lot.size());
+            }
+        }, "Processador-Servidor");
+        ObjectName nomJmxProcessador = GestioJmx.registrar(
+                new GestioJmx.Processador(processador, processats::get), "Processador", "servidor");
+        processador.start();
+        ScheduledFuture<?> informe = buffer.getResidencia()
+                .informarPeriodicament("Residència a la cua (últim segon)", 1, TimeUnit.SECONDS);
+
+        // 5 clients TCP que entren a la sala 1, hi envien 3 trames cadascun
+        // i reben les 15 que s'hi difonen (també les seves)
+        InetSocketAddress adreca = new InetSocketAddress(InetAddress.getLoopbackAddress(), servidor.getPort());
+        int nombreClients = 5;
+        int missatgesPerClient = 3;
+        int sala = 1;
+        CountDownLatch totsASala = new CountDownLatch(nombreClients);
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 1; i <= nombreClients; i++) {
+            int idClient = i;
+            Thread client = new Thread(() -> {
+                try (ClientTrames connexio = new ClientTrames(adreca)) {
+                    // Entrar a la sala i esperar la confirmació
+                    connexio.enviar(CodecTrama.TIPUS_UNIR, sala, 0, "");
+                    if (!connexio.rebre()) {
+                        return;
+                    }
+                    totsASala.countDown();
+                    totsASala.await();
+
+                    for (int j = 1; j <= missatgesPerClient; j++) {
+                        connexio.enviar(CodecTrama.TIPUS_MISSATGE, sala, j, "Missatge " + j + " del client " + idClient);
+                    }
+                    int rebuts = 0;
+                    while (rebuts < nombreClients * missatgesPerClient && connexio.rebre()) {
+                        rebuts++;
+                        log(NivellLog.DEPURACIO, "Client {} ha rebut: {}", idClient, connexio.contingut());
+                    }
+                    log(NivellLog.INFO, "Client {} ha rebut {} missatges de la sala", idClient, rebuts);
+                } catch (IOException e) {
+                    log(NivellLog.ERROR, "Error al client {}: {}", idClient, e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log(NivellLog.AVIS, "Client {} interromput", idClient);
+                }
+            }, "Client-TCP-" + idClient);
+            clients.add(client);
+            client.start();
+        }
+
+        try {
+            for (Thread client : clients) {
+                client.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Error esperant els clients: " + e.getMessage());
+        }
+
+        informe.cancel(false);
+        log(NivellLog.INFO, "Residència a la cua: {}", buffer.getResidencia().instantania());
+        log(NivellLog.INFO, "Contenció: {}", buffer.resumContencio());
+        buffer.desregistrarJmx();
+        MetriquesHttp.retirar(buffer);
+        GestioJmx.desregistrar(nomJmxProcessador);
+        log("\nTancant servidor...");
+        servidor.aturar();
+        processador.interrupt();
+        try {
+            processador.join();
+            buffer.tancarDiari();
+            int fuites = PoolBuffers.COMPARTIT.comprovarFuites();
+            if (fuites > 0) {
+                log(NivellLog.AVIS, "{} buffers de xarxa no s'han retornat al pool", fuites);
+            }
+            log("Servidor tancat correctament");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Error tancant el servidor: " + e.getMessage());
+        }
+    }
+
+    //   #######################################
+    //  ###  MAIN - EXECUTA TOTES LES FITES  ###
+    // #######################################
+
+    /**
+     * Mètode principal que executa totes les demostracions
+     * Executa les fites de la Fase 1 seqüencialment
+     */
+    public static void main(String[] args) {
+        // Endpoint de Prometheus, només si s'ha demanat amb -Dsecurechat.metriques.port
+        MetriquesHttp metriques = MetriquesHttp.iniciarSiConfigurat();
+
+        try {
+            // Executar Fita 1: Fils bàsics
+            demostrarFilsBasics();
+            Thread.sleep(1000); // Pausa entre demostracions
+
+            // Executar Fita 2: MessageBuffer
+            demostrarMessageBuffer();
+            Thread.sleep(1000); // Pausa entre demostracions
+            demostrarCarrilsPrioritat();
+            Thread.sleep(1000); // Pausa entre demostracions
+
+            // Executar Fita 3: ExecutorService
+            demostrarExecutorService();
+            Thread.sleep(1000); // Pausa entre demostracions
+
+            // Executar Fita 4: Servidor NIO
+            demostrarServidorNio();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Error en l'execució: " + e.getMessage());
+        } finally {
+            if (metriques != null) {
+                metriques.aturar();
+            }
+        }
+    }
+}
\ No newline at end of file
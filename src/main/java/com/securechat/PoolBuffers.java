@@ -0,0 +1,253 @@
+package com.securechat;
+
+import static com.securechat.Multifil.log;
+
+import com.securechat.Multifil.NivellLog;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool de ByteBuffers directes per classes de mida (512 B, 1 KB ... 64 KB)
+ *
+ * Crear un buffer directe és car (memòria fora del heap, posada a zero i
+ * alliberada pel GC amb un Cleaner), així que els buffers dels sockets i
+ * del codec es reutilitzen:
+ * - Cada fil té una petita cache pròpia per classe, sense cap sincronització
+ *   (menys els fils virtuals: n'hi ha un per client i, en acabar, els
+ *   buffers de la seva cache quedarien perduts fora del heap)
+ * - El que no hi cap va a un pool compartit (cues concurrents) limitat
+ * - El que no hi cap tampoc es deixa per al GC
+ *
+ * Amb -Dsecurechat.buffers.detectarFuites=true (mode de proves) es guarda
+ * on s'ha obtingut cada buffer pendent, es detecten els alliberaments
+ * dobles i comprovarFuites() informa dels que no s'han retornat.
+ */
+final class PoolBuffers implements PoolBuffersMXBean {
+    private static final int MIDA_MINIMA = 512;
+    private static final int NOMBRE_CLASSES = 8; // 512 B ... 64 KB
+    static final int MIDA_MAXIMA = MIDA_MINIMA << (NOMBRE_CLASSES - 1);
+    // Buffers de cada classe a la cache de cada fil i al pool compartit
+    private static final int MIDA_CACHE_FIL = 8;
+    private static final int MIDA_COMPARTIT = 256;
+
+    // Thread.isVirtual() de JDK 21, per reflexió perquè el projecte compila per a Java 17; null si no hi és
+    private static final MethodHandle ES_VIRTUAL = buscarEsVirtual();
+
+    // Pool que fan servir el servidor i els clients. Va després de ES_VIRTUAL: un cop
+    // registrat per JMX es pot fer servir, i amb ES_VIRTUAL encara a null tots els
+    // fils semblarien de plataforma
+    static final PoolBuffers COMPARTIT = new PoolBuffers(Boolean.getBoolean("securechat.buffers.detectarFuites"));
+
+    static {
+        GestioJmx.registrar(COMPARTIT, "PoolBuffers", "compartit");
+    }
+
+    /**
+     * Buffers lliures d'un fil, una pila per classe
+     */
+    private static final class CacheFil {
+        final ByteBuffer[][] piles = new ByteBuffer[NOMBRE_CLASSES][MIDA_CACHE_FIL];
+        final int[] mides = new int[NOMBRE_CLASSES];
+    }
+
+    private final ThreadLocal<CacheFil> cachesFil = ThreadLocal.withInitial(CacheFil::new);
+    private final Queue<ByteBuffer>[] compartits;
+    private final AtomicInteger[] midesCompartits;
+
+    private final LongAdder encerts = new LongAdder();
+    private final LongAdder errades = new LongAdder();
+    private final LongAdder obtinguts = new LongAdder();
+    private final LongAdder alliberats = new LongAdder();
+
+    // Només en mode de detecció de fuites: on s'ha obtingut cada buffer pendent
+    private final Map<ByteBuffer, Throwable> pendents;
+
+    /**
+     * Constructor del pool
+     * @param detectarFuites Guardar la traça d'obtenció de cada buffer (lent, per a proves)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    PoolBuffers(boolean detectarFuites) {
+        this.compartits = new Queue[NOMBRE_CLASSES];
+        this.midesCompartits = new AtomicInteger[NOMBRE_CLASSES];
+        for (int i = 0; i < NOMBRE_CLASSES; i++) {
+            compartits[i] = new ConcurrentLinkedQueue<>();
+            midesCompartits[i] = new AtomicInteger();
+        }
+        // ByteBuffer.equals compara el contingut: cal identitat
+        this.pendents = detectarFuites ? new IdentityHashMap<>() : null;
+    }
+
+    /**
+     * Obté un buffer directe buit (posició 0, límit = capacitat)
+     * @param midaMinima Capacitat mínima necessària
+     * @return Un buffer de la classe de mida que hi correspon
+     */
+    ByteBuffer obtenir(int midaMinima) {
+        obtinguts.increment();
+        if (midaMinima > MIDA_MAXIMA) {
+            // Massa gran per agrupar-lo: es crea i el GC se n'encarregarà
+            errades.increment();
+            return registrarPendent(ByteBuffer.allocateDirect(midaMinima));
+        }
+
+        int classe = classe(midaMinima);
+        CacheFil cache = cacheFil();
+        ByteBuffer buffer;
+        if (cache != null && cache.mides[classe] > 0) {
+            buffer = cache.piles[classe][--cache.mides[classe]];
+            cache.piles[classe][cache.mides[classe]] = null;
+        } else {
+            buffer = compartits[classe].poll();
+            if (buffer != null) {
+                midesCompartits[classe].decrementAndGet();
+            }
+        }
+
+        if (buffer != null) {
+            encerts.increment();
+            buffer.clear();
+        } else {
+            errades.increment();
+            buffer = ByteBuffer.allocateDirect(MIDA_MINIMA << classe);
+        }
+        return registrarPendent(buffer);
+    }
+
+    /**
+     * Retorna un buffer al pool; no s'ha de tornar a fer servir
+     * @param buffer Buffer obtingut amb obtenir()
+     * @throws IllegalStateException en mode de detecció de fuites, si el buffer no estava pendent
+     */
+    void alliberar(ByteBuffer buffer) {
+        if (pendents != null) {
+            synchronized (pendents) {
+                if (pendents.remove(buffer) == null) {
+                    throw new IllegalStateException("Buffer alliberat dues vegades o que no és del pool");
+                }
+            }
+        }
+        alliberats.increment();
+
+        int capacitat = buffer.capacity();
+        int classe = classe(capacitat);
+        if (!buffer.isDirect() || capacitat > MIDA_MAXIMA || (MIDA_MINIMA << classe) != capacitat) {
+            return;
+        }
+
+        CacheFil cache = cacheFil();
+        if (cache != null && cache.mides[classe] < MIDA_CACHE_FIL) {
+            cache.piles[classe][cache.mides[classe]++] = buffer;
+        } else if (midesCompartits[classe].incrementAndGet() <= MIDA_COMPARTIT) {
+            compartits[classe].offer(buffer);
+        } else {
+            midesCompartits[classe].decrementAndGet();
+        }
+    }
+
+    /**
+     * Informa dels buffers que encara no s'han retornat
+     * Només té dades en mode de detecció de fuites
+     * @return Nombre de buffers pendents
+     */
+    int comprovarFuites() {
+        if (pendents == null) {
+            return (int) getPendents();
+        }
+        List<Throwable> origens;
+        synchronized (pendents) {
+            origens = new ArrayList<>(pendents.values());
+        }
+        for (Throwable origen : origens) {
+            StackTraceElement[] traca = origen.getStackTrace();
+            log(NivellLog.AVIS, "Fuita de buffer obtingut a {}", traca.length > 2 ? traca[2] : "?");
+        }
+        return origens.size();
+    }
+
+    /**
+     * @return La cache del fil actual, o null si és un fil virtual
+     */
+    private CacheFil cacheFil() {
+        return esVirtual(Thread.currentThread()) ? null : cachesFil.get();
+    }
+
+    private static boolean esVirtual(Thread fil) {
+        if (ES_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) ES_VIRTUAL.invokeExact(fil);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle buscarEsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null; // Java 17-20: no hi ha fils virtuals
+        }
+    }
+
+    private ByteBuffer registrarPendent(ByteBuffer buffer) {
+        if (pendents != null) {
+            synchronized (pendents) {
+                pendents.put(buffer, new Throwable("Buffer obtingut aquí"));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Classe de mida més petita on hi cap la mida demanada
+     */
+    private static int classe(int mida) {
+        if (mida <= MIDA_MINIMA) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(mida - 1) - Integer.numberOfTrailingZeros(MIDA_MINIMA);
+    }
+
+    // Mètriques
+
+    @Override
+    public long getEncerts() {
+        return encerts.sum();
+    }
+
+    @Override
+    public long getErrades() {
+        return errades.sum();
+    }
+
+    /**
+     * @return Percentatge d'obtencions servides sense crear cap buffer
+     */
+    @Override
+    public double getTaxaEncerts() {
+        long encertsActuals = encerts.sum();
+        long total = encertsActuals + errades.sum();
+        return total == 0 ? 0.0 : 100.0 * encertsActuals / total;
+    }
+
+    /**
+     * @return Buffers obtinguts que encara no s'han retornat
+     */
+    @Override
+    public long getPendents() {
+        return obtinguts.sum() - alliberats.sum();
+    }
+}
@@ -0,0 +1,18 @@
+package com.securechat;
+
+/**
+ * Mètriques del pool de ByteBuffers directes publicades per JMX
+ * (com.securechat:type=PoolBuffers,name=...)
+ */
+public interface PoolBuffersMXBean {
+
+    long getEncerts();
+
+    long getErrades();
+
+    /** @return Percentatge d'obtencions servides sense crear cap buffer */
+    double getTaxaEncerts();
+
+    /** @return Buffers obtinguts que encara no s'han retornat */
+    long getPendents();
+}
@@ -0,0 +1,20 @@
+package com.securechat;
+
+/**
+ * Estat d'un fil processador de missatges publicat per JMX
+ * (com.securechat:type=Processador,name=...)
+ */
+public interface ProcessadorMXBean {
+
+    String getNom();
+
+    /** @return Estat del fil (RUNNABLE, WAITING...) */
+    String getEstat();
+
+    boolean isViu();
+
+    /** @return Temps de CPU consumit pel fil, -1 si la JVM no el mesura */
+    long getTempsCpuMs();
+
+    long getProcessats();
+}
@@ -0,0 +1,879 @@
+package com.securechat;
+
+import static com.securechat.Multifil.log;
+
+import com.securechat.Multifil.MessageBuffer.PoliticaDesbordament;
+import com.securechat.Multifil.NivellLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Servidor de xat TCP sobre java.nio
+ * Uns pocs fils de bucle d'esdeveniments (un Selector cadascun) atenen
+ * totes les connexions amb SocketChannels no bloquejants, de manera que
+ * un client connectat no ocupa cap fil mentre no envia res.
+ *
+ * Protocol: trames binàries amb prefix de longitud (CodecTrama). Cada trama
+ * de missatge rebuda es deixa a la cua d'entrada (un MessageBuffer o un
+ * BufferParticionat) com un Missatge, amb el
+ * remitent de la connexió i no el que declara el client; les respostes
+ * s'envien amb enviar(...) des de qualsevol fil.
+ *
+ * Les trames es llegeixen i s'escriuen directament sobre ByteBuffers
+ * directes presos de PoolBuffers: entre el socket i el buffer només es
+ * creen el Missatge i l'String del seu contingut. Una connexió inactiva
+ * només ocupa un buffer de lectura petit, que creix fins a la trama màxima
+ * si cal i torna a la mida inicial quan queda buit; el d'escriptura només
+ * el té mentre hi ha sortida pendent.
+ *
+ * Si la cua d'entrada és plena i la política és BLOQUEJAR, el bucle no es
+ * bloqueja: deixa de llegir d'aquella connexió (contrapressió via TCP) i
+ * ho torna a provar a la següent volta.
+ *
+ * Sales: un client hi entra i en surt amb trames TIPUS_UNIR i TIPUS_SORTIR,
+ * que atén el mateix bucle sense passar pel buffer. difondre(...) codifica
+ * el missatge un sol cop en una TramaCompartida i n'encua una referència a
+ * cada membre: difondre a una sala de 10.000 membres és una codificació i
+ * 10.000 còpies de bytes, no 10.000 codificacions.
+ *
+ * Cada connexió té la seva cua de sortida, limitada a maxPendents trames.
+ * Un client que no llegeix prou de pressa (p. ex. un mòbil amb mala
+ * cobertura) només omple la seva cua: quan és plena s'aplica la
+ * PoliticaClientLent, sense bloquejar mai qui envia ni fer créixer la
+ * memòria del node per culpa d'un sol client.
+ */
+final class ServidorNio implements ServidorNioMXBean {
+    // El de lectura comença petit i creix fins que hi cap una trama sencera
+    private static final int MIDA_INICIAL_LECTURA = 1024;
+    private static final int MIDA_MAXIMA_LECTURA = CodecTrama.MIDA_MAXIMA_TRAMA;
+    private static final int MIDA_BUFFER_ESCRIPTURA = 2 * CodecTrama.MIDA_MAXIMA_TRAMA;
+    // Cada quant es reintenta lliurar la línia d'una connexió aturada per cua plena
+    private static final long ESPERA_REINTENT_MS = 10;
+    // Trames pendents d'enviar per connexió si no es diu altra cosa
+    static final int MAX_PENDENTS_PER_DEFECTE = 1024;
+
+    /**
+     * Què fer amb una trama per a un client que té la cua de sortida plena
+     */
+    enum PoliticaClientLent {
+        /** Descartar la trama nova; el client es perd aquest missatge */
+        DESCARTAR,
+        /** Tancar la connexió; el client es tornarà a connectar i posar al dia */
+        DESCONNECTAR,
+        /**
+         * Quedar-se amb el més recent: treure el missatge pendent més antic de la
+         * mateixa sala (o, si no n'hi ha, el més antic de tots) per fer lloc al nou.
+         * Les respostes no es treuen mai; si només hi ha respostes, es descarta la nova
+         */
+        COALESCIR
+    }
+
+    private final InetSocketAddress adreca;
+    private final CuaMissatges<Missatge> buffer;
+    private final BucleEsdeveniments[] bucles;
+    private final int maxPendents;
+    private final PoliticaClientLent politicaClientLent;
+    private final Map<Integer, Connexio> connexions = new ConcurrentHashMap<>();
+    // Membres de cada sala; una sala sense membres no hi és
+    private final Map<Integer, Set<Connexio>> sales = new ConcurrentHashMap<>();
+    // Codec de difondre(), que es pot cridar des de qualsevol fil
+    private final ThreadLocal<CodecTrama> codecsDifusio = ThreadLocal.withInitial(CodecTrama::new);
+    private final AtomicInteger seguentId = new AtomicInteger(1);
+    private final LongAdder tramesDescartades = new LongAdder();
+    private final LongAdder tramesCoalescides = new LongAdder();
+    private final LongAdder desconnexionsLentes = new LongAdder();
+
+    private ServerSocketChannel canalServidor;
+    private ObjectName nomJmx;
+    private volatile boolean actiu;
+    private int seguentBucle; // Només el toca el fil que accepta (bucle 0)
+
+    /**
+     * Constructor del servidor
+     * @param adreca Adreça on escoltar; amb port 0 el sistema en tria un de lliure
+     * @param nombreBucles Nombre de fils de bucle d'esdeveniments
+     * @param buffer Buffer on es deixen els missatges rebuts
+     */
+    ServidorNio(InetSocketAddress adreca, int nombreBucles, CuaMissatges<Missatge> buffer) {
+        this(adreca, nombreBucles, buffer, MAX_PENDENTS_PER_DEFECTE, PoliticaClientLent.DESCONNECTAR);
+    }
+
+    /**
+     * Constructor del servidor amb la cua de sortida de cada connexió a mida
+     * @param adreca Adreça on escoltar; amb port 0 el sistema en tria un de lliure
+     * @param nombreBucles Nombre de fils de bucle d'esdeveniments
+     * @param buffer Buffer on es deixen els missatges rebuts
+     * @param maxPendents Trames pendents d'enviar que admet cada connexió
+     * @param politicaClientLent Què fer quan una connexió en té maxPendents
+     */
+    ServidorNio(InetSocketAddress adreca, int nombreBucles, CuaMissatges<Missatge> buffer,
+            int maxPendents, PoliticaClientLent politicaClientLent) {
+        if (nombreBucles <= 0) {
+            throw new IllegalArgumentException("Cal almenys un bucle d'esdeveniments: " + nombreBucles);
+        }
+        if (maxPendents <= 0) {
+            throw new IllegalArgumentException("La cua de sortida ha d'admetre almenys una trama: " + maxPendents);
+        }
+        this.adreca = adreca;
+        this.buffer = buffer;
+        this.bucles = new BucleEsdeveniments[nombreBucles];
+        this.maxPendents = maxPendents;
+        this.politicaClientLent = politicaClientLent;
+    }
+
+    /**
+     * Obre el port i arrenca els fils dels bucles d'esdeveniments
+     * @throws IOException si no es pot obrir el port o els selectors
+     */
+    void iniciar() throws IOException {
+        canalServidor = ServerSocketChannel.open();
+        canalServidor.configureBlocking(false);
+        canalServidor.bind(adreca);
+        actiu = true;
+
+        for (int i = 0; i < bucles.length; i++) {
+            bucles[i] = new BucleEsdeveniments(i);
+        }
+        // El bucle 0 també accepta connexions i les reparteix entre tots
+        canalServidor.register(bucles[0].selector, SelectionKey.OP_ACCEPT);
+        for (BucleEsdeveniments bucle : bucles) {
+            bucle.fil.start();
+        }
+        nomJmx = GestioJmx.registrar(this, "ServidorNio", "port-" + getPort());
+        MetriquesHttp.publicar(this);
+        log(NivellLog.INFO, "Servidor NIO escoltant al port {} amb {} bucles", getPort(), bucles.length);
+    }
+
+    /**
+     * Atura els bucles i tanca totes les connexions
+     */
+    void aturar() {
+        actiu = false;
+        GestioJmx.desregistrar(nomJmx);
+        MetriquesHttp.retirar(this);
+        try {
+            canalServidor.close();
+        } catch (IOException e) {
+            log(NivellLog.ERROR, "Error tancant el port del servidor: {}", e.getMessage());
+        }
+        for (BucleEsdeveniments bucle : bucles) {
+            bucle.selector.wakeup();
+        }
+        try {
+            for (BucleEsdeveniments bucle : bucles) {
+                bucle.fil.join();
+            }
+            // Ja no hi queda cap fil de bucle: les acceptades sense registrar es tanquen des d'aquí
+            for (BucleEsdeveniments bucle : bucles) {
+                bucle.tancarNoves();
+            }
+            PoolBuffers pool = PoolBuffers.COMPARTIT;
+            log(NivellLog.INFO, "Servidor NIO aturat | Pool de buffers: {}% d'encerts, {} pendents",
+                    Math.round(pool.getTaxaEncerts()), pool.getPendents());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log(NivellLog.AVIS, "Interromput esperant els bucles del servidor");
+        }
+    }
+
+    /**
+     * @return El port on escolta el servidor (útil si s'ha obert amb port 0)
+     */
+    @Override
+    public int getPort() {
+        return canalServidor.socket().getLocalPort();
+    }
+
+    @Override
+    public int getBucles() {
+        return bucles.length;
+    }
+
+    @Override
+    public int getConnexionsActives() {
+        return connexions.size();
+    }
+
+    @Override
+    public long getConnexionsAcceptades() {
+        return seguentId.get() - 1;
+    }
+
+    @Override
+    public int getMaxPendents() {
+        return maxPendents;
+    }
+
+    @Override
+    public String getPoliticaClientLent() {
+        return politicaClientLent.name();
+    }
+
+    @Override
+    public long getTramesDescartades() {
+        return tramesDescartades.sum();
+    }
+
+    @Override
+    public long getTramesCoalescides() {
+        return tramesCoalescides.sum();
+    }
+
+    @Override
+    public long getDesconnexionsLentes() {
+        return desconnexionsLentes.sum();
+    }
+
+    /**
+     * Envia una trama a una connexió; la codificació i l'escriptura les fa el seu bucle
+     * @param idConnexio Connexió destinatària
+     * @param tipus Tipus de trama (CodecTrama.TIPUS_*)
+     * @param remitent Id de qui l'envia (0 si és el servidor)
+     * @param sala Sala de la conversa
+     * @param seq Número de seqüència
+     * @param contingut Text del missatge
+     * @return false si la connexió ja no existeix o la seva cua de sortida no ha admès la trama
+     */
+    boolean enviar(int idConnexio, byte tipus, int remitent, int sala, long seq, String contingut) {
+        Connexio connexio = connexions.get(idConnexio);
+        if (connexio == null) {
+            return false;
+        }
+        return encuar(connexio, new TramaPendent(tipus, remitent, sala, seq, contingut, null));
+    }
+
+    /**
+     * Envia una trama a tots els membres d'una sala, codificant-la un sol cop
+     * @param sala Sala destinatària
+     * @param tipus Tipus de trama (CodecTrama.TIPUS_*)
+     * @param remitent Id de qui l'envia (0 si és el servidor)
+     * @param seq Número de seqüència
+     * @param contingut Text del missatge
+     * @return Nombre de membres que l'han admès a la seva cua de sortida
+     */
+    int difondre(int sala, byte tipus, int remitent, long seq, String contingut) {
+        Set<Connexio> membres = sales.get(sala);
+        if (membres == null) {
+            return 0;
+        }
+        TramaCompartida trama = TramaCompartida.codificar(codecsDifusio.get(), tipus, remitent, sala, seq, contingut);
+        if (trama == null) {
+            log(NivellLog.AVIS, "Trama massa llarga per a la sala {}, descartada", sala);
+            return 0;
+        }
+        int encuades = 0;
+        try {
+            for (Connexio connexio : membres) {
+                if (encuar(connexio, new TramaPendent(tipus, remitent, sala, seq, null, trama.retenir()))) {
+                    encuades++;
+                }
+            }
+        } finally {
+            // La referència de qui l'ha codificada
+            trama.alliberar();
+        }
+        log(NivellLog.DEPURACIO, "Trama difosa a {} membres de la sala {}", encuades, sala);
+        return encuades;
+    }
+
+    /**
+     * Encua una trama a la cua de sortida d'una connexió i avisa el seu bucle
+     * @return false si la connexió és tancada o la política de client lent no l'ha admès;
+     *         en aquest cas la referència a la trama compartida ja s'ha tornat
+     */
+    private boolean encuar(Connexio connexio, TramaPendent trama) {
+        if (!ferLloc(connexio, trama)) {
+            trama.descartar();
+            return false;
+        }
+        connexio.escriptures.add(trama);
+        if (connexio.tancada) {
+            // S'ha tancat mentre encuàvem: ningú més buidarà la cua
+            connexio.descartarEscriptures();
+            return false;
+        }
+        avisarBucle(connexio);
+        return true;
+    }
+
+    /**
+     * Reserva un lloc a la cua de sortida, aplicant la política de client lent si és plena
+     * @return false si la trama no s'ha d'encuar
+     */
+    private boolean ferLloc(Connexio connexio, TramaPendent trama) {
+        if (connexio.tancada || connexio.lenta.get()) {
+            return false;
+        }
+        if (connexio.pendents.incrementAndGet() <= maxPendents) {
+            return true;
+        }
+        connexio.pendents.decrementAndGet();
+
+        switch (politicaClientLent) {
+            case COALESCIR:
+                TramaPendent antiga = mesAntigaReemplacable(connexio, trama.sala);
+                // Si el bucle se l'ha emportat mentrestant, la nova no hi cap
+                if (antiga != null && connexio.escriptures.remove(antiga)) {
+                    antiga.descartar();
+                    tramesCoalescides.increment();
+                    return true; // El lloc de l'antiga passa a la nova: pendents no canvia
+                }
+                tramesDescartades.increment();
+                return false;
+            case DESCONNECTAR:
+                // El tanca el seu bucle, que és l'únic que toca el canal
+                if (connexio.lenta.compareAndSet(false, true)) {
+                    desconnexionsLentes.increment();
+                    log(NivellLog.AVIS, "Client {} massa lent ({} trames pendents), es desconnecta",
+                            connexio.id, maxPendents);
+                    avisarBucle(connexio);
+                }
+                tramesDescartades.increment();
+                return false;
+            default:
+                tramesDescartades.increment();
+                return false;
+        }
+    }
+
+    /**
+     * @return El missatge pendent més antic de la sala, o el més antic de tots, o null
+     */
+    private static TramaPendent mesAntigaReemplacable(Connexio connexio, int sala) {
+        TramaPendent mesAntiga = null;
+        for (TramaPendent pendent : connexio.escriptures) {
+            if (pendent.tipus != CodecTrama.TIPUS_MISSATGE) {
+                continue;
+            }
+            if (pendent.sala == sala) {
+                return pendent;
+            }
+            if (mesAntiga == null) {
+                mesAntiga = pendent;
+            }
+        }
+        return mesAntiga;
+    }
+
+    private static void avisarBucle(Connexio connexio) {
+        // Avisar el bucle un sol cop per totes les escriptures pendents
+        if (connexio.escripturaDemanada.compareAndSet(false, true)) {
+            connexio.bucle.ambEscriptures.add(connexio);
+            connexio.bucle.selector.wakeup();
+        }
+    }
+
+    /**
+     * Trama encuada per enviar: o bé el bucle la codifica directament al
+     * buffer d'escriptura, o bé ja està codificada i compartida (difondre)
+     */
+    private static final class TramaPendent {
+        final byte tipus;
+        final int remitent;
+        final int sala;
+        final long seq;
+        final String contingut;
+        final TramaCompartida compartida; // Amb una referència per a aquesta connexió, o null
+        int copiats; // Bytes de la compartida ja copiats al buffer d'escriptura (només el bucle)
+
+        TramaPendent(byte tipus, int remitent, int sala, long seq, String contingut, TramaCompartida compartida) {
+            this.tipus = tipus;
+            this.remitent = remitent;
+            this.sala = sala;
+            this.seq = seq;
+            this.contingut = contingut;
+            this.compartida = compartida;
+        }
+
+        /**
+         * Torna la referència a la trama compartida d'una trama que no s'enviarà
+         */
+        void descartar() {
+            if (compartida != null) {
+                compartida.alliberar();
+            }
+        }
+    }
+
+    /**
+     * Estat d'una connexió de client
+     */
+    private static final class Connexio {
+        final int id;
+        final SocketChannel canal;
+        final BucleEsdeveniments bucle;
+        final long inici = System.nanoTime();
+        // Bytes rebuts encara no processats; entre operacions està en mode escriptura (només el bucle)
+        ByteBuffer lectura = PoolBuffers.COMPARTIT.obtenir(MIDA_INICIAL_LECTURA);
+        // Trames codificades que el socket encara no ha acceptat; també en mode escriptura.
+        // Null mentre no hi ha res per enviar (només el bucle)
+        ByteBuffer escriptura;
+        // Cua de sortida; només el bucle en treu pel cap, però COALESCIR en pot treure del mig
+        final Queue<TramaPendent> escriptures = new ConcurrentLinkedQueue<>();
+        // Trames a escriptures més les reservades per encuar-hi (ConcurrentLinkedQueue.size() és O(n))
+        final AtomicInteger pendents = new AtomicInteger();
+        final AtomicBoolean escripturaDemanada = new AtomicBoolean();
+        // Sales on és membre; només les toca el seu bucle
+        final Set<Integer> salesConnexio = new HashSet<>();
+        volatile boolean tancada;
+        // Ha omplert la cua amb DESCONNECTAR: el bucle la tancarà
+        final AtomicBoolean lenta = new AtomicBoolean();
+        SelectionKey clau;
+        // Trama treta de la cua que no ha cabut al buffer d'escriptura (només el bucle)
+        TramaPendent enCurs;
+        Missatge pendent; // Missatge que no ha cabut al buffer (només amb BLOQUEJAR)
+
+        Connexio(int id, SocketChannel canal, BucleEsdeveniments bucle) {
+            this.id = id;
+            this.canal = canal;
+            this.bucle = bucle;
+        }
+
+        /**
+         * Buida la cua d'escriptures tornant les referències a les trames compartides
+         */
+        void descartarEscriptures() {
+            TramaPendent trama;
+            while ((trama = escriptures.poll()) != null) {
+                pendents.decrementAndGet();
+                trama.descartar();
+            }
+        }
+
+        /**
+         * Treu la següent trama a escriure; només des del bucle
+         */
+        TramaPendent seguentTrama() {
+            TramaPendent trama = enCurs;
+            if (trama != null) {
+                enCurs = null;
+                return trama;
+            }
+            trama = escriptures.poll();
+            if (trama != null) {
+                pendents.decrementAndGet();
+            }
+            return trama;
+        }
+    }
+
+    /**
+     * Un fil amb el seu Selector que atén un subconjunt de les connexions
+     */
+    private final class BucleEsdeveniments implements Runnable {
+        final Selector selector;
+        final Thread fil;
+        // Connexions acceptades per un altre bucle pendents de registrar en aquest
+        final Queue<Connexio> noves = new ConcurrentLinkedQueue<>();
+        // Connexions amb escriptures encuades per altres fils
+        final Queue<Connexio> ambEscriptures = new ConcurrentLinkedQueue<>();
+        // Connexions que han deixat de llegir perquè el buffer és ple (només aquest fil)
+        final List<Connexio> aturades = new ArrayList<>();
+        final CodecTrama codec = new CodecTrama();
+
+        BucleEsdeveniments(int index) throws IOException {
+            this.selector = Selector.open();
+            this.fil = new Thread(this, "Bucle-NIO-" + index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (actiu) {
+                    registrarNoves();
+                    reintentarAturades();
+                    ferEscriptures();
+
+                    // Si hi ha connexions aturades cal tornar a provar encara que no arribi res
+                    selector.select(aturades.isEmpty() ? 0 : ESPERA_REINTENT_MS);
+
+                    Iterator<SelectionKey> claus = selector.selectedKeys().iterator();
+                    while (claus.hasNext()) {
+                        SelectionKey clau = claus.next();
+                        claus.remove();
+                        if (!clau.isValid()) {
+                            continue;
+                        }
+                        if (clau.isAcceptable()) {
+                            acceptar();
+                        } else {
+                            Connexio connexio = (Connexio) clau.attachment();
+                            if (clau.isReadable() && connexio.pendent == null) {
+                                llegir(connexio);
+                            }
+                            if (clau.isValid() && clau.isWritable()) {
+                                escriure(connexio);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log(NivellLog.ERROR, "Error al bucle d'esdeveniments: {}", e.getMessage());
+            } finally {
+                // Les noves que no s'han arribat a registrar les tanca aturar():
+                // el bucle que accepta encara n'hi pot deixar després d'aquest punt
+                for (SelectionKey clau : selector.keys()) {
+                    if (clau.attachment() instanceof Connexio) {
+                        tancar((Connexio) clau.attachment());
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log(NivellLog.ERROR, "Error tancant el selector: {}", e.getMessage());
+                }
+            }
+        }
+
+        private void acceptar() throws IOException {
+            SocketChannel canal;
+            while ((canal = canalServidor.accept()) != null) {
+                canal.configureBlocking(false);
+                canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                // Repartir les connexions entre els bucles per torns
+                BucleEsdeveniments bucle = bucles[seguentBucle];
+                seguentBucle = (seguentBucle + 1) % bucles.length;
+
+                Connexio connexio = new Connexio(seguentId.getAndIncrement(), canal, bucle);
+                connexions.put(connexio.id, connexio);
+                SocketAddress remota = canal.getRemoteAddress();
+                log(NivellLog.INFO, "Client {} connectat des de {}", connexio.id, remota);
+                EsdevenimentsJfr.connectat(connexio.id, remota);
+
+                if (bucle == this) {
+                    registrar(connexio);
+                } else {
+                    bucle.noves.add(connexio);
+                    bucle.selector.wakeup();
+                }
+            }
+        }
+
+        private void registrarNoves() {
+            Connexio connexio;
+            while ((connexio = noves.poll()) != null) {
+                registrar(connexio);
+            }
+        }
+
+        /**
+         * Tanca les connexions acceptades que aquest bucle no ha arribat a registrar
+         * Només quan el fil del bucle ja ha acabat
+         */
+        void tancarNoves() {
+            Connexio connexio;
+            while ((connexio = noves.poll()) != null) {
+                tancar(connexio);
+            }
+        }
+
+        private void registrar(Connexio connexio) {
+            try {
+                connexio.clau = connexio.canal.register(selector, SelectionKey.OP_READ, connexio);
+            } catch (IOException e) {
+                log(NivellLog.ERROR, "No s'ha pogut registrar el client {}: {}", connexio.id, e.getMessage());
+                tancar(connexio);
+            }
+        }
+
+        private void llegir(Connexio connexio) {
+            try {
+                if (!connexio.lectura.hasRemaining()) {
+                    // Una trama que no hi cap sencera: com que la longitud ja s'ha validat,
+                    // com a molt cal arribar a MIDA_MAXIMA_LECTURA
+                    canviarLectura(connexio, Math.min(2 * connexio.lectura.capacity(), MIDA_MAXIMA_LECTURA));
+                }
+                if (connexio.canal.read(connexio.lectura) < 0) {
+                    tancar(connexio);
+                    return;
+                }
+                if (!processarTrames(connexio)) {
+                    aturarLectura(connexio);
+                } else if (connexio.lectura.position() == 0 && connexio.lectura.capacity() > MIDA_INICIAL_LECTURA) {
+                    canviarLectura(connexio, MIDA_INICIAL_LECTURA);
+                }
+            } catch (IOException e) {
+                log(NivellLog.AVIS, "Error llegint del client {}: {}", connexio.id, e.getMessage());
+                tancar(connexio);
+            }
+        }
+
+        /**
+         * Passa els bytes pendents de llegir a un buffer del pool d'una altra mida
+         */
+        private void canviarLectura(Connexio connexio, int mida) {
+            ByteBuffer nou = PoolBuffers.COMPARTIT.obtenir(mida);
+            nou.put(connexio.lectura.flip());
+            PoolBuffers.COMPARTIT.alliberar(connexio.lectura);
+            connexio.lectura = nou;
+        }
+
+        /**
+         * Lliura al buffer totes les trames senceres rebudes
+         * @return false si el buffer és ple i la connexió s'ha d'aturar
+         * @throws ProtocolException si el client envia una trama invàlida
+         */
+        private boolean processarTrames(Connexio connexio) throws ProtocolException {
+            ByteBuffer lectura = connexio.lectura;
+            lectura.flip();
+            try {
+                int mida;
+                while ((mida = CodecTrama.midaTrama(lectura)) > 0) {
+                    byte tipus = CodecTrama.tipus(lectura);
+                    if (tipus == CodecTrama.TIPUS_UNIR || tipus == CodecTrama.TIPUS_SORTIR) {
+                        canviarSala(connexio, tipus, CodecTrama.sala(lectura), CodecTrama.seq(lectura));
+                        lectura.position(lectura.position() + mida);
+                        continue;
+                    }
+                    if (tipus != CodecTrama.TIPUS_MISSATGE) {
+                        throw new ProtocolException("Tipus de trama inesperat: " + tipus);
+                    }
+                    // El remitent és sempre la connexió, no el que declari la trama
+                    Missatge missatge = new Missatge(connexio.id, CodecTrama.sala(lectura),
+                            CodecTrama.seq(lectura), codec.contingut(lectura).toString());
+                    lectura.position(lectura.position() + mida);
+                    if (!lliurar(connexio, missatge)) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                lectura.compact();
+            }
+        }
+
+        /**
+         * Entra o surt d'una sala; l'entrada es confirma amb una resposta
+         * amb la mateixa sala i seqüència, a partir de la qual el client
+         * ja rep tot el que s'hi difongui
+         * @throws ProtocolException si la sala és la 0 (sense sala)
+         */
+        private void canviarSala(Connexio connexio, byte tipus, int sala, long seq) throws ProtocolException {
+            if (sala == 0) {
+                throw new ProtocolException("La sala 0 no admet membres");
+            }
+            if (tipus == CodecTrama.TIPUS_UNIR) {
+                if (connexio.salesConnexio.add(sala)) {
+                    entrarASala(connexio, sala);
+                    log(NivellLog.DEPURACIO, "Client {} entra a la sala {}", connexio.id, sala);
+                }
+                encuar(connexio, new TramaPendent(CodecTrama.TIPUS_RESPOSTA, 0, sala, seq, "", null));
+            } else if (connexio.salesConnexio.remove(sala)) {
+                sortirDeSala(connexio, sala);
+                log(NivellLog.DEPURACIO, "Client {} surt de la sala {}", connexio.id, sala);
+            }
+        }
+
+        /**
+         * Entrar i sortir modifiquen el conjunt de membres dins de compute() de la
+         * sala, que els serialitza encara que vinguin de bucles diferents: si no,
+         * sortirDeSala() podria esborrar una sala buida just quan un altre bucle
+         * l'acaba de trobar i hi afegiria el membre a un conjunt ja descartat
+         */
+        private void entrarASala(Connexio connexio, int sala) {
+            sales.compute(sala, (k, membres) -> {
+                if (membres == null) {
+                    membres = ConcurrentHashMap.newKeySet();
+                }
+                membres.add(connexio);
+                return membres;
+            });
+        }
+
+        private void sortirDeSala(Connexio connexio, int sala) {
+            sales.computeIfPresent(sala, (k, membres) -> {
+                membres.remove(connexio);
+                return membres.isEmpty() ? null : membres;
+            });
+        }
+
+        /**
+         * Deixa un missatge al buffer sense bloquejar el bucle
+         * @return false si cal reintentar-ho més tard (cua plena amb BLOQUEJAR)
+         */
+        private boolean lliurar(Connexio connexio, Missatge missatge) {
+            try {
+                if (buffer.offer(missatge, 0, TimeUnit.NANOSECONDS)) {
+                    return true;
+                }
+            } catch (IllegalStateException e) {
+                // REBUTJAR: el buffer ja l'ha comptat, el client continua
+                return true;
+            }
+            if (buffer.getPolitica() != PoliticaDesbordament.BLOQUEJAR) {
+                // Descartat per la política del buffer, que ja l'ha comptat
+                return true;
+            }
+            connexio.pendent = missatge;
+            return false;
+        }
+
+        private void aturarLectura(Connexio connexio) {
+            connexio.clau.interestOps(connexio.clau.interestOps() & ~SelectionKey.OP_READ);
+            aturades.add(connexio);
+            log(NivellLog.DEPURACIO, "Cua plena! Client {} aturat fins que hi hagi espai", connexio.id);
+        }
+
+        private void reintentarAturades() {
+            Iterator<Connexio> it = aturades.iterator();
+            while (it.hasNext()) {
+                Connexio connexio = it.next();
+                if (!connexio.clau.isValid()) {
+                    it.remove();
+                    continue;
+                }
+                if (!lliurar(connexio, connexio.pendent)) {
+                    continue;
+                }
+                connexio.pendent = null;
+                // Les trames que ja s'havien rebut darrere la pendent
+                try {
+                    if (processarTrames(connexio)) {
+                        connexio.clau.interestOps(connexio.clau.interestOps() | SelectionKey.OP_READ);
+                        it.remove();
+                    }
+                } catch (ProtocolException e) {
+                    log(NivellLog.AVIS, "Error llegint del client {}: {}", connexio.id, e.getMessage());
+                    it.remove();
+                    tancar(connexio);
+                }
+            }
+        }
+
+        private void ferEscriptures() {
+            Connexio connexio;
+            while ((connexio = ambEscriptures.poll()) != null) {
+                connexio.escripturaDemanada.set(false);
+                if (connexio.lenta.get()) {
+                    tancar(connexio);
+                } else if (connexio.clau != null && connexio.clau.isValid()) {
+                    escriure(connexio);
+                }
+            }
+        }
+
+        /**
+         * Codifica les trames pendents al buffer d'escriptura i n'escriu tot
+         * el que el socket accepti; la resta espera OP_WRITE
+         * El buffer es pren del pool aquí i s'hi retorna quan tot s'ha enviat
+         */
+        private void escriure(Connexio connexio) {
+            ByteBuffer escriptura = connexio.escriptura;
+            if (escriptura == null) {
+                if (connexio.enCurs == null && connexio.escriptures.isEmpty()) {
+                    return; // Sense buffer no hi ha res a mig enviar ni OP_WRITE demanat
+                }
+                escriptura = PoolBuffers.COMPARTIT.obtenir(MIDA_BUFFER_ESCRIPTURA);
+                connexio.escriptura = escriptura;
+            }
+            try {
+                while (true) {
+                    // Omplir el buffer amb tantes trames com hi càpiguen
+                    TramaPendent trama;
+                    while ((trama = connexio.seguentTrama()) != null) {
+                        if (!afegirTrama(escriptura, trama)) {
+                            if (escriptura.position() > 0) {
+                                // Serà la primera un cop s'hagi buidat el buffer
+                                connexio.enCurs = trama;
+                                break;
+                            }
+                            // No hi cabria ni amb el buffer buit
+                            log(NivellLog.AVIS, "Trama massa llarga per al client {}, descartada", connexio.id);
+                            trama.descartar();
+                        }
+                    }
+                    if (escriptura.position() == 0) {
+                        connexio.clau.interestOps(connexio.clau.interestOps() & ~SelectionKey.OP_WRITE);
+                        PoolBuffers.COMPARTIT.alliberar(escriptura);
+                        connexio.escriptura = null;
+                        return;
+                    }
+
+                    escriptura.flip();
+                    connexio.canal.write(escriptura);
+                    escriptura.compact();
+                    if (escriptura.position() > 0) {
+                        // Socket ple: continuar quan torni a acceptar dades
+                        connexio.clau.interestOps(connexio.clau.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                log(NivellLog.AVIS, "Error escrivint al client {}: {}", connexio.id, e.getMessage());
+                tancar(connexio);
+            }
+        }
+
+        /**
+         * Afegeix una trama al buffer d'escriptura; d'una de compartida se'n copia
+         * tot el que hi càpiga, a partir d'on s'havia quedat
+         * @return false si no hi ha cabut sencera: una de codificar no s'hi ha afegit,
+         *         una de compartida potser en part (la resta, a la volta següent)
+         */
+        private boolean afegirTrama(ByteBuffer escriptura, TramaPendent trama) {
+            if (trama.compartida == null) {
+                return codec.codificar(escriptura, trama.tipus, trama.remitent, trama.sala, trama.seq, trama.contingut);
+            }
+            trama.copiats += trama.compartida.copiar(trama.copiats, escriptura);
+            if (trama.copiats < trama.compartida.mida()) {
+                return false;
+            }
+            trama.compartida.alliberar();
+            return true;
+        }
+
+        private void tancar(Connexio connexio) {
+            if (connexions.remove(connexio.id) == null) {
+                return;
+            }
+            for (int sala : connexio.salesConnexio) {
+                sortirDeSala(connexio, sala);
+            }
+            connexio.tancada = true;
+            connexio.descartarEscriptures();
+            if (connexio.enCurs != null) {
+                connexio.enCurs.descartar();
+                connexio.enCurs = null;
+            }
+            if (connexio.clau != null) {
+                connexio.clau.cancel();
+            }
+            try {
+                connexio.canal.close();
+            } catch (IOException e) {
+                log(NivellLog.ERROR, "Error tancant el client {}: {}", connexio.id, e.getMessage());
+            }
+            PoolBuffers.COMPARTIT.alliberar(connexio.lectura);
+            if (connexio.escriptura != null) {
+                PoolBuffers.COMPARTIT.alliberar(connexio.escriptura);
+                connexio.escriptura = null;
+            }
+            log(NivellLog.INFO, "Client {} desconnectat", connexio.id);
+            EsdevenimentsJfr.desconnectat(connexio.id, connexio.inici);
+        }
+    }
+}
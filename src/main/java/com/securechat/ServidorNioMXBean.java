@@ -0,0 +1,31 @@
+package com.securechat;
+
+/**
+ * Estat del servidor NIO publicat per JMX
+ * (com.securechat:type=ServidorNio,name=port-...)
+ */
+public interface ServidorNioMXBean {
+
+    int getPort();
+
+    int getBucles();
+
+    int getConnexionsActives();
+
+    /** @return Connexions acceptades des de l'inici */
+    long getConnexionsAcceptades();
+
+    /** @return Trames que admet la cua de sortida de cada connexió */
+    int getMaxPendents();
+
+    String getPoliticaClientLent();
+
+    /** @return Trames no enviades perquè la cua de sortida del client era plena */
+    long getTramesDescartades();
+
+    /** @return Missatges pendents substituïts per un de més recent (COALESCIR) */
+    long getTramesCoalescides();
+
+    /** @return Connexions tancades per no llegir prou de pressa (DESCONNECTAR) */
+    long getDesconnexionsLentes();
+}
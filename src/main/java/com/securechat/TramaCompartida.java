@@ -0,0 +1,90 @@
+package com.securechat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trama ja codificada que es comparteix entre moltes connexions
+ *
+ * Per difondre un missatge a una sala es codifica un sol cop en un buffer
+ * directe del pool; cada connexió de destí en copia els bytes al seu buffer
+ * d'escriptura amb accessos absoluts, guardant-se ella mateixa fins on ha
+ * arribat. Així no cal cap vista per destinatari, i la posició del buffer
+ * compartit no es toca mai: el contingut no canvia després de codificar-lo.
+ *
+ * Qui la crea té la primera referència; cada destinatari n'agafa una amb
+ * retenir() i la torna amb alliberar() quan ja l'ha escrita o descartada.
+ * Quan en queden zero, el buffer torna al pool.
+ */
+final class TramaCompartida {
+    private final ByteBuffer dades; // La trama entre la posició 0 i el límit
+    private final AtomicInteger referencies = new AtomicInteger(1);
+
+    private TramaCompartida(ByteBuffer dades) {
+        this.dades = dades;
+    }
+
+    /**
+     * Codifica una trama en un buffer nou del pool
+     * @param codec Codec del fil que crida
+     * @return La trama amb una referència, o null si el contingut no hi cap
+     */
+    static TramaCompartida codificar(CodecTrama codec, byte tipus, int remitent, int sala, long seq,
+            CharSequence contingut) {
+        ByteBuffer buffer = PoolBuffers.COMPARTIT.obtenir(CodecTrama.MIDA_MAXIMA_TRAMA);
+        if (!codec.codificar(buffer, tipus, remitent, sala, seq, contingut)) {
+            PoolBuffers.COMPARTIT.alliberar(buffer);
+            return null;
+        }
+        buffer.flip();
+        return new TramaCompartida(buffer);
+    }
+
+    /**
+     * Agafa una referència més per a un nou destinatari
+     * @throws IllegalStateException si la trama ja s'ha alliberat del tot
+     */
+    TramaCompartida retenir() {
+        int actuals;
+        do {
+            actuals = referencies.get();
+            if (actuals <= 0) {
+                throw new IllegalStateException("Trama compartida ja alliberada");
+            }
+        } while (!referencies.compareAndSet(actuals, actuals + 1));
+        return this;
+    }
+
+    /**
+     * Torna una referència; l'última retorna el buffer al pool
+     * @throws IllegalStateException si s'allibera més cops dels que s'ha retingut
+     */
+    void alliberar() {
+        int queden = referencies.decrementAndGet();
+        if (queden == 0) {
+            PoolBuffers.COMPARTIT.alliberar(dades);
+        } else if (queden < 0) {
+            throw new IllegalStateException("Trama compartida alliberada massa cops");
+        }
+    }
+
+    /**
+     * Copia bytes de la trama a la posició de desti, que avança
+     * Es pot cridar des de diversos fils alhora: només fa lectures absolutes
+     * @param desde Primer byte de la trama que encara no s'ha copiat
+     * @return Bytes copiats: els que queden de la trama o els que caben a desti
+     */
+    int copiar(int desde, ByteBuffer desti) {
+        int bytes = Math.min(dades.limit() - desde, desti.remaining());
+        desti.put(desti.position(), dades, desde, bytes);
+        desti.position(desti.position() + bytes);
+        return bytes;
+    }
+
+    /**
+     * @return Mida de la trama en bytes, comptant-hi la longitud
+     */
+    int mida() {
+        return dades.limit();
+    }
+}
@@ -0,0 +1,110 @@
+package com.securechat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.securechat.Multifil.AnellMPMC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Proves de l'anell lock-free: límits de capacitat i cap pèrdua ni
+ * duplicat amb diversos productors i consumidors alhora
+ */
+class AnellMPMCTest {
+    private static final int PRODUCTORS = 4;
+    private static final int CONSUMIDORS = 4;
+    private static final int PER_PRODUCTOR = 50_000;
+
+    @Test
+    void capacitatArrodonidaAPotenciaDeDos() {
+        assertEquals(2, new AnellMPMC<>(1).capacitat());
+        assertEquals(8, new AnellMPMC<>(5).capacitat());
+        assertEquals(8, new AnellMPMC<>(8).capacitat());
+    }
+
+    @Test
+    void pleIBuitSenseBloquejar() {
+        AnellMPMC<Integer> anell = new AnellMPMC<>(4);
+        assertNull(anell.treure());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(anell.oferir(i));
+        }
+        assertFalse(anell.oferir(99));
+        assertEquals(4, anell.mida());
+
+        // Diverses voltes: l'ordre FIFO es manté en reutilitzar els slots
+        for (int volta = 0; volta < 10; volta++) {
+            assertEquals(volta, (int) anell.treure());
+            assertTrue(anell.oferir(volta + 4));
+        }
+        for (int i = 10; i < 14; i++) {
+            assertEquals(i, (int) anell.treure());
+        }
+        assertNull(anell.treure());
+        assertEquals(0, anell.mida());
+    }
+
+    @Test
+    void diversosProductorsIConsumidorsSensePerduesNiDuplicats() throws InterruptedException {
+        AnellMPMC<Integer> anell = new AnellMPMC<>(64);
+        int total = PRODUCTORS * PER_PRODUCTOR;
+        AtomicIntegerArray vistos = new AtomicIntegerArray(total);
+        AtomicLong trets = new AtomicLong();
+        AtomicLong desordenats = new AtomicLong();
+
+        List<Thread> fils = new ArrayList<>();
+        for (int p = 0; p < PRODUCTORS; p++) {
+            int base = p * PER_PRODUCTOR;
+            fils.add(new Thread(() -> {
+                for (int i = 0; i < PER_PRODUCTOR; i++) {
+                    while (!anell.oferir(base + i)) {
+                        Thread.yield(); // Amb pocs nuclis, deixar córrer el fil que ha de publicar o alliberar el slot
+                    }
+                }
+            }, "Productor-" + p));
+        }
+        for (int c = 0; c < CONSUMIDORS; c++) {
+            fils.add(new Thread(() -> {
+                // Cada consumidor ha de veure els elements d'un mateix productor en ordre
+                int[] ultimPerProductor = new int[PRODUCTORS];
+                Arrays.fill(ultimPerProductor, -1);
+                while (trets.get() < total) {
+                    Integer element = anell.treure();
+                    if (element == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    vistos.incrementAndGet(element);
+                    int productor = element / PER_PRODUCTOR;
+                    if (element <= ultimPerProductor[productor]) {
+                        desordenats.incrementAndGet();
+                    }
+                    ultimPerProductor[productor] = element;
+                    trets.incrementAndGet();
+                }
+            }, "Consumidor-" + c));
+        }
+        for (Thread fil : fils) {
+            fil.start();
+        }
+        for (Thread fil : fils) {
+            fil.join(30_000);
+            assertFalse(fil.isAlive(), fil.getName() + " no ha acabat");
+        }
+
+        assertEquals(total, trets.get());
+        for (int i = 0; i < total; i++) {
+            assertEquals(1, vistos.get(i), "Element " + i);
+        }
+        assertEquals(0, desordenats.get());
+        assertNull(anell.treure());
+    }
+}
@@ -0,0 +1,111 @@
+package com.securechat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.securechat.Multifil.MessageBuffer.PoliticaDesbordament;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Proves dels carrils de prioritat: ordre estricte, torns ponderats
+ * i un sol consumidor que es desperta amb qualsevol carril
+ */
+class BufferCarrilsTest {
+
+    @Test
+    void estrictaTreuSempreDelCarrilMesPrioritari() {
+        BufferCarrils<String> buffer = BufferCarrils.estricta(new int[] {4, 4}, PoliticaDesbordament.BLOQUEJAR,
+                BufferCarrilsTest::carril);
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(buffer.afegirMissatge("D" + i));
+        }
+        // El carril de dades és ple, però el de control encara accepta sense esperar
+        assertFalse(buffer.offer("D5", 0, TimeUnit.MILLISECONDS));
+        assertTrue(buffer.offer("C1", 0, TimeUnit.MILLISECONDS));
+        assertTrue(buffer.offer("C2", 0, TimeUnit.MILLISECONDS));
+
+        assertEquals("C1", buffer.treureMissatge());
+        assertTrue(buffer.afegirMissatge("C3"));
+        assertEquals(List.of("C2", "C3", "D1", "D2", "D3", "D4"), buffer.treureLot(10));
+        assertEquals(3L, buffer.getAcceptats(0));
+        assertEquals(4L, buffer.getAcceptats(1));
+        assertEquals(0, buffer.getMida(0) + buffer.getMida(1));
+        assertThrows(IllegalArgumentException.class, () -> buffer.afegirMissatge("X"));
+    }
+
+    @Test
+    void ponderadaRepartegixSegonsElsPesos() {
+        BufferCarrils<String> buffer = BufferCarrils.ponderada(new int[] {40, 40}, new int[] {3, 1},
+                PoliticaDesbordament.BLOQUEJAR, BufferCarrilsTest::carril);
+        for (int i = 1; i <= 40; i++) {
+            buffer.afegirMissatge("D" + i);
+            buffer.afegirMissatge("C" + i);
+        }
+        // Amb tots dos carrils plens, 3 de control per cada 1 de dades
+        List<String> lot = buffer.treureLot(40);
+        assertEquals(List.of("C1", "C2", "C3", "D1", "C4", "C5", "C6", "D2"), lot.subList(0, 8));
+        assertEquals(30L, lot.stream().filter(missatge -> carril(missatge) == 0).count());
+
+        // Quan el control s'acaba, les dades s'emporten tots els torns
+        lot = buffer.treureLot(40);
+        assertEquals(List.of("C31", "C32", "C33", "D11"), lot.subList(0, 4));
+        assertEquals("D40", lot.get(lot.size() - 1));
+        assertEquals(10L, lot.stream().filter(missatge -> carril(missatge) == 0).count());
+
+        // Un carril buit cedeix el torn
+        buffer.afegirMissatge("D41");
+        buffer.afegirMissatge("D42");
+        assertEquals(List.of("D41", "D42"), buffer.treureLot(10));
+    }
+
+    @Test
+    void elConsumidorEsDespertaAmbQualsevolCarril() throws InterruptedException {
+        BufferCarrils<String> buffer = BufferCarrils.estricta(new int[] {2, 2}, PoliticaDesbordament.BLOQUEJAR,
+                BufferCarrilsTest::carril);
+        for (String missatge : new String[] {"D1", "C1"}) {
+            AtomicReference<String> rebut = new AtomicReference<>();
+            Thread consumidor = new Thread(() -> rebut.set(buffer.treureMissatge()));
+            consumidor.start();
+            // Esperar que s'hagi adormit a la cua buida
+            long limit = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (consumidor.getState() != Thread.State.WAITING) {
+                assertTrue(System.nanoTime() < limit, "El consumidor no s'ha adormit");
+                Thread.sleep(1);
+            }
+            buffer.afegirMissatge(missatge);
+            consumidor.join(10_000);
+            assertFalse(consumidor.isAlive(), "No s'ha despertat amb " + missatge);
+            assertEquals(missatge, rebut.get());
+        }
+    }
+
+    @Test
+    void carrilsSenseCapacitatOPesNoSAdmeten() {
+        List<Runnable> casos = new ArrayList<>();
+        casos.add(() -> BufferCarrils.estricta(new int[0], PoliticaDesbordament.BLOQUEJAR, BufferCarrilsTest::carril));
+        casos.add(() -> BufferCarrils.estricta(new int[] {4, 0}, PoliticaDesbordament.BLOQUEJAR, BufferCarrilsTest::carril));
+        casos.add(() -> BufferCarrils.ponderada(new int[] {4, 4}, new int[] {1}, PoliticaDesbordament.BLOQUEJAR,
+                BufferCarrilsTest::carril));
+        casos.add(() -> BufferCarrils.ponderada(new int[] {4, 4}, new int[] {1, 0}, PoliticaDesbordament.BLOQUEJAR,
+                BufferCarrilsTest::carril));
+        casos.add(() -> BufferCarrils.estricta(new int[] {4}, PoliticaDesbordament.ABOCAR_A_DISC,
+                BufferCarrilsTest::carril));
+        for (Runnable cas : casos) {
+            assertThrows(IllegalArgumentException.class, cas::run);
+        }
+    }
+
+    /**
+     * C... al carril 0 (control), D... al 1 (dades); qualsevol altra cosa a un carril inexistent
+     */
+    private static int carril(String missatge) {
+        return missatge.startsWith("C") ? 0 : missatge.startsWith("D") ? 1 : 2;
+    }
+}
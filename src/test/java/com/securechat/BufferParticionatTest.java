@@ -0,0 +1,163 @@
+package com.securechat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.securechat.Multifil.MessageBuffer.ModeCua;
+import com.securechat.Multifil.MessageBuffer.PoliticaDesbordament;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Proves del repartiment per clau: totes les particions reben feina i
+ * els missatges d'una conversa es processen en ordre en un sol fil;
+ * aturar() deixa acabar el lot en curs sense interrompre cap consumidor
+ */
+class BufferParticionatTest {
+
+    @Test
+    void indexDinsDelRangPerQualsevolClau() {
+        int[] claus = {0, 1, -1, 42, Integer.MIN_VALUE, Integer.MAX_VALUE};
+        for (int particions = 1; particions <= 16; particions++) {
+            for (int clau : claus) {
+                int index = BufferParticionat.index(clau, particions);
+                assertTrue(index >= 0 && index < particions, "Clau " + clau + " amb " + particions + " particions");
+                assertEquals(index, BufferParticionat.index(clau, particions));
+            }
+        }
+    }
+
+    @Test
+    void clausSequencialsIMultiplesEsReparteixen() {
+        int particions = 8;
+        int claus = 80_000;
+        int[] sequencials = new int[particions];
+        int[] multiples = new int[particions];
+        for (int clau = 0; clau < claus; clau++) {
+            sequencials[BufferParticionat.index(clau, particions)]++;
+            multiples[BufferParticionat.index(clau * particions, particions)]++;
+        }
+        // Cada partició ha de rebre la seva part amb un marge del 20%
+        int esperat = claus / particions;
+        for (int i = 0; i < particions; i++) {
+            assertTrue(Math.abs(sequencials[i] - esperat) < esperat / 5, "Seqüencials, partició " + i + ": " + sequencials[i]);
+            assertTrue(Math.abs(multiples[i] - esperat) < esperat / 5, "Múltiples, partició " + i + ": " + multiples[i]);
+        }
+    }
+
+    @Test
+    void ordrePerConversaAmbDiversosProductors() throws InterruptedException {
+        int productors = 4;
+        int conversesPerProductor = 8;
+        int missatgesPerConversa = 1_000;
+        long total = (long) productors * conversesPerProductor * missatgesPerConversa;
+
+        // Missatge = conversa als 32 bits alts i número de seqüència als baixos
+        BufferParticionat<Long> buffer = new BufferParticionat<>(4, 64, ModeCua.MONITOR, PoliticaDesbordament.BLOQUEJAR,
+                missatge -> (int) (missatge >>> 32));
+        Map<Integer, Long> ultimaSeq = new ConcurrentHashMap<>();
+        Map<Integer, String> filPerConversa = new ConcurrentHashMap<>();
+        AtomicLong desordenats = new AtomicLong();
+        AtomicLong canvisDeFil = new AtomicLong();
+
+        buffer.iniciar("prova-particions", missatge -> {
+            int conversa = (int) (missatge >>> 32);
+            long seq = missatge & 0xFFFF_FFFFL;
+            Long anterior = ultimaSeq.put(conversa, seq);
+            if (anterior != null && seq != anterior + 1) {
+                desordenats.incrementAndGet();
+            }
+            String fil = Thread.currentThread().getName();
+            if (!fil.equals(filPerConversa.computeIfAbsent(conversa, c -> fil))) {
+                canvisDeFil.incrementAndGet();
+            }
+        });
+        try {
+            List<Thread> fils = new ArrayList<>();
+            for (int p = 0; p < productors; p++) {
+                int primeraConversa = p * conversesPerProductor;
+                fils.add(new Thread(() -> {
+                    // Intercalar les converses del productor
+                    for (int seq = 0; seq < missatgesPerConversa; seq++) {
+                        for (int c = 0; c < conversesPerProductor; c++) {
+                            buffer.afegirMissatge(((long) (primeraConversa + c) << 32) | seq);
+                        }
+                    }
+                }));
+            }
+            for (Thread fil : fils) {
+                fil.start();
+            }
+            for (Thread fil : fils) {
+                fil.join(30_000);
+                assertFalse(fil.isAlive());
+            }
+            long limit = System.nanoTime() + 30_000_000_000L;
+            while (buffer.getProcessats() < total && System.nanoTime() < limit) {
+                Thread.sleep(10);
+            }
+        } finally {
+            buffer.aturar();
+        }
+
+        assertEquals(total, buffer.getProcessats());
+        assertEquals(productors * conversesPerProductor, ultimaSeq.size());
+        for (long seq : ultimaSeq.values()) {
+            assertEquals(missatgesPerConversa - 1, seq);
+        }
+        assertEquals(0, desordenats.get());
+        assertEquals(0, canvisDeFil.get());
+    }
+
+    @Test
+    void aturarSenseInterrompreElsConsumidors() throws InterruptedException {
+        for (ModeCua mode : ModeCua.values()) {
+            aturarSenseInterrompre(mode);
+        }
+    }
+
+    private static void aturarSenseInterrompre(ModeCua mode) throws InterruptedException {
+        BufferParticionat<Integer> buffer = new BufferParticionat<>(2, 16, mode, PoliticaDesbordament.BLOQUEJAR,
+                missatge -> missatge);
+        CountDownLatch processant = new CountDownLatch(1);
+        CountDownLatch continuar = new CountDownLatch(1);
+        AtomicBoolean interromput = new AtomicBoolean();
+        String nom = "prova-aturar-" + mode;
+        buffer.iniciar(nom, missatge -> {
+            processant.countDown();
+            try {
+                continuar.await();
+            } catch (InterruptedException e) {
+                interromput.set(true);
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(buffer.afegirMissatge(1));
+        assertTrue(processant.await(10, TimeUnit.SECONDS));
+
+        // Un consumidor a mig missatge i l'altre esperant a la cua buida
+        Thread aturador = new Thread(buffer::aturar);
+        aturador.start();
+        Thread.sleep(50);
+        continuar.countDown();
+        aturador.join(10_000);
+        assertFalse(aturador.isAlive());
+
+        assertFalse(interromput.get(), mode.toString());
+        assertEquals(1L, buffer.getProcessats());
+        for (Thread fil : Thread.getAllStackTraces().keySet()) {
+            assertFalse(fil.getName().startsWith("Processador-" + nom), fil.getName() + " segueix viu");
+        }
+        assertThrows(IllegalStateException.class, () -> buffer.iniciar(nom, missatge -> { }));
+    }
+}
@@ -0,0 +1,105 @@
+package com.securechat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Proves del format de trama: anada i tornada, trames incompletes i
+ * longituds fora de límits
+ */
+class CodecTramaTest {
+    private final CodecTrama codec = new CodecTrama();
+
+    @Test
+    void anadaITornada() throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.allocate(CodecTrama.MIDA_MAXIMA_TRAMA);
+        String text = "Bon dia, què tal? ✓ 🙂";
+        assertTrue(codec.codificar(buffer, CodecTrama.TIPUS_MISSATGE, 7, 3, 123_456_789_012L, text));
+        buffer.flip();
+
+        assertEquals(buffer.remaining(), CodecTrama.midaTrama(buffer));
+        assertEquals(CodecTrama.TIPUS_MISSATGE, CodecTrama.tipus(buffer));
+        assertEquals(7, CodecTrama.remitent(buffer));
+        assertEquals(3, CodecTrama.sala(buffer));
+        assertEquals(123_456_789_012L, CodecTrama.seq(buffer));
+        assertEquals(text, codec.contingut(buffer).toString());
+        // Llegir no avança el buffer
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    void duesTramesSeguides() throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        assertTrue(codec.codificar(buffer, CodecTrama.TIPUS_UNIR, 1, 10, 1, ""));
+        assertTrue(codec.codificar(buffer, CodecTrama.TIPUS_MISSATGE, 2, 10, 2, CharBuffer.wrap("hola")));
+        buffer.flip();
+
+        int primera = CodecTrama.midaTrama(buffer);
+        assertEquals(CodecTrama.MIDA_LONGITUD + CodecTrama.MIDA_CAPCALERA, primera);
+        assertEquals(CodecTrama.TIPUS_UNIR, CodecTrama.tipus(buffer));
+        assertEquals("", codec.contingut(buffer).toString());
+
+        buffer.position(buffer.position() + primera);
+        assertEquals(buffer.remaining(), CodecTrama.midaTrama(buffer));
+        assertEquals(2L, CodecTrama.seq(buffer));
+        assertEquals("hola", codec.contingut(buffer).toString());
+    }
+
+    @Test
+    void tramaTalladaEsperaLaResta() throws ProtocolException {
+        ByteBuffer sencera = ByteBuffer.allocate(128);
+        assertTrue(codec.codificar(sencera, CodecTrama.TIPUS_RESPOSTA, 0, 0, 0, "resposta"));
+        sencera.flip();
+        int mida = sencera.remaining();
+
+        for (int arribats = 0; arribats < mida; arribats++) {
+            ByteBuffer parcial = sencera.duplicate().limit(arribats);
+            assertEquals(-1, CodecTrama.midaTrama(parcial), "Amb " + arribats + " bytes");
+        }
+        assertEquals(mida, CodecTrama.midaTrama(sencera));
+    }
+
+    @Test
+    void contingutMassaGranNoEsCodifica() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * CodecTrama.MIDA_MAXIMA_TRAMA);
+        buffer.position(10);
+
+        String maxim = "a".repeat(CodecTrama.MIDA_MAXIMA_CONTINGUT);
+        assertTrue(codec.codificar(buffer, CodecTrama.TIPUS_MISSATGE, 1, 1, 1, maxim));
+        assertEquals(10 + CodecTrama.MIDA_MAXIMA_TRAMA, buffer.position());
+
+        // Un byte més no hi cap encara que el buffer tingui lloc, i el buffer queda com estava
+        int abans = buffer.position();
+        assertFalse(codec.codificar(buffer, CodecTrama.TIPUS_MISSATGE, 1, 1, 2, maxim + "a"));
+        assertEquals(abans, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+
+        // Tampoc si és el destí el que no té lloc
+        ByteBuffer petit = ByteBuffer.allocate(CodecTrama.MIDA_LONGITUD + CodecTrama.MIDA_CAPCALERA + 3);
+        assertFalse(codec.codificar(petit, CodecTrama.TIPUS_MISSATGE, 1, 1, 3, "quatre"));
+        assertEquals(0, petit.position());
+        assertTrue(codec.codificar(petit, CodecTrama.TIPUS_MISSATGE, 1, 1, 3, "tre"));
+    }
+
+    @Test
+    void longitudInvalidaEsRebutja() {
+        ByteBuffer massaGran = ByteBuffer.allocate(CodecTrama.MIDA_LONGITUD);
+        massaGran.putInt(0, CodecTrama.MIDA_MAXIMA_TRAMA - CodecTrama.MIDA_LONGITUD + 1);
+        assertThrows(ProtocolException.class, () -> CodecTrama.midaTrama(massaGran));
+
+        ByteBuffer massaPetita = ByteBuffer.allocate(CodecTrama.MIDA_LONGITUD);
+        massaPetita.putInt(0, CodecTrama.MIDA_CAPCALERA - 1);
+        assertThrows(ProtocolException.class, () -> CodecTrama.midaTrama(massaPetita));
+
+        ByteBuffer negativa = ByteBuffer.allocate(CodecTrama.MIDA_LONGITUD);
+        negativa.putInt(0, -1);
+        assertThrows(ProtocolException.class, () -> CodecTrama.midaTrama(negativa));
+    }
+}
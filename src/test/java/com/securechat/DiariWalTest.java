@@ -0,0 +1,235 @@
+package com.securechat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.securechat.Multifil.CodecDisc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Proves de recuperació del diari: missatges no consumits després de
+ * reobrir, final de segment tallat o corrupte, segment del mig corrupte
+ * i punt de control amb esborrat de segments
+ */
+class DiariWalTest {
+    // Capçalera de cada registre: [longitud int][crc32c int][seq long]
+    private static final int MIDA_CAPCALERA = 2 * Integer.BYTES + Long.BYTES;
+
+    @TempDir
+    Path directori;
+
+    @Test
+    void recuperaElsNoConsumitsEnOrdre() throws IOException {
+        DiariWal<String> diari = obrir(1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            diari.afegir("missatge-" + i);
+        }
+        for (int i = 0; i < 4; i++) {
+            diari.consumit();
+        }
+        diari.tancar();
+
+        DiariWal<String> reobert = obrir(1024 * 1024);
+        assertEquals(missatges(4, 10), reobert.recuperar());
+        // Només el primer cop
+        assertEquals(List.of(), reobert.recuperar());
+
+        // Les seqüències continuen: el que s'hi afegeix ara va darrere dels recuperats
+        reobert.afegir("missatge-10");
+        reobert.tancar();
+        assertEquals(missatges(4, 11), obrirIRecuperar());
+    }
+
+    @Test
+    void registreTallatAlFinalEsDescarta() throws IOException {
+        DiariWal<String> diari = obrir(1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            diari.afegir("missatge-" + i);
+        }
+        diari.tancar();
+        Path segment = unicSegment();
+        long midaBona = Files.size(segment);
+
+        // Caiguda a mig escriure: una capçalera que anuncia 100 bytes i només n'arriben 10
+        try (FileChannel canal = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+            ByteBuffer tallat = ByteBuffer.allocate(MIDA_CAPCALERA + 10);
+            tallat.putInt(100).putInt(0).putLong(6).flip();
+            canal.write(tallat);
+        }
+
+        DiariWal<String> reobert = obrir(1024 * 1024);
+        assertEquals(missatges(0, 5), reobert.recuperar());
+        assertEquals(midaBona, Files.size(segment));
+
+        // Els registres nous van just darrere de l'últim bo i es recuperen
+        reobert.afegir("missatge-5");
+        reobert.tancar();
+        assertEquals(missatges(0, 6), obrirIRecuperar());
+    }
+
+    @Test
+    void registreCorrupteAlFinalEsDescarta() throws IOException {
+        DiariWal<String> diari = obrir(1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            diari.afegir("missatge-" + i);
+        }
+        diari.tancar();
+        Path segment = unicSegment();
+        long mida = Files.size(segment);
+
+        // Un bit girat a les dades de l'últim registre: el CRC ja no quadra
+        try (FileChannel canal = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer octet = ByteBuffer.allocate(1);
+            canal.read(octet, mida - 1);
+            octet.put(0, (byte) (octet.get(0) ^ 0x01));
+            canal.write(octet.flip(), mida - 1);
+        }
+
+        assertEquals(missatges(0, 4), obrirIRecuperar());
+        assertEquals(mida - MIDA_CAPCALERA - "missatge-4".length(), Files.size(segment));
+    }
+
+    @Test
+    void puntDeControlEsborraElsSegmentsConsumits() throws IOException {
+        // Amb segments d'1 byte cada lot en comença un de nou
+        DiariWal<String> diari = obrir(1);
+        escriureLots(diari, 3);
+        assertEquals(3, segments().size());
+
+        // Consumir els dos primers lots sencers i un missatge del tercer
+        for (int i = 0; i < 9; i++) {
+            diari.consumit();
+        }
+        esperarFins(() -> segments().size() == 1);
+        diari.tancar();
+
+        assertEquals(missatges(9, 12), obrirIRecuperar());
+    }
+
+    @Test
+    void segmentNoEsborraMentreQuedinRegistresPerConsumir() throws IOException {
+        DiariWal<String> diari = obrir(1);
+        escriureLots(diari, 2);
+        // Falta un missatge del primer lot: tots dos segments s'han de quedar
+        for (int i = 0; i < 3; i++) {
+            diari.consumit();
+        }
+        diari.tancar();
+
+        assertEquals(2, segments().size());
+        assertEquals(missatges(3, 8), obrirIRecuperar());
+    }
+
+    @Test
+    void segmentDelMigCorrupteNoDesquadraElsConsumits() throws IOException {
+        DiariWal<String> diari = obrir(1);
+        escriureLots(diari, 3);
+        diari.tancar();
+        List<Path> segments = segments();
+        segments.sort(null);
+        assertEquals(3, segments.size());
+
+        // Un bit girat a les dades del segon registre del segon segment (seq 6):
+        // es perden les seqüències 6, 7 i 8, però no els segments que venen darrere
+        int midaRegistre = MIDA_CAPCALERA + "missatge-0".length();
+        try (FileChannel canal = FileChannel.open(segments.get(1), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer octet = ByteBuffer.allocate(1);
+            canal.read(octet, midaRegistre + MIDA_CAPCALERA);
+            octet.put(0, (byte) (octet.get(0) ^ 0x01));
+            canal.write(octet.flip(), midaRegistre + MIDA_CAPCALERA);
+        }
+
+        DiariWal<String> reobert = obrir(1024 * 1024);
+        List<String> esperats = missatges(0, 5);
+        esperats.addAll(missatges(8, 12));
+        assertEquals(esperats, reobert.recuperar());
+
+        // Consumir els cinc primers i missatge-8 (seq 9): el punt de control ha de saltar el forat
+        for (int i = 0; i < 6; i++) {
+            reobert.consumit();
+        }
+        reobert.afegir("missatge-12");
+        reobert.tancar();
+        assertEquals(missatges(9, 13), obrirIRecuperar());
+    }
+
+    /**
+     * Escriu lots de 4 missatges, cadascun amb una sola sincronització
+     * (i, amb segments d'1 byte, cadascun al seu segment)
+     */
+    private static void escriureLots(DiariWal<String> diari, int lots) {
+        for (int lot = 0; lot < lots; lot++) {
+            long sincronitzacions = diari.getSincronitzacions();
+            // Amb el monitor del diari agafat el fil de sincronització no pot partir el lot
+            synchronized (diari) {
+                for (int i = 0; i < 4; i++) {
+                    diari.afegir("missatge-" + (lot * 4 + i));
+                }
+            }
+            esperarFins(() -> diari.getSincronitzacions() > sincronitzacions);
+        }
+    }
+
+    private DiariWal<String> obrir(long midaSegment) throws IOException {
+        return DiariWal.obrir(directori, CodecDisc.TEXT, 1, TimeUnit.MILLISECONDS, 256 * 1024, midaSegment);
+    }
+
+    private List<String> obrirIRecuperar() throws IOException {
+        DiariWal<String> diari = obrir(1024 * 1024);
+        try {
+            return diari.recuperar();
+        } finally {
+            diari.tancar();
+        }
+    }
+
+    private static List<String> missatges(int desde, int fins) {
+        List<String> missatges = new ArrayList<>();
+        for (int i = desde; i < fins; i++) {
+            missatges.add("missatge-" + i);
+        }
+        return missatges;
+    }
+
+    private List<Path> segments() {
+        try (Stream<Path> fitxers = Files.list(directori)) {
+            List<Path> segments = new ArrayList<>();
+            fitxers.filter(fitxer -> fitxer.getFileName().toString().endsWith(".seg")).forEach(segments::add);
+            return segments;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path unicSegment() {
+        List<Path> segments = segments();
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    private static void esperarFins(BooleanSupplier condicio) {
+        long limit = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condicio.getAsBoolean()) {
+            assertTrue(System.nanoTime() < limit, "La condició no s'ha complert a temps");
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.securechat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.securechat.HistogramaLatencia.Instantania;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Proves de l'histograma: cubell de cada valor i error relatiu,
+ * percentils dins dels límits i intervals sense perdre ni repetir valors
+ */
+class HistogramaLatenciaTest {
+
+    @Test
+    void elsValorsPetitsTenenUnCubellCadascun() {
+        for (long valor = 0; valor < 64; valor++) {
+            assertEquals((int) valor, HistogramaLatencia.index(valor));
+            assertEquals(valor, HistogramaLatencia.limitSuperior((int) valor));
+        }
+        // 64 i 65 ja comparteixen cubell
+        assertEquals(64, HistogramaLatencia.index(64));
+        assertEquals(64, HistogramaLatencia.index(65));
+        assertEquals(65L, HistogramaLatencia.limitSuperior(64));
+        assertEquals(1887, HistogramaLatencia.index(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, HistogramaLatencia.limitSuperior(1887));
+    }
+
+    @Test
+    void cadaValorCauAlCubellQueLInclouAmbErrorAcotat() {
+        int anterior = 0;
+        for (long valor = 1; valor > 0 && valor < Long.MAX_VALUE / 2; valor += Math.max(1, valor / 7)) {
+            for (long v : new long[] {valor, 2 * valor - 1, 2 * valor}) {
+                int index = HistogramaLatencia.index(v);
+                long superior = HistogramaLatencia.limitSuperior(index);
+                assertTrue(superior >= v, "Límit del cubell de " + v);
+                assertTrue(HistogramaLatencia.limitSuperior(index - 1) < v, "Cubell anterior de " + v);
+                // Com a molt un 1/32 per sobre del valor real
+                assertTrue(superior - v <= v / 32, "Error relatiu de " + v + ": " + superior);
+            }
+            int index = HistogramaLatencia.index(valor);
+            assertTrue(index >= anterior, "Índex no creixent a " + valor);
+            anterior = index;
+        }
+    }
+
+    @Test
+    void percentilsDinsDelsLimits() {
+        HistogramaLatencia histograma = new HistogramaLatencia();
+        assertEquals(0L, histograma.instantania().percentil(99));
+
+        for (long valor = 1; valor <= 1000; valor++) {
+            histograma.registrar(valor);
+        }
+        Instantania instantania = histograma.instantania();
+        assertEquals(1000L, instantania.getTotal());
+        assertEquals(1000L, instantania.getMaxim());
+        assertEquals(1L, instantania.percentil(0));
+        assertEquals(1000L, instantania.percentil(100));
+        for (double percentil : new double[] {10, 50, 90, 99, 99.9}) {
+            long exacte = (long) Math.ceil(10 * percentil);
+            long estimat = instantania.percentil(percentil);
+            assertTrue(estimat >= exacte && estimat <= exacte + exacte / 32, "p" + percentil + " = " + estimat);
+        }
+
+        // Mai per sobre del màxim real, encara que el cubell vagi més amunt
+        HistogramaLatencia unic = new HistogramaLatencia();
+        unic.registrar(1_000_001);
+        assertEquals(1_000_001L, unic.instantania().percentil(50));
+    }
+
+    @Test
+    void elsNegatiusCompten0() {
+        HistogramaLatencia histograma = new HistogramaLatencia();
+        histograma.registrar(-5);
+        assertEquals(1L, histograma.instantania().getTotal());
+        assertEquals(0L, histograma.instantania().getMaxim());
+        assertEquals(0L, histograma.getSuma());
+    }
+
+    @Test
+    void intervalsSenseValorsPerdutsNiRepetits() {
+        HistogramaLatencia histograma = new HistogramaLatencia();
+        for (int i = 1; i <= 10; i++) {
+            histograma.registrar(i * 1000L);
+        }
+        Instantania primer = histograma.instantaniaInterval();
+        assertEquals(10L, primer.getTotal());
+        assertEquals(10_000L, primer.getMaxim());
+
+        for (int i = 1; i <= 5; i++) {
+            histograma.registrar(i);
+        }
+        Instantania segon = histograma.instantaniaInterval();
+        assertEquals(5L, segon.getTotal());
+        assertEquals(5L, segon.getMaxim());
+        assertEquals(5L, segon.percentil(100));
+
+        Instantania buit = histograma.instantaniaInterval();
+        assertEquals(0L, buit.getTotal());
+        assertEquals(0L, buit.getMaxim());
+
+        // L'acumulada no es veu afectada pels intervals
+        Instantania total = histograma.instantania();
+        assertEquals(15L, total.getTotal());
+        assertEquals(10_000L, total.getMaxim());
+        assertEquals(55_015L, histograma.getSuma());
+    }
+
+    @Test
+    void acumularPerLimits() {
+        HistogramaLatencia histograma = new HistogramaLatencia();
+        histograma.registrar(10);
+        histograma.registrar(100);
+        histograma.registrar(5000);
+        long[] limits = {63, 1000, Long.MAX_VALUE};
+        long[] acumulats = new long[limits.length];
+        assertEquals(3L, histograma.acumular(limits, acumulats));
+        assertEquals(1L, acumulats[0]);
+        assertEquals(2L, acumulats[1]);
+        assertEquals(3L, acumulats[2]);
+    }
+}
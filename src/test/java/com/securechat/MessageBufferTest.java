@@ -0,0 +1,327 @@
+package com.securechat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.securechat.Multifil.CodecDisc;
+import com.securechat.Multifil.MessageBuffer;
+import com.securechat.Multifil.MessageBuffer.ModeCua;
+import com.securechat.Multifil.MessageBuffer.PoliticaDesbordament;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Proves del MessageBuffer en els dos modes de cua: lots, esperes i
+ * polítiques de desbordament
+ */
+class MessageBufferTest {
+
+    @Test
+    void lotsEnOrdreAmbTotsDosModes() {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(16, mode);
+            assertEquals(10, buffer.afegirLot(enters(0, 10)), mode.name());
+            assertEquals(10, buffer.getMidaCua(), mode.name());
+
+            assertEquals(enters(0, 4), buffer.treureLot(4), mode.name());
+            List<Integer> desti = new ArrayList<>();
+            assertEquals(6, buffer.drainTo(desti, 100), mode.name());
+            assertEquals(enters(4, 10), desti, mode.name());
+            assertEquals(0, buffer.getMidaCua(), mode.name());
+            assertEquals(10, buffer.getLliurats(), mode.name());
+        }
+    }
+
+    @Test
+    void drainToNoBloquejaAmbLaCuaBuida() {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(8, mode);
+            List<Integer> desti = new ArrayList<>();
+            assertEquals(0, buffer.drainTo(desti, 8), mode.name());
+            assertTrue(desti.isEmpty(), mode.name());
+            assertEquals(0, buffer.afegirLot(List.of()), mode.name());
+        }
+    }
+
+    @Test
+    void treureLotEsperaElPrimerMissatge() throws InterruptedException {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(8, mode);
+            List<List<Integer>> lots = new ArrayList<>();
+            Thread consumidor = new Thread(() -> lots.add(buffer.treureLot(8)));
+            consumidor.start();
+            esperarFins(() -> buffer.getEsperantsBuit() == 1);
+
+            buffer.afegirMissatge(7);
+            consumidor.join(10_000);
+            assertFalse(consumidor.isAlive(), mode.name());
+            assertEquals(List.of(List.of(7)), lots, mode.name());
+        }
+    }
+
+    @Test
+    void lotMesGranQueLaCapacitatPassaSencer() throws InterruptedException {
+        for (ModeCua mode : ModeCua.values()) {
+            // El productor ha de despertar el consumidor cada cop que omple la cua
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(4, mode);
+            int total = 1_000;
+            List<Integer> rebuts = new ArrayList<>();
+            Thread consumidor = new Thread(() -> {
+                while (rebuts.size() < total) {
+                    rebuts.addAll(buffer.treureLot(3));
+                }
+            });
+            consumidor.start();
+            assertEquals(total, buffer.afegirLot(enters(0, total)), mode.name());
+            consumidor.join(10_000);
+            assertFalse(consumidor.isAlive(), mode.name());
+            assertEquals(enters(0, total), rebuts, mode.name());
+        }
+    }
+
+    @Test
+    void productorInterromputNoEsQuedaEsperant() {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(2, mode);
+            buffer.afegirLot(List.of(1, 2));
+
+            Thread.currentThread().interrupt();
+            try {
+                long inici = System.nanoTime();
+                assertFalse(buffer.afegirMissatge(3), mode.name());
+                assertTrue(Thread.currentThread().isInterrupted(), mode.name());
+                assertTrue(System.nanoTime() - inici < TimeUnit.SECONDS.toNanos(5), mode.name());
+            } finally {
+                Thread.interrupted();
+            }
+            assertEquals(0, buffer.getEsperantsPle(), mode.name());
+            assertEquals(2, buffer.getMidaCua(), mode.name());
+        }
+    }
+
+    @Test
+    void consumidorInterromputTornaNull() {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(2, mode);
+            Thread.currentThread().interrupt();
+            try {
+                assertNull(buffer.treureMissatge());
+                assertTrue(buffer.treureLot(4).isEmpty(), mode.name());
+            } finally {
+                Thread.interrupted();
+            }
+            assertEquals(0, buffer.getEsperantsBuit(), mode.name());
+        }
+    }
+
+    @Test
+    void cadaMissatgeDespertaUnConsumidor() throws InterruptedException {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(8, mode);
+            List<Thread> consumidors = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Thread consumidor = new Thread(buffer::treureMissatge);
+                consumidor.start();
+                consumidors.add(consumidor);
+            }
+            esperarFins(() -> buffer.getEsperantsBuit() == 3);
+
+            // Un missatge en treu un de l'espera i els altres dos hi continuen
+            buffer.afegirMissatge(1);
+            esperarFins(() -> buffer.getEsperantsBuit() == 2);
+            esperarFins(() -> consumidors.stream().filter(Thread::isAlive).count() == 2);
+
+            buffer.afegirLot(List.of(2, 3));
+            for (Thread consumidor : consumidors) {
+                consumidor.join(10_000);
+                assertFalse(consumidor.isAlive(), mode.name());
+            }
+            assertEquals(0, buffer.getMidaCua(), mode.name());
+            assertEquals(3, buffer.getLliurats(), mode.name());
+        }
+    }
+
+    @Test
+    void pollAmbLaCuaBuidaTornaNullEnEsgotarElTemps() {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(4, mode);
+            long inici = System.nanoTime();
+            assertNull(buffer.poll(50, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - inici >= TimeUnit.MILLISECONDS.toNanos(50), mode.name());
+
+            // Amb temps zero o negatiu no s'espera gens
+            assertNull(buffer.poll(0, TimeUnit.MILLISECONDS));
+            assertNull(buffer.poll(-5, TimeUnit.SECONDS));
+            assertEquals(0, buffer.getEsperantsBuit(), mode.name());
+        }
+    }
+
+    @Test
+    void offerAmbLaCuaPlenaTornaFalseEnEsgotarElTemps() {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(2, mode);
+            assertTrue(buffer.offer(1, 0, TimeUnit.MILLISECONDS), mode.name());
+            assertTrue(buffer.offer(2, 0, TimeUnit.MILLISECONDS), mode.name());
+
+            long inici = System.nanoTime();
+            assertFalse(buffer.offer(3, 50, TimeUnit.MILLISECONDS), mode.name());
+            assertTrue(System.nanoTime() - inici >= TimeUnit.MILLISECONDS.toNanos(50), mode.name());
+            assertFalse(buffer.offer(3, 0, TimeUnit.MILLISECONDS), mode.name());
+
+            assertEquals(0, buffer.getEsperantsPle(), mode.name());
+            assertEquals(List.of(1, 2), buffer.treureLot(4), mode.name());
+        }
+    }
+
+    @Test
+    void offerEntraSiEsFaLlocAbansDelLimit() throws InterruptedException {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(2, mode);
+            buffer.afegirLot(List.of(1, 2));
+            boolean[] afegit = new boolean[1];
+            Thread productor = new Thread(() -> afegit[0] = buffer.offer(3, 10, TimeUnit.SECONDS));
+            productor.start();
+            esperarFins(() -> buffer.getEsperantsPle() == 1);
+
+            assertEquals(1, (int) buffer.poll(0, TimeUnit.MILLISECONDS));
+            productor.join(10_000);
+            assertFalse(productor.isAlive(), mode.name());
+            assertTrue(afegit[0], mode.name());
+            assertEquals(List.of(2, 3), buffer.treureLot(4), mode.name());
+        }
+    }
+
+    @Test
+    void descartarNouGuardaElsQueJaHiEren() {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(2, mode, PoliticaDesbordament.DESCARTAR_NOU);
+            assertEquals(2, buffer.afegirLot(List.of(1, 2)), mode.name());
+            assertFalse(buffer.afegirMissatge(3), mode.name());
+            assertEquals(0, buffer.afegirLot(List.of(4, 5, 6)), mode.name());
+
+            assertEquals(4, buffer.getDescartatsNous(), mode.name());
+            assertEquals(2, buffer.getAcceptats(), mode.name());
+            assertEquals(List.of(1, 2), buffer.treureLot(4), mode.name());
+        }
+    }
+
+    @Test
+    void descartarAnticFaLlocAlNou() {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(2, mode, PoliticaDesbordament.DESCARTAR_ANTIC);
+            assertTrue(buffer.afegirMissatge(1), mode.name());
+            assertTrue(buffer.afegirMissatge(2), mode.name());
+            assertTrue(buffer.afegirMissatge(3), mode.name());
+            assertEquals(2, buffer.afegirLot(List.of(4, 5)), mode.name());
+
+            assertEquals(3, buffer.getDescartatsAntics(), mode.name());
+            assertEquals(5, buffer.getAcceptats(), mode.name());
+            assertEquals(List.of(4, 5), buffer.treureLot(4), mode.name());
+        }
+    }
+
+    @Test
+    void rebutjarLlancaExcepcio() {
+        for (ModeCua mode : ModeCua.values()) {
+            MessageBuffer<Integer> buffer = new MessageBuffer<>(2, mode, PoliticaDesbordament.REBUTJAR);
+            buffer.afegirLot(List.of(1, 2));
+            assertThrows(IllegalStateException.class, () -> buffer.afegirMissatge(3));
+            assertThrows(IllegalStateException.class, () -> buffer.offer(3, 1, TimeUnit.SECONDS));
+
+            assertEquals(2, buffer.getRebutjats(), mode.name());
+            assertEquals(List.of(1, 2), buffer.treureLot(4), mode.name());
+        }
+    }
+
+    @Test
+    void abocarADiscMantenintLOrdre() {
+        MessageBuffer<String> buffer = new MessageBuffer<>(2, ModeCua.MONITOR, PoliticaDesbordament.ABOCAR_A_DISC,
+                CodecDisc.TEXT);
+        List<String> missatges = List.of("a", "b", "c", "d", "e");
+        for (String missatge : missatges) {
+            assertTrue(buffer.afegirMissatge(missatge));
+        }
+        assertEquals(3, buffer.getAbocatsADisc());
+        assertEquals(3, buffer.getMidaDisc());
+        assertEquals(2, buffer.getMidaCua());
+
+        // El que entra mentre el disc té missatges hi va darrere, encara que hi hagi lloc a memòria
+        assertEquals("a", buffer.treureMissatge());
+        assertTrue(buffer.afegirMissatge("f"));
+
+        List<String> rebuts = new ArrayList<>();
+        rebuts.add("a");
+        while (buffer.getMidaCua() > 0) {
+            rebuts.addAll(buffer.treureLot(1));
+        }
+        assertEquals(List.of("a", "b", "c", "d", "e", "f"), rebuts);
+        assertEquals(0, buffer.getMidaDisc());
+        assertEquals(6, buffer.getAcceptats());
+    }
+
+    @Test
+    void combinacionsNoAdmeses() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new MessageBuffer<>(2, ModeCua.MONITOR, PoliticaDesbordament.ABOCAR_A_DISC));
+        assertThrows(IllegalArgumentException.class,
+                () -> new MessageBuffer<>(2, ModeCua.ANELL_LOCK_FREE, PoliticaDesbordament.ABOCAR_A_DISC, CodecDisc.TEXT));
+
+        MessageBuffer<Integer> anell = new MessageBuffer<>(2, ModeCua.ANELL_LOCK_FREE);
+        assertThrows(UnsupportedOperationException.class, () -> anell.redimensionar(4));
+        MessageBuffer<Integer> monitor = new MessageBuffer<>(2);
+        assertThrows(IllegalArgumentException.class, () -> monitor.redimensionar(0));
+    }
+
+    @Test
+    void redimensionarDespertaElsProductorsIRespectaLaNovaCapacitat() throws InterruptedException {
+        MessageBuffer<Integer> buffer = new MessageBuffer<>(1);
+        buffer.afegirMissatge(1);
+        Thread productor = new Thread(() -> buffer.afegirMissatge(2));
+        productor.start();
+        esperarFins(() -> buffer.getEsperantsPle() == 1);
+
+        // Créixer deixa entrar el productor que esperava
+        buffer.redimensionar(2);
+        productor.join(10_000);
+        assertFalse(productor.isAlive());
+        assertEquals(2, buffer.getCapacitat());
+        assertEquals(2, buffer.getMidaCua());
+
+        // Minvar no treu res, però no entra res fins que baixi de la nova capacitat
+        buffer.redimensionar(1);
+        assertEquals(2, buffer.getMidaCua());
+        assertFalse(buffer.offer(3, 0, TimeUnit.MILLISECONDS));
+        assertEquals(1, (int) buffer.treureMissatge());
+        assertFalse(buffer.offer(3, 0, TimeUnit.MILLISECONDS));
+        assertEquals(2, (int) buffer.treureMissatge());
+        assertTrue(buffer.offer(3, 0, TimeUnit.MILLISECONDS));
+    }
+
+    private static List<Integer> enters(int desde, int fins) {
+        List<Integer> enters = new ArrayList<>();
+        for (int i = desde; i < fins; i++) {
+            enters.add(i);
+        }
+        return enters;
+    }
+
+    private static void esperarFins(BooleanSupplier condicio) {
+        long limit = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condicio.getAsBoolean()) {
+            assertTrue(System.nanoTime() < limit, "La condició no s'ha complert a temps");
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
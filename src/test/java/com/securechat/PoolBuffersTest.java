@@ -0,0 +1,124 @@
+package com.securechat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Proves del pool de buffers directes: classe de mida, cache per fil,
+ * fils virtuals sense cache i detecció de fuites
+ */
+class PoolBuffersTest {
+
+    @Test
+    void classeDeMidaMesPetitaOnHiCap() {
+        PoolBuffers pool = new PoolBuffers(false);
+        int[][] casos = {{0, 512}, {1, 512}, {512, 512}, {513, 1024}, {1024, 1024}, {1025, 2048},
+                {40_000, 65_536}, {PoolBuffers.MIDA_MAXIMA, PoolBuffers.MIDA_MAXIMA}};
+        for (int[] cas : casos) {
+            ByteBuffer buffer = pool.obtenir(cas[0]);
+            assertTrue(buffer.isDirect());
+            assertEquals(cas[1], buffer.capacity(), "Mida " + cas[0]);
+            assertEquals(0, buffer.position());
+            assertEquals(buffer.capacity(), buffer.limit());
+            pool.alliberar(buffer);
+        }
+
+        // Més gran que la classe màxima: es crea a mida i no torna al pool
+        ByteBuffer gran = pool.obtenir(PoolBuffers.MIDA_MAXIMA + 1);
+        assertEquals(PoolBuffers.MIDA_MAXIMA + 1, gran.capacity());
+        pool.alliberar(gran);
+        long errades = pool.getErrades();
+        assertFalse(pool.obtenir(PoolBuffers.MIDA_MAXIMA + 1) == gran);
+        assertEquals(errades + 1, pool.getErrades());
+    }
+
+    @Test
+    void elMateixFilRecuperaElSeuBufferNetejat() {
+        PoolBuffers pool = new PoolBuffers(false);
+        ByteBuffer buffer = pool.obtenir(1000);
+        buffer.putLong(42).flip();
+        pool.alliberar(buffer);
+
+        ByteBuffer reutilitzat = pool.obtenir(600);
+        assertTrue(reutilitzat == buffer);
+        assertEquals(0, reutilitzat.position());
+        assertEquals(reutilitzat.capacity(), reutilitzat.limit());
+        assertEquals(1, pool.getEncerts());
+        assertEquals(1, pool.getErrades());
+        assertEquals(1, pool.getPendents());
+    }
+
+    @Test
+    void elQueNoCapALaCacheDelFilVaAlCompartit() throws InterruptedException {
+        PoolBuffers pool = new PoolBuffers(false);
+        // La cache del fil en guarda 8 per classe: el novè passa al pool compartit
+        List<ByteBuffer> buffers = new ArrayList<>();
+        Thread primer = new Thread(() -> {
+            for (int i = 0; i < 9; i++) {
+                buffers.add(pool.obtenir(512));
+            }
+            for (ByteBuffer buffer : buffers) {
+                pool.alliberar(buffer);
+            }
+        });
+        primer.start();
+        primer.join();
+
+        ByteBuffer compartit = pool.obtenir(512);
+        assertTrue(compartit == buffers.get(8));
+        assertEquals(1, pool.getEncerts());
+        // Els altres vuit són a la cache de l'altre fil: aquí cal crear-ne un de nou
+        ByteBuffer nou = pool.obtenir(512);
+        assertFalse(buffers.stream().anyMatch(buffer -> buffer == nou));
+        assertEquals(10, pool.getErrades());
+    }
+
+    @Test
+    void elsFilsVirtualsNoFanServirLaCache() throws Exception {
+        Method iniciarVirtual;
+        try {
+            iniciarVirtual = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            iniciarVirtual = null;
+        }
+        assumeTrue(iniciarVirtual != null, "Aquesta JVM no té fils virtuals");
+
+        PoolBuffers pool = new PoolBuffers(false);
+        ByteBuffer[] alliberat = new ByteBuffer[1];
+        Thread virtual = (Thread) iniciarVirtual.invoke(null, (Runnable) () -> {
+            alliberat[0] = pool.obtenir(512);
+            pool.alliberar(alliberat[0]);
+        });
+        virtual.join();
+
+        // Si s'hagués quedat a la cache del fil virtual, s'hauria perdut amb ell
+        assertTrue(pool.obtenir(512) == alliberat[0]);
+        assertEquals(1, pool.getEncerts());
+    }
+
+    @Test
+    void deteccioDeFuitesIAlliberamentsDobles() {
+        PoolBuffers pool = new PoolBuffers(true);
+        ByteBuffer primer = pool.obtenir(512);
+        ByteBuffer segon = pool.obtenir(2048);
+        assertEquals(2, pool.comprovarFuites());
+
+        pool.alliberar(primer);
+        assertEquals(1, pool.comprovarFuites());
+        assertThrows(IllegalStateException.class, () -> pool.alliberar(primer));
+        assertThrows(IllegalStateException.class, () -> pool.alliberar(ByteBuffer.allocateDirect(512)));
+
+        pool.alliberar(segon);
+        assertEquals(0, pool.comprovarFuites());
+        assertEquals(0, pool.getPendents());
+    }
+}
@@ -0,0 +1,421 @@
+package com.securechat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.securechat.Multifil.MessageBuffer;
+import com.securechat.ServidorNio.PoliticaClientLent;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Proves del servidor NIO per loopback amb clients reals: eco d'anada i
+ * tornada, trames que arriben a trossos, buffers de connexió i aturada neta
+ */
+@Timeout(60)
+class ServidorNioTest {
+    private final CodecTrama codec = new CodecTrama();
+    private final MessageBuffer<Missatge> buffer = new MessageBuffer<>(64);
+    private ServidorNio servidor;
+    private Thread processador;
+
+    @Test
+    void ecoDAnadaITornada() throws IOException {
+        iniciar(new ServidorNio(loopback(0), 2, buffer));
+        try {
+            List<ClientTrames> clients = new ArrayList<>();
+            try {
+                for (int i = 0; i < 3; i++) {
+                    clients.add(new ClientTrames(loopback(servidor.getPort())));
+                }
+                for (int i = 0; i < clients.size(); i++) {
+                    for (int seq = 1; seq <= 5; seq++) {
+                        clients.get(i).enviar(CodecTrama.TIPUS_MISSATGE, 0, seq, "client " + i + " #" + seq);
+                    }
+                }
+                for (int i = 0; i < clients.size(); i++) {
+                    ClientTrames client = clients.get(i);
+                    for (int seq = 1; seq <= 5; seq++) {
+                        assertTrue(client.rebre());
+                        assertEquals(CodecTrama.TIPUS_RESPOSTA, client.tipus());
+                        assertEquals(0, client.sala());
+                        assertEquals(seq, client.seq());
+                        assertEquals("ECO: client " + i + " #" + seq, client.contingut());
+                    }
+                }
+            } finally {
+                for (ClientTrames client : clients) {
+                    client.close();
+                }
+            }
+        } finally {
+            aturar();
+        }
+    }
+
+    @Test
+    void tramesPartidesEntreLectures() throws IOException, InterruptedException {
+        iniciar(new ServidorNio(loopback(0), 1, buffer));
+        try (SocketChannel canal = SocketChannel.open(loopback(servidor.getPort()))) {
+            ByteBuffer primera = trama(1, "la primera arriba byte a byte");
+            ByteBuffer duesSeguides = ByteBuffer.allocate(2 * CodecTrama.MIDA_MAXIMA_TRAMA);
+            assertTrue(codec.codificar(duesSeguides, CodecTrama.TIPUS_MISSATGE, 0, 0, 2, "la segona i"));
+            assertTrue(codec.codificar(duesSeguides, CodecTrama.TIPUS_MISSATGE, 0, 0, 3, "la tercera en un sol write"));
+            duesSeguides.flip();
+
+            // Cada byte en un segment TCP diferent: el servidor ha d'acumular-los
+            while (primera.hasRemaining()) {
+                canal.write(primera.slice().limit(1));
+                primera.position(primera.position() + 1);
+                Thread.sleep(1);
+            }
+            while (duesSeguides.hasRemaining()) {
+                canal.write(duesSeguides);
+            }
+
+            assertEquals(List.of("1 ECO: la primera arriba byte a byte", "2 ECO: la segona i",
+                    "3 ECO: la tercera en un sol write"), rebre(canal, 3));
+        } finally {
+            aturar();
+        }
+    }
+
+    @Test
+    void aturarTancaLesConnexionsIRetornaElsBuffers() throws IOException {
+        long pendentsAbans = PoolBuffers.COMPARTIT.getPendents();
+        iniciar(new ServidorNio(loopback(0), 2, buffer));
+        InetSocketAddress adreca = loopback(servidor.getPort());
+        try (ClientTrames primer = new ClientTrames(adreca); ClientTrames segon = new ClientTrames(adreca)) {
+            primer.enviar(CodecTrama.TIPUS_MISSATGE, 0, 1, "abans d'aturar");
+            assertTrue(primer.rebre());
+            segon.enviar(CodecTrama.TIPUS_UNIR, 7, 1, "");
+            assertTrue(segon.rebre());
+            assertEquals(2, servidor.getConnexionsActives());
+
+            aturar();
+
+            // El servidor ha tancat les dues connexions i ja no escolta
+            assertFalse(primer.rebre());
+            assertFalse(segon.rebre());
+            assertEquals(0, servidor.getConnexionsActives());
+            assertThrows(IOException.class, () -> new ClientTrames(adreca).close());
+        }
+        for (Thread fil : Thread.getAllStackTraces().keySet()) {
+            assertFalse(fil.getName().startsWith("Bucle-NIO-"), fil.getName() + " segueix viu");
+        }
+        assertEquals(pendentsAbans, PoolBuffers.COMPARTIT.getPendents());
+    }
+
+    @Test
+    void connexioInactivaNomesOcupaElBufferDeLectura() throws IOException {
+        long pendentsAbans = PoolBuffers.COMPARTIT.getPendents();
+        iniciar(new ServidorNio(loopback(0), 1, buffer));
+        try (ClientTrames client = new ClientTrames(loopback(servidor.getPort()))) {
+            // Una trama que no cap al buffer de lectura inicial: ha de créixer i tornar-se a encongir
+            String gran = "g".repeat(CodecTrama.MIDA_MAXIMA_CONTINGUT - 100);
+            client.enviar(CodecTrama.TIPUS_MISSATGE, 0, 1, gran);
+            assertTrue(client.rebre());
+            assertEquals("ECO: " + gran, client.contingut());
+
+            // Enviada la resposta, al servidor només li queda el de lectura; al client, els seus dos
+            esperarFins(() -> PoolBuffers.COMPARTIT.getPendents() == pendentsAbans + 3);
+        } finally {
+            aturar();
+        }
+        assertEquals(pendentsAbans, PoolBuffers.COMPARTIT.getPendents());
+    }
+
+    @Test
+    void entrarISortirDeSalesDesDeBuclesDiferents() throws Exception {
+        iniciar(new ServidorNio(loopback(0), 2, buffer));
+        InetSocketAddress adreca = loopback(servidor.getPort());
+        List<ClientTrames> queden = new ArrayList<>();
+        List<ClientTrames> marxen = new ArrayList<>();
+        try {
+            // Connexions alternes cauen a bucles alterns: entren i surten de la sala 5 alhora
+            for (int i = 0; i < 4; i++) {
+                queden.add(new ClientTrames(adreca, 10_000));
+                marxen.add(new ClientTrames(adreca, 10_000));
+            }
+            List<Thread> fils = new ArrayList<>();
+            List<Throwable> errors = new CopyOnWriteArrayList<>();
+            for (ClientTrames client : queden) {
+                fils.add(new Thread(() -> entrarISortir(client, true, errors)));
+            }
+            for (ClientTrames client : marxen) {
+                fils.add(new Thread(() -> entrarISortir(client, false, errors)));
+            }
+            for (Thread fil : fils) {
+                fil.start();
+            }
+            for (Thread fil : fils) {
+                fil.join();
+            }
+            assertEquals(List.of(), errors);
+
+            // Si una sortida hagués esborrat la sala amb una entrada a mig fer, hi faltarien membres
+            assertEquals(queden.size(), servidor.difondre(5, CodecTrama.TIPUS_MISSATGE, 0, 1, "a la sala 5"));
+            for (ClientTrames client : queden) {
+                assertTrue(client.rebre());
+                assertEquals(CodecTrama.TIPUS_MISSATGE, client.tipus());
+                assertEquals(5, client.sala());
+                assertEquals("a la sala 5", client.contingut());
+            }
+        } finally {
+            for (ClientTrames client : queden) {
+                client.close();
+            }
+            for (ClientTrames client : marxen) {
+                client.close();
+            }
+            aturar();
+        }
+    }
+
+    @Test
+    void clientLentDescartarPerdLesNovesSenseFrenarElsAltres() throws IOException {
+        iniciar(new ServidorNio(loopback(0), 1, buffer, 8, PoliticaClientLent.DESCARTAR));
+        InetSocketAddress adreca = loopback(servidor.getPort());
+        try (ClientTrames lent = new ClientTrames(adreca, 10_000); ClientTrames rapid = new ClientTrames(adreca, 10_000)) {
+            unir(lent, 5);
+            unir(rapid, 5);
+            List<Long> admeses = new ArrayList<>();
+            long darrera = omplirFins(rapid, admeses, () -> servidor.getTramesDescartades() > 0, 1);
+
+            // Les noves s'han descartat, però el client segueix connectat
+            assertTrue(admeses.size() < darrera);
+            assertEquals(2, servidor.getConnexionsActives());
+            assertEquals(0L, servidor.getDesconnexionsLentes());
+
+            // Quan llegeix, rep exactament les admeses, en ordre, i torna a rebre les noves
+            for (long seq : admeses) {
+                assertTrue(lent.rebre());
+                assertEquals(seq, lent.seq());
+            }
+            assertEquals(2, servidor.difondre(5, CodecTrama.TIPUS_MISSATGE, 0, darrera + 1, "ja llegeix"));
+            assertTrue(lent.rebre());
+            assertEquals(darrera + 1, lent.seq());
+        } finally {
+            aturar();
+        }
+    }
+
+    @Test
+    void clientLentDesconnectarTancaNomesElLent() throws IOException {
+        iniciar(new ServidorNio(loopback(0), 1, buffer, 8, PoliticaClientLent.DESCONNECTAR));
+        InetSocketAddress adreca = loopback(servidor.getPort());
+        try (ClientTrames lent = new ClientTrames(adreca, 10_000); ClientTrames rapid = new ClientTrames(adreca, 10_000)) {
+            unir(lent, 5);
+            unir(rapid, 5);
+            List<Long> admeses = new ArrayList<>();
+            long darrera = omplirFins(rapid, admeses, () -> servidor.getDesconnexionsLentes() > 0, 1);
+
+            esperarFins(() -> servidor.getConnexionsActives() == 1);
+            assertEquals(1L, servidor.getDesconnexionsLentes());
+            assertEquals(1, servidor.difondre(5, CodecTrama.TIPUS_MISSATGE, 0, darrera + 1, "sense el lent"));
+            assertTrue(rapid.rebre());
+            assertEquals(darrera + 1, rapid.seq());
+
+            // El lent pot llegir el que ja era al socket, i després la connexió és tancada
+            long anterior = 0;
+            while (lent.rebre()) {
+                assertEquals(anterior + 1, lent.seq());
+                anterior = lent.seq();
+            }
+            assertTrue(anterior < darrera);
+        } finally {
+            aturar();
+        }
+    }
+
+    @Test
+    void clientLentCoalescirSubstitueixElMesAnticDeLaSala() throws IOException {
+        iniciar(new ServidorNio(loopback(0), 1, buffer, 8, PoliticaClientLent.COALESCIR));
+        InetSocketAddress adreca = loopback(servidor.getPort());
+        try (ClientTrames lent = new ClientTrames(adreca, 10_000); ClientTrames rapid = new ClientTrames(adreca, 10_000)) {
+            unir(lent, 5);
+            unir(lent, 6);
+            unir(rapid, 5);
+            List<Long> admeses = new ArrayList<>();
+            // La cua també s'omple si el bucle va més lent que difondre(): cal que sigui el socket
+            // el que és ple i el bucle no en pugui treure res, i llavors cada trama nova en substitueix una
+            int seguidesCoalescides = 0;
+            long darrera = 0;
+            while (seguidesCoalescides < 16) {
+                long abans = servidor.getTramesCoalescides();
+                long anterior = darrera;
+                darrera = omplirFins(rapid, admeses, () -> servidor.getTramesCoalescides() > abans, anterior + 1);
+                seguidesCoalescides = darrera == anterior + 1 ? seguidesCoalescides + 1 : 0;
+            }
+            // Totes les de la sala 5 s'han admès: la cua del lent es queda amb les més noves
+            assertEquals(darrera, (long) admeses.size());
+            assertEquals(0L, servidor.getTramesDescartades());
+
+            // Sense cap de la sala 6 pendent, la primera ocupa el lloc de la més antiga de la 5;
+            // la segona ja ocupa el de la primera
+            assertEquals(1, servidor.difondre(6, CodecTrama.TIPUS_MISSATGE, 0, 1, "substituïda"));
+            assertEquals(1, servidor.difondre(6, CodecTrama.TIPUS_MISSATGE, 0, 2, "la més nova"));
+            long coalescides = servidor.getTramesCoalescides();
+
+            List<Long> sala5 = new ArrayList<>();
+            List<String> sala6 = new ArrayList<>();
+            while (sala6.isEmpty()) {
+                assertTrue(lent.rebre());
+                if (lent.sala() == 6) {
+                    sala6.add(lent.seq() + " " + lent.contingut());
+                } else {
+                    assertTrue(sala5.isEmpty() || lent.seq() > sala5.get(sala5.size() - 1));
+                    sala5.add(lent.seq());
+                }
+            }
+            assertEquals(List.of("2 la més nova"), sala6);
+            // La de la sala 6 va darrere de totes les de la 5 que hi havia pendents
+            assertEquals(darrera, (long) sala5.get(sala5.size() - 1));
+            // De la 5 només falten les substituïdes per altres de la 5 i la que va deixar lloc a la 6
+            assertEquals(darrera - (coalescides - 1), (long) sala5.size());
+        } finally {
+            aturar();
+        }
+    }
+
+    /**
+     * Difon a la sala 5 fins que es compleix la condició; el client ràpid ho ha de
+     * rebre tot sense esperar el lent (rebre() té temps màxim)
+     * @param admeses On s'afegeixen les seqüències que ha admès també el client lent
+     * @param primera Seqüència de la primera trama
+     * @return Seqüència de la darrera trama difosa
+     */
+    private long omplirFins(ClientTrames rapid, List<Long> admeses, BooleanSupplier condicio, long primera)
+            throws IOException {
+        String contingut = "x".repeat(CodecTrama.MIDA_MAXIMA_CONTINGUT / 2);
+        for (long seq = primera; seq < primera + 100_000; seq++) {
+            if (servidor.difondre(5, CodecTrama.TIPUS_MISSATGE, 0, seq, contingut) == 2) {
+                admeses.add(seq);
+            }
+            assertTrue(rapid.rebre());
+            assertEquals(seq, rapid.seq());
+            if (condicio.getAsBoolean()) {
+                return seq;
+            }
+        }
+        throw new AssertionError("El client lent no ha arribat mai a omplir la cua");
+    }
+
+    private static void unir(ClientTrames client, int sala) throws IOException {
+        client.enviar(CodecTrama.TIPUS_UNIR, sala, 0, "");
+        assertTrue(client.rebre());
+        assertEquals(CodecTrama.TIPUS_RESPOSTA, client.tipus());
+        assertEquals(sala, client.sala());
+    }
+
+    /**
+     * Entra i surt de la sala 5 moltes vegades; acaba dins si queda, o fora si marxa
+     */
+    private static void entrarISortir(ClientTrames client, boolean queda, List<Throwable> errors) {
+        try {
+            for (int seq = 1; seq <= 500; seq++) {
+                client.enviar(CodecTrama.TIPUS_UNIR, 5, seq, "");
+                assertTrue(client.rebre());
+                assertEquals(seq, client.seq());
+                client.enviar(CodecTrama.TIPUS_SORTIR, 5, seq, "");
+            }
+            if (queda) {
+                client.enviar(CodecTrama.TIPUS_UNIR, 5, 501, "");
+            } else {
+                // La confirmació d'una altra sala garanteix que la darrera sortida ja s'ha atès
+                client.enviar(CodecTrama.TIPUS_UNIR, 99, 501, "");
+            }
+            assertTrue(client.rebre());
+            assertEquals(501L, client.seq());
+        } catch (Throwable e) {
+            errors.add(e);
+        }
+    }
+
+    /**
+     * Arrenca el servidor i un processador que respon l'eco al remitent
+     */
+    private void iniciar(ServidorNio nou) throws IOException {
+        servidor = nou;
+        servidor.iniciar();
+        processador = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (Missatge missatge : buffer.treureLot(16)) {
+                    servidor.enviar(missatge.getRemitent(), CodecTrama.TIPUS_RESPOSTA, 0, missatge.getSala(),
+                            missatge.getSeq(), "ECO: " + missatge.getContingut());
+                }
+            }
+        }, "Processador-Prova");
+        processador.start();
+    }
+
+    private void aturar() {
+        if (processador.isAlive()) {
+            servidor.aturar();
+            processador.interrupt();
+            try {
+                processador.join(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private ByteBuffer trama(long seq, String contingut) {
+        ByteBuffer trama = ByteBuffer.allocate(CodecTrama.MIDA_MAXIMA_TRAMA);
+        assertTrue(codec.codificar(trama, CodecTrama.TIPUS_MISSATGE, 0, 0, seq, contingut));
+        return trama.flip();
+    }
+
+    /**
+     * Llegeix n trames d'un canal bloquejant
+     * @return "seq contingut" de cadascuna
+     */
+    private List<String> rebre(SocketChannel canal, int n) throws IOException {
+        ByteBuffer lectura = ByteBuffer.allocate(4 * CodecTrama.MIDA_MAXIMA_TRAMA);
+        List<String> rebudes = new ArrayList<>();
+        while (rebudes.size() < n) {
+            assertTrue(canal.read(lectura) >= 0, "El servidor ha tancat la connexió");
+            lectura.flip();
+            int mida;
+            while (rebudes.size() < n && (mida = CodecTrama.midaTrama(lectura)) > 0) {
+                assertEquals(CodecTrama.TIPUS_RESPOSTA, CodecTrama.tipus(lectura));
+                rebudes.add(CodecTrama.seq(lectura) + " " + codec.contingut(lectura));
+                lectura.position(lectura.position() + mida);
+            }
+            lectura.compact();
+        }
+        return rebudes;
+    }
+
+    private static InetSocketAddress loopback(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    private static void esperarFins(BooleanSupplier condicio) {
+        long limit = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condicio.getAsBoolean()) {
+            assertTrue(System.nanoTime() < limit, "La condició no s'ha complert a temps");
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.securechat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Proves del recompte de referències: el buffer torna al pool només amb
+ * l'última referència, i ni abans ni dues vegades
+ */
+class TramaCompartidaTest {
+    private final CodecTrama codec = new CodecTrama();
+
+    @Test
+    void lUltimaReferenciaRetornaElBufferAlPool() {
+        long pendentsAbans = PoolBuffers.COMPARTIT.getPendents();
+        TramaCompartida trama = TramaCompartida.codificar(codec, CodecTrama.TIPUS_MISSATGE, 1, 2, 3, "a tota la sala");
+        assertNotNull(trama);
+        assertEquals(pendentsAbans + 1, PoolBuffers.COMPARTIT.getPendents());
+
+        // Tres destinataris
+        for (int i = 0; i < 3; i++) {
+            trama.retenir();
+        }
+        trama.alliberar(); // La del creador
+        trama.alliberar();
+        trama.alliberar();
+        assertEquals(pendentsAbans + 1, PoolBuffers.COMPARTIT.getPendents());
+
+        trama.alliberar();
+        assertEquals(pendentsAbans, PoolBuffers.COMPARTIT.getPendents());
+
+        assertThrows(IllegalStateException.class, trama::retenir);
+        assertThrows(IllegalStateException.class, trama::alliberar);
+    }
+
+    @Test
+    void contingutMassaGranNoDeixaCapBufferPendent() {
+        long pendentsAbans = PoolBuffers.COMPARTIT.getPendents();
+        String massaGran = "x".repeat(CodecTrama.MIDA_MAXIMA_CONTINGUT + 1);
+        assertNull(TramaCompartida.codificar(codec, CodecTrama.TIPUS_MISSATGE, 1, 2, 3, massaGran));
+        assertEquals(pendentsAbans, PoolBuffers.COMPARTIT.getPendents());
+    }
+
+    @Test
+    void copiarATrossosReprodueixLaTrama() throws Exception {
+        TramaCompartida trama = TramaCompartida.codificar(codec, CodecTrama.TIPUS_MISSATGE, 4, 5, 6, "missatge per trossos");
+        assertNotNull(trama);
+        try {
+            ByteBuffer sencera = ByteBuffer.allocate(trama.mida());
+            ByteBuffer tros = ByteBuffer.allocate(7);
+            int copiats = 0;
+            while (copiats < trama.mida()) {
+                tros.clear();
+                copiats += trama.copiar(copiats, tros);
+                sencera.put(tros.flip());
+            }
+            sencera.flip();
+
+            assertEquals(trama.mida(), CodecTrama.midaTrama(sencera));
+            assertEquals(6L, CodecTrama.seq(sencera));
+            assertEquals("missatge per trossos", codec.contingut(sencera).toString());
+        } finally {
+            trama.alliberar();
+        }
+    }
+}